@@ -1,12 +1,87 @@
 package com.example;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
-import java.util.concurrent.Semaphore;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.TreeMap;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * App
@@ -21,45 +96,324 @@ public class App {
  * GenWorld
  */
 class GenWorld implements Runnable {
+    private static final long DEFAULT_EVENT_DURATION_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final int DEFAULT_WATCH_FRAMES = 10;
+
     private final String[] args;
+    private final WorldConfig config;
 
     public GenWorld(String[] args) {
         this.args = args;
+        this.config = new WorldConfig(args);
     }
 
     @Override
     public void run() {
         System.out.println("Hello world!");
 
-        Random random = new Random();
-        System.out.println("Random object generated");
-
-        Location initialLocation = new Location(0, 0);
-        System.out.println("Tunnel generated");
-        Tunnel tunnel = new Tunnel(initialLocation);
+        try {
+            EventLog.start(config);
+        } catch (IOException e) {
+            System.out.println("Event log disabled: " + e.getMessage());
+        }
 
-        System.out.println("Creating PortDataBase");
-        PortDataBase portDataBase = new FabricPortDataBase().create();
+        if (config.has("replay")) {
+            try {
+                System.out.println(JournalReplay.replay(Paths.get(config.getString("replay", null))).getSummary());
+            } catch (IOException e) {
+                System.out.println("Replay failed: " + e.getMessage());
+            }
+            return;
+        }
+        if (config.has("watch")) {
+            watch();
+            return;
+        }
+        try {
+            EventJournal.start(config);
+        } catch (IOException e) {
+            System.out.println("Event journal disabled: " + e.getMessage());
+        }
 
-        System.out.println("Creating FabricShipStorage");
-        FabricShipStorage fabricShipStorage = new FabricShipStorage(
-                ShipStorageCapacity.SMALL, ShipStorageCapacity.MIDDLE,
-                ShipStorageCapacity.BIG);
+        WorldSnapshot restored = restore();
+        RandomStreams randomStreams = restored != null && !config.has("seed")
+                ? new RandomStreams(restored.getMasterSeed())
+                : RandomStreams.create(config);
+        Random random = randomStreams.stream(RandomStreams.WORLD, 0);
+        System.out.println("Random streams generated, seed=" + randomStreams.getMasterSeed());
+
+        PortDataBase scenario = restored == null ? loadScenario(randomStreams) : null;
+        PortDataBase portDataBase;
+        TunnelNetwork tunnelNetwork;
+        if (restored != null) {
+            portDataBase = restored.getPortDataBase();
+            tunnelNetwork = restored.getTunnelNetwork();
+        } else if (scenario != null) {
+            portDataBase = scenario;
+            tunnelNetwork = scenario.getRoutePlanner().getTunnelNetwork();
+        } else {
+            Location initialLocation = new Location(0, 0);
+            tunnelNetwork = TunnelNetworks.create(config, initialLocation, new FabricTunel(random, config));
+            System.out.println(tunnelNetwork.getTunnels().size() + " tunnel(s) generated, selection: "
+                    + tunnelNetwork.getSelection().getName());
+
+            System.out.println("Creating PortDataBase");
+            portDataBase = new FabricPortDataBase().create();
+
+            System.out.println("Creating FabricShipStorage");
+            FabricShipStorage fabricShipStorage = new FabricShipStorage(
+                    ShipStorageCapacity.SMALL, ShipStorageCapacity.MIDDLE,
+                    ShipStorageCapacity.BIG);
+
+            System.out.println("Creating FabricPort");
+            FabricPort fabricPort = new FabricPort(random, portDataBase, new MultiFabricProduct(), fabricShipStorage);
+
+            int numPortsToAdd = 4;
+            for (int i = 0; i < numPortsToAdd; i++) {
+                System.out.println("Adding a new Port to PortDataBase");
+                portDataBase.addPort(fabricPort.create(150));
+            }
+            portDataBase.setDestinationSelector(DestinationSelectors.create(config));
+            System.out.println("Planning routes between ports");
+            portDataBase.setRoutePlanner(new RoutePlanner(portDataBase.getPorts(), tunnelNetwork));
+            portDataBase.setFleetManager(FleetManager.create(config, portDataBase));
+        }
+        Tunnel tunnel = tunnelNetwork.getTunnels().get(0);
+        Metrics.start(config, portDataBase);
+
+        String engine = config.getString("engine", "threads");
+        if (engine.equals("ticks")) {
+            long duration = config.getLong("duration", DEFAULT_EVENT_DURATION_MS);
+            TickWorld tickWorld = TickWorld.create(config, portDataBase, tunnel, randomStreams);
+            System.out.println("Running tick engine for " + duration + " ms of virtual time");
+            if (restored != null) {
+                tickWorld.resume(restored.getVirtualTimeMs(), restored.getUnderway());
+            }
+            EventJournal.recordWorld(portDataBase);
+            TelemetryServer telemetry = startTelemetry(portDataBase, tunnelNetwork, tickWorld::getNow);
+            tickWorld.run(duration);
+            stopTelemetry(telemetry);
+            writeSnapshot(portDataBase, randomStreams.getMasterSeed(), tickWorld.getNow());
+            return;
+        }
+        if (engine.equals("events")) {
+            long duration = config.getLong("duration", DEFAULT_EVENT_DURATION_MS);
+            System.out.println("Running discrete-event engine for " + duration + " ms of virtual time");
+            EventWorld eventWorld = new EventWorld(portDataBase, tunnel, randomStreams.stream(RandomStreams.EVENTS, 0));
+            if (restored != null) {
+                eventWorld.resume(restored.getVirtualTimeMs(), restored.getUnderway());
+            }
+            EventJournal.recordWorld(portDataBase);
+            TelemetryServer telemetry = startTelemetry(portDataBase, tunnelNetwork, eventWorld.getEngine()::getNow);
+            eventWorld.run(duration);
+            stopTelemetry(telemetry);
+            writeSnapshot(portDataBase, randomStreams.getMasterSeed(), eventWorld.getEngine().getNow());
+            return;
+        }
 
-        System.out.println("Creating FabricPort");
-        FabricPort fabricPort = new FabricPort(random, portDataBase, new MultiFabricProduct(), fabricShipStorage);
+        EventJournal.recordWorld(portDataBase);
+        TaskLauncher launcher = TaskLaunchers.create(config);
+        System.out.println("Ship tasks run on: " + launcher.getName());
 
-        int numPortsToAdd = 4;
-        for (int i = 0; i < numPortsToAdd; i++) {
-            System.out.println("Adding a new Port to PortDataBase");
-            portDataBase.getPorts().add(fabricPort.create(150));
+        if (restored != null) {
+            for (Ship ship : restored.getUnderway()) {
+                launcher.launch(new ShipRoad(ship.getVoyagePlan(), ship, randomStreams.stream(RandomStreams.EVENTS,
+                        ship.getID()), tunnel, launcher, ship.getVoyageLeg()));
+            }
+        }
+        startSnapshots(portDataBase, randomStreams.getMasterSeed(), restored == null ? 0 : restored.getVirtualTimeMs());
+        startTelemetry(portDataBase, tunnelNetwork, System::currentTimeMillis);
+
+        if (launcher instanceof SimulationScheduler) {
+            SimulationScheduler scheduler = (SimulationScheduler) launcher;
+            for (Port port : portDataBase.getPorts()) {
+                ActivePort activePort = new ActivePort(port, randomStreams.forPort(port.getID()), tunnel, launcher);
+                scheduler.schedulePeriodic(activePort::tick, ActivePort.SLEEP_DURATION_MS,
+                        port.getGenerationPeriodMs());
+            }
+            System.out.println(portDataBase.getPorts().size() + " ports scheduled");
+            scheduler.schedulePeriodic(() -> System.out.println(scheduler.getStats()),
+                    SimulationScheduler.STATS_PERIOD_MS, SimulationScheduler.STATS_PERIOD_MS);
+            scheduler.schedulePeriodic(() -> System.out.println(tunnelNetwork.getStats()),
+                    SimulationScheduler.STATS_PERIOD_MS, SimulationScheduler.STATS_PERIOD_MS);
+            return;
         }
 
         for (Port port : portDataBase.getPorts()) {
-            System.out.println("Port: " + port.getID() + " is active...");
-            new Thread(new ActivePort(port, random, tunnel)).start();
+            new Thread(new ActivePort(port, randomStreams.forPort(port.getID()), tunnel, launcher)).start();
+        }
+        System.out.println(portDataBase.getPorts().size() + " ports active");
+
+        Thread tunnelStats = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(SimulationScheduler.STATS_PERIOD_MS);
+                    System.out.println(tunnelNetwork.getStats());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "tunnel-stats");
+        tunnelStats.setDaemon(true);
+        tunnelStats.start();
+    }
+
+    /**
+     * clock is the time the engine's ships sail by: virtual for ticks and events, the wall clock for threads.
+     */
+    private TelemetryServer startTelemetry(PortDataBase portDataBase, TunnelNetwork tunnelNetwork, LongSupplier clock) {
+        try {
+            TelemetryServer telemetry = TelemetryServer.start(config, portDataBase, tunnelNetwork.getTunnels(), clock);
+            if (telemetry != null) {
+                System.out.println("Telemetry listening on port " + telemetry.getPort());
+            }
+            return telemetry;
+        } catch (IOException e) {
+            System.out.println("Telemetry disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void stopTelemetry(TelemetryServer telemetry) {
+        if (telemetry != null) {
+            telemetry.close();
+        }
+    }
+
+    /**
+     * Follows a running world's telemetry=<port> from watch=[host:]port, printing watch.frames frames.
+     */
+    private void watch() {
+        String target = config.getString("watch", null);
+        int split = target.lastIndexOf(':');
+        String host = split > 0 ? target.substring(0, split) : TelemetryServer.DEFAULT_HOST;
+        int port = Integer.parseInt(target.substring(split + 1));
+        byte format = config.getString("watch.format", "binary").equals("json")
+                ? TelemetryFrame.JSON
+                : TelemetryFrame.BINARY;
+        int frames = config.getInt("watch.frames", DEFAULT_WATCH_FRAMES);
+        try (TelemetryClient client = TelemetryClient.connect(host, port, format)) {
+            for (int i = 0; i < frames; i++) {
+                System.out.println(client.describe(client.readFrame()));
+            }
+        } catch (IOException e) {
+            System.out.println("Watch failed: " + e.getMessage());
+        }
+    }
+
+    private WorldSnapshot restore() {
+        if (!config.has("restore")) {
+            return null;
+        }
+        Path path = Paths.get(config.getString("restore", null));
+        try {
+            long started = System.nanoTime();
+            WorldSnapshot snapshot = WorldSnapshot.read(path, config);
+            System.out.println("Restored " + snapshot.getPortDataBase().getPorts().size() + " ports, "
+                    + snapshot.getShipCount() + " ships (" + snapshot.getUnderway().size() + " underway) from "
+                    + path + " at virtual time " + snapshot.getVirtualTimeMs() + " ms in "
+                    + (System.nanoTime() - started) / 1_000_000 + " ms");
+            return snapshot;
+        } catch (IOException e) {
+            System.out.println("Restore failed, generating a new world: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private PortDataBase loadScenario(RandomStreams randomStreams) {
+        if (!config.has("scenario")) {
+            return null;
+        }
+        Path path = Paths.get(config.getString("scenario", null));
+        try {
+            long started = System.nanoTime();
+            PortDataBase portDataBase = new ScenarioLoader(config, randomStreams).load(path);
+            System.out.println("Loaded " + portDataBase.getPorts().size() + " ports, "
+                    + portDataBase.getRoutePlanner().getTunnels().size() + " tunnel(s) from " + path + " in "
+                    + (System.nanoTime() - started) / 1_000_000 + " ms");
+            return portDataBase;
+        } catch (IOException e) {
+            System.out.println("Scenario failed, generating a new world: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeSnapshot(PortDataBase portDataBase, long masterSeed, long virtualTimeMs) {
+        if (!config.has("snapshot")) {
+            return;
+        }
+        Path path = Paths.get(config.getString("snapshot", null));
+        try {
+            WorldSnapshot.write(path, portDataBase, masterSeed, virtualTimeMs);
+            System.out.println("Snapshot written to " + path + " at virtual time " + virtualTimeMs + " ms");
+        } catch (IOException e) {
+            System.out.println("Snapshot failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * In threads mode the world never stops, so the snapshot is rewritten every snapshot.period ms.
+     */
+    private void startSnapshots(PortDataBase portDataBase, long masterSeed, long restoredAtMs) {
+        if (!config.has("snapshot")) {
+            return;
+        }
+        long period = config.getLong("snapshot.period", WorldSnapshot.DEFAULT_PERIOD_MS);
+        long startedAt = System.currentTimeMillis();
+        Thread snapshots = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(period);
+                    writeSnapshot(portDataBase, masterSeed, restoredAtMs + System.currentTimeMillis() - startedAt);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "world-snapshot");
+        snapshots.setDaemon(true);
+        snapshots.start();
+    }
+}
+
+/**
+ * WorldConfig
+ * Startup options for GenWorld, passed as "key=value" or "--key=value" arguments.
+ */
+class WorldConfig {
+    private final Map<String, String> values = new HashMap<>();
+
+    public WorldConfig(String[] args) {
+        if (args == null) {
+            return;
+        }
+        for (String arg : args) {
+            String option = arg.startsWith("--") ? arg.substring(2) : arg;
+            int split = option.indexOf('=');
+            if (split > 0) {
+                values.put(option.substring(0, split), option.substring(split + 1));
+            } else if (!option.isEmpty()) {
+                values.put(option, "true");
+            }
         }
     }
+
+    public boolean has(String key) {
+        return values.containsKey(key);
+    }
+
+    public String getString(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
 }
 
 /**
@@ -72,7 +426,15 @@ class GenWorld implements Runnable {
  * PortDataBase
  */
 class PortDataBase {
+    private static final int INDEX_CELL_SIZE = 10;
+
     private final List<Port> ports;
+    private final SpatialIndex<Ship> shipIndex = new SpatialIndex<>(INDEX_CELL_SIZE);
+    private DestinationSelector destinationSelector = new RandomDestinationSelector();
+    private RoutePlanner routePlanner;
+    private FleetManager fleetManager = new FleetManager(shipIndex, 0, 0, FleetManager.DEFAULT_POOL_CAPACITY);
+    private volatile SpatialIndex<Port> portIndex;
+    private final ShipHolding shipHolding = new ShipHolding();
 
     public PortDataBase(List<Port> ports) {
         /**
@@ -83,1448 +445,9695 @@ class PortDataBase {
         this.ports = ports;
     }
 
-    public List<Port> getPorts() {
+    public void addPort(Port port) {
         /**
-         * Get the list of ports stored in the database.
+         * Add a port to the database and to the port spatial index.
          *
-         * @return List<Port>: The list of ports.
+         * @param port: The port to add.
          */
-        return ports;
+        ports.add(port);
+        SpatialIndex<Port> index = portIndex;
+        if (index != null) {
+            index.update(port);
+        }
     }
-}
 
-/**
- * Ship
- */
-class Ship implements ObjLocation {
-    private final int ID;
-    private List<ShipElement> elements;
-    private Location location;
-    private String nameOfCreator;
+    public SpatialIndex<Port> getPortIndex() {
+        /**
+         * Get the spatial index over port locations.
+         *
+         * @return SpatialIndex<Port>: The port index, built on first use.
+         */
+        SpatialIndex<Port> index = portIndex;
+        return index != null ? index : buildPortIndex();
+    }
+
+    private synchronized SpatialIndex<Port> buildPortIndex() {
+        // Only nearest-destination routing reads the index, so a large world does not pay for it up front
+        if (portIndex == null) {
+            SpatialIndex<Port> index = new SpatialIndex<>(INDEX_CELL_SIZE);
+            for (Port port : ports) {
+                index.update(port);
+            }
+            portIndex = index;
+        }
+        return portIndex;
+    }
 
-    public Ship(int id, List<ShipElement> elements, Location location) {
+    public SpatialIndex<Ship> getShipIndex() {
         /**
-         * Initialize a Ship with an ID, elements, and location.
+         * Get the spatial index over the locations of moving ships.
          *
-         * @param id:       The ID of the ship.
-         * @param elements: List of ship elements.
-         * @param location: The location of the ship.
+         * @return SpatialIndex<Ship>: The ship index.
          */
-        this.elements = elements;
-        this.location = location;
-        this.ID = id;
+        return shipIndex;
     }
 
-    public List<ShipElement> getElements() {
+    public long getBerthCapacity() {
         /**
-         * Get the list of ship elements.
+         * Get the number of berths of all ports, without building their storage.
          *
-         * @return List<ShipElement>: List of ship elements.
+         * @return long: The berths of every port together.
          */
-        return elements;
+        long capacity = 0;
+        for (Port port : ports) {
+            capacity += port.getBerthCapacity();
+        }
+        return capacity;
     }
 
-    @Override
-    public Location getLocation() {
+    public List<Ship> shipsNear(Location center, int radius) {
         /**
-         * Get the location of the ship.
+         * Find the active ships within radius of center, where they are now, through the ship index.
          *
-         * @return Location: The location of the ship.
+         * @param center: The point to search around.
+         * @param radius: The search radius.
+         * @return List<Ship>: The ships found, in no particular order.
          */
-        return this.location;
+        return shipIndex.withinRadius(center, radius);
     }
 
-    public void setNameOfCreator(String nameOfCreator) {
+    public DestinationSelector getDestinationSelector() {
         /**
-         * Set the name of the ship's creator.
+         * Get the strategy that picks where a ship is sent next.
          *
-         * @param nameOfCreator: The name of the ship's creator.
+         * @return DestinationSelector: The destination selector.
          */
-        this.nameOfCreator = nameOfCreator;
+        return destinationSelector;
     }
 
-    public String getNameOfCreator() {
+    public void setDestinationSelector(DestinationSelector destinationSelector) {
+        this.destinationSelector = destinationSelector;
+    }
+
+    public RoutePlanner getRoutePlanner() {
         /**
-         * Get the name of the ship's creator.
+         * Get the precomputed port-to-port route planner, or null before world generation.
          *
-         * @return String: The name of the ship's creator.
+         * @return RoutePlanner: The route planner.
          */
-        return nameOfCreator;
+        return routePlanner;
     }
 
-    public int getID() {
+    public void setRoutePlanner(RoutePlanner routePlanner) {
+        this.routePlanner = routePlanner;
+    }
+
+    public FleetManager getFleetManager() {
         /**
-         * Get the ID of the ship.
+         * Get the manager that caps the fleet and recycles retired ships.
          *
-         * @return int: The ID of the ship.
+         * @return FleetManager: The fleet manager.
          */
-        return ID;
+        return fleetManager;
+    }
+
+    public ShipHolding getShipHolding() {
+        /**
+         * Get the queue of ships waiting to be sent again after no port could berth them.
+         *
+         * @return ShipHolding: The holding queue.
+         */
+        return shipHolding;
+    }
+
+    public void setFleetManager(FleetManager fleetManager) {
+        this.fleetManager = fleetManager;
+    }
+
+    public List<Port> getPorts() {
+        /**
+         * Get the list of ports stored in the database.
+         *
+         * @return List<Port>: The list of ports.
+         */
+        return ports;
     }
 }
 
 /**
- * Port
+ * Ship
  */
-class Port implements ObjLocation {
-    private final PortDataBase portDataBase;
-    private final int ID;
-    private final Location location;
-    private final FabricShip fabricShip;
-    private final Product product;
-    private ShipStorage shipStorage;
-
-    public Port(PortDataBase portDataBase,
-            int id,
-            Location location,
-            FabricShip fabricShip,
-            Product product,
-            ShipStorage shipStorage) {
+class Ship implements ObjLocation {
+    static final int RETIRED = -1;
+    private static final int IN_PORT = 0;
+    private static final int UNDERWAY = 1;
+    private static final int UNLOADED_UNDERWAY = 2;
+
+    private long ID;
+    private List<ShipElement<?>> elements;
+    private final Product<Integer> product;
+    private final ShipCapacity shipCapacity;
+    private Location location;
+    private String nameOfCreator;
+    private final AtomicInteger holds = new AtomicInteger();
+    private final AtomicInteger voyages = new AtomicInteger();
+    private final AtomicInteger voyageState = new AtomicInteger(IN_PORT);
+    private volatile boolean retiring;
+    private volatile RoutePlan voyagePlan;
+    private volatile int voyageLeg;
+    private volatile Course course;
+    private volatile int refusals;
+
+    public Ship(long id, List<ShipElement<?>> elements, Location location) {
         /**
-         * Initialize a Port with the specified attributes.
+         * Initialize a Ship with an ID, elements, and location.
          *
-         * @param portDataBase: The database associated with the port.
-         * @param id:           The ID of the port.
-         * @param location:     The location of the port.
-         * @param fabricShip:   The fabric to create ships.
-         * @param product:      The product available at the port.
-         * @param shipStorage:  The storage for ships at the port.
+         * @param id:       The ID of the ship.
+         * @param elements: List of ship elements.
+         * @param location: The location of the ship.
          */
-        this.portDataBase = portDataBase;
-        this.ID = id;
+        this.elements = elements;
         this.location = location;
-        this.fabricShip = fabricShip;
-        this.product = product;
-        this.shipStorage = shipStorage;
+        this.ID = id;
+
+        // Resolve the typed elements once so lookups on the hot path are plain field reads
+        Product<Integer> foundProduct = null;
+        ShipCapacity foundCapacity = null;
+        if (elements != null) {
+            for (ShipElement<?> element : elements) {
+                if (foundProduct == null && element instanceof Product) {
+                    foundProduct = asCargo(element);
+                } else if (foundCapacity == null && element instanceof ShipCapacity) {
+                    foundCapacity = (ShipCapacity) element;
+                }
+            }
+        }
+        this.product = foundProduct;
+        this.shipCapacity = foundCapacity;
     }
 
-    public void setShipStorage(ShipStorage shipStorage) {
-        this.shipStorage = shipStorage;
+    @SuppressWarnings("unchecked")
+    private static Product<Integer> asCargo(ShipElement<?> element) {
+        // Every product a ship carries counts its cargo in whole units
+        return (Product<Integer>) element;
     }
 
-    public Product getProduct() {
+    public List<ShipElement<?>> getElements() {
         /**
-         * Get the product available at the port.
+         * Get the list of ship elements.
          *
-         * @return Product: The product at the port.
+         * @return List<ShipElement<?>>: List of ship elements.
          */
-        return product;
+        return elements;
     }
 
-    public FabricShip getFabricShip() {
+    public Product<Integer> getProduct() {
         /**
-         * Get the fabric for creating ships.
+         * Get the product carried by the ship.
          *
-         * @return FabricShip: The fabric ship associated with the port.
+         * @return Product<Integer>: The ship's cargo, or null if it has none.
          */
-        return fabricShip;
+        return product;
     }
 
-    public ShipStorage getShipStorage() {
+    public ShipCapacity getShipCapacity() {
         /**
-         * Get the storage for ships at the port.
+         * Get the capacity class of the ship.
          *
-         * @return ShipStorage: The ship storage at the port.
+         * @return ShipCapacity: The ship's capacity class, or null if it has none.
          */
-        return shipStorage;
+        return shipCapacity;
     }
 
-    public PortDataBase getPortDataBase() {
+    public int getProductOrdinal() {
         /**
-         * Get the database associated with the port.
+         * Get the type of the ship's cargo.
          *
-         * @return PortDataBase: The database of the port.
+         * @return int: The FabricProduct ordinal of the cargo, or -1 if the ship has none.
          */
-        return portDataBase;
+        Product<Integer> cargo = getProduct();
+        return cargo == null ? -1 : cargo.getProductOrdinal();
     }
 
-    public int getID() {
+    public int getCapacityOrdinal() {
         /**
-         * Get the ID of the port.
+         * Get the capacity class of the ship as an ordinal.
          *
-         * @return int: The ID of the port.
+         * @return int: The ShipCapacity ordinal, or -1 if the ship has none.
          */
-        return ID;
+        ShipCapacity capacity = getShipCapacity();
+        return capacity == null ? -1 : capacity.ordinal();
     }
 
     @Override
     public Location getLocation() {
         /**
-         * Get the location of the port.
+         * Get the ship's own location: where it lies when it has no course, and where its last leg
+         * started when it has one. Use locate() for where the ship is now.
          *
-         * @return Location: The location of the port.
+         * @return Location: The ship's own location.
          */
         return this.location;
     }
-}
 
-/**
- * Tunel
- */
-class Tunnel implements ObjLocation {
-    private static final int MAX_CONNECTIONS = 5;
-    private final Semaphore semaphore = new Semaphore(MAX_CONNECTIONS);
-    private Location location;
-
-    public Tunnel(Location location) {
+    @Override
+    public Location locate(Location into) {
         /**
-         * Initialize a Tunnel with a specified location.
+         * Write where the ship is now into a Location the caller owns: the point along its course if it
+         * has one, otherwise its own location. Any thread may call this; it allocates nothing.
          *
-         * @param location: The location of the tunnel.
+         * @param into: Where the position is written.
+         * @return Location: into.
          */
-        this.location = location;
+        Course current = this.course;
+        if (current != null) {
+            current.locate(into);
+        } else {
+            into.setX(this.location.getX());
+            into.setY(this.location.getY());
+        }
+        return into;
     }
 
-    public Semaphore getSemaphore() {
+    public Course setCourse(Location target, LongSupplier clock) {
         /**
-         * Get the semaphore associated with the tunnel.
+         * Start sailing from the current position to target. Nothing moves the ship from then on:
+         * locate() works the position out from the clock, and reaches target at the course's arrival
+         * time. Called by the thread sailing the ship, the only one that writes its location.
          *
-         * @return Semaphore: The semaphore for managing connections.
+         * @param target: Where the leg ends.
+         * @param clock:  The time the course is measured against, in ms.
+         * @return Course: The new course, for its arrival time.
          */
-        return semaphore;
+        long now = clock.getAsLong();
+        Course next;
+        WorldEpoch.begin();
+        try {
+            // The ship's own location moves to where the last leg left it, so the new leg starts there
+            Course current = this.course;
+            if (current != null) {
+                current.locate(now, this.location);
+            }
+            next = new Course(this.location.getX(), this.location.getY(), target.getX(), target.getY(), now,
+                    ShipMovement.STEP_DURATION_MS, clock);
+            this.course = next;
+        } finally {
+            WorldEpoch.end();
+        }
+        return next;
     }
 
-    @Override
-    public Location getLocation() {
+    public Course getCourse() {
         /**
-         * Get the location of the tunnel.
+         * Get the course of the ship's current or last leg.
          *
-         * @return Location: The location of the tunnel.
+         * @return Course: The course, or null if the ship has not sailed since it was built.
          */
-        return this.location;
+        return course;
     }
-}
 
-/**
- * LOCATION
- * ========================================================================================================
- * ========================================================================================================
- */
+    public void stopCourse() {
+        /**
+         * Stop the ship where it is now: its location no longer follows the course. Called by the
+         * thread sailing the ship, the only one that writes its location.
+         */
+        WorldEpoch.begin();
+        try {
+            Course current = this.course;
+            if (current != null) {
+                current.locate(this.location);
+            }
+            this.course = null;
+        } finally {
+            WorldEpoch.end();
+        }
+    }
 
-/**
- * ObjLocation
- */
-interface ObjLocation {
-    /**
-     * Get the location of an object.
-     *
-     * @return Location: The location of the object.
-     */
-    Location getLocation();
-}
-
-/**
- * Location
- */
-class Location {
-    private int x;
-    private int y;
-
-    public Location(int x, int y) {
+    public void setNameOfCreator(String nameOfCreator) {
         /**
-         * Initialize a Location with x and y coordinates.
+         * Set the name of the ship's creator.
          *
-         * @param x: The x-coordinate.
-         * @param y: The y-coordinate.
+         * @param nameOfCreator: The name of the ship's creator.
          */
-        this.x = x;
-        this.y = y;
+        this.nameOfCreator = nameOfCreator;
     }
 
-    public int getX() {
+    public String getNameOfCreator() {
         /**
-         * Get the x-coordinate of the location.
+         * Get the name of the ship's creator.
          *
-         * @return int: The x-coordinate.
+         * @return String: The name of the ship's creator.
          */
-        return x;
+        return nameOfCreator;
     }
 
-    public int getY() {
+    public long getID() {
         /**
-         * Get the y-coordinate of the location.
+         * Get the ID of the ship.
          *
-         * @return int: The y-coordinate.
+         * @return long: The ID of the ship, unique for the life of the process.
          */
-        return y;
+        return ID;
     }
 
-    public void setX(int x) {
+    public void hold() {
         /**
-         * Set the x-coordinate of the location.
-         *
-         * @param x: The new x-coordinate.
+         * Record a berth or voyage that refers to this ship; a held ship cannot be retired.
          */
-        this.x = x;
+        holds.incrementAndGet();
     }
 
-    public void setY(int y) {
+    public boolean unhold() {
         /**
-         * Set the y-coordinate of the location.
+         * Drop a hold taken with hold(). Use FleetManager.unhold() so a retiring ship is pooled.
          *
-         * @param y: The new y-coordinate.
+         * @return boolean: true if nothing holds the ship any more.
          */
-        this.y = y;
+        return holds.decrementAndGet() == 0;
     }
-}
-
-/**
- * PORT ELEMENTS
- * ========================================================================================================
- * ========================================================================================================
- */
-
-/**
- * PortElement<T>
- */
-interface PortElement<T> extends ShipElement<T> {
-    /**
-     * This interface extends ShipElement and represents elements related to a port.
-     *
-     * @param <T>: The type of element.
-     */
-}
-
-/**
- * ShipStorageCapacity
- */
-enum ShipStorageCapacity implements PortElement<Integer> {
-    BIG(8),
-    MIDDLE(4),
-    SMALL(2);
 
-    private final int value;
+    public void depart() {
+        /**
+         * Start a voyage. The voyage holds the ship until arrive() and unhold().
+         */
+        holds.incrementAndGet();
+        WorldEpoch.begin();
+        try {
+            voyageState.set(UNDERWAY);
+        } finally {
+            WorldEpoch.end();
+        }
+    }
 
-    ShipStorageCapacity(int value) {
+    public void cancelDeparture() {
         /**
-         * Initialize a ShipStorageCapacity enum value with a specified capacity value.
-         *
-         * @param value: The capacity value for the enum.
+         * Take back a depart() whose ship found no berth and stays where it is. The caller still
+         * drops the voyage hold.
          */
-        this.value = value;
+        WorldEpoch.begin();
+        try {
+            voyageState.set(IN_PORT);
+        } finally {
+            WorldEpoch.end();
+        }
+        refusals++;
     }
 
-    @Override
-    public Integer get() {
+    public int getRefusals() {
         /**
-         * Get the capacity value associated with the enum.
+         * Get the number of departures in a row refused for want of a berth.
          *
-         * @return int: The capacity value.
+         * @return int: The refusal count, reset when the ship reserves a berth.
          */
-        return this.value;
+        return refusals;
     }
-}
 
-/**
- * ShipStorage
- */
-class ShipStorage implements PortElement<List<Ship[]>> {
-    private final Ship[] big;
-    private final Ship[] middle;
-    private final Ship[] small;
+    public void clearRefusals() {
+        /**
+         * Reset the refusal count after the ship reserved a berth.
+         */
+        refusals = 0;
+    }
 
-    public ShipStorage(ShipStorageCapacity big, ShipStorageCapacity middle, ShipStorageCapacity small) {
+    public boolean deferDeparture() {
         /**
-         * Initialize a ShipStorage with different capacities for big, middle, and small
-         * ships.
+         * Called after the ship is unloaded: if it is still sailing, its next departure waits for
+         * the arrival instead of starting a second voyage on top of this one.
          *
-         * @param big:    Capacity for big ships.
-         * @param middle: Capacity for middle-sized ships.
-         * @param small:  Capacity for small ships.
+         * @return boolean: true if the arrival will send the ship on.
          */
-        this.big = new Ship[big.get()];
-        this.middle = new Ship[middle.get()];
-        this.small = new Ship[small.get()];
+        WorldEpoch.begin();
+        try {
+            return voyageState.compareAndSet(UNDERWAY, UNLOADED_UNDERWAY);
+        } finally {
+            WorldEpoch.end();
+        }
     }
 
-    public ShipStorage(List<Ship[]> ships) {
-        this.big = ships.get(0);
-        this.middle = ships.get(1);
-        this.small = ships.get(2);
+    public boolean arrive() {
+        /**
+         * End the voyage. The caller still drops the voyage hold.
+         *
+         * @return boolean: true if the ship was unloaded while sailing and must be sent on now.
+         */
+        WorldEpoch.begin();
+        try {
+            voyagePlan = null;
+            return voyageState.getAndSet(IN_PORT) == UNLOADED_UNDERWAY;
+        } finally {
+            WorldEpoch.end();
+        }
     }
 
-    @Override
-    public List<Ship[]> get() {
+    public void setVoyage(RoutePlan plan, int leg) {
         /**
-         * Get a list of ship arrays containing big, middle, and small ships.
+         * Record the route and stage of the current voyage, so a snapshot can resume it.
          *
-         * @return List<Ship[]>: A list of ship arrays.
+         * @param plan: The route being sailed.
+         * @param leg:  RoutePlan.LEG_TO_TUNNEL, LEG_IN_TUNNEL or LEG_TO_PORT.
          */
-        List<Ship[]> list = new ArrayList<>();
-        Collections.addAll(list, big, middle, small);
-        return list;
+        WorldEpoch.begin();
+        try {
+            this.voyagePlan = plan;
+            this.voyageLeg = leg;
+        } finally {
+            WorldEpoch.end();
+        }
     }
 
-    public Ship[] getBig() {
+    public RoutePlan getVoyagePlan() {
         /**
-         * Get the array of big ships.
+         * Get the route of the current voyage.
          *
-         * @return Ship[]: The array of big ships.
+         * @return RoutePlan: The route, or null if the ship is not sailing.
          */
-        return big;
+        return voyagePlan;
     }
 
-    public Ship[] getMiddle() {
+    public int getVoyageLeg() {
         /**
-         * Get the array of middle-sized ships.
+         * Get the stage of the current voyage.
          *
-         * @return Ship[]: The array of middle-sized ships.
+         * @return int: The RoutePlan leg the ship is on.
          */
-        return middle;
+        return voyageLeg;
     }
 
-    public Ship[] getSmall() {
+    public boolean isUnloadedUnderway() {
         /**
-         * Get the array of small ships.
+         * Check whether the ship was unloaded while sailing, so its arrival sends it on.
          *
-         * @return Ship[]: The array of small ships.
+         * @return boolean: true if the next departure is deferred to the arrival.
          */
-        return small;
+        return voyageState.get() == UNLOADED_UNDERWAY;
     }
-}
-
-/**
- * PortShipCapacity
- */
-enum PortShipCapacity implements PortElement<Integer> {
-    SMALL(4),
-    MIDDLE(16),
-    BIG(32);
 
-    private final int value;
+    public void completeVoyage() {
+        /**
+         * Count a voyage that reached its port.
+         */
+        WorldEpoch.begin();
+        try {
+            voyages.incrementAndGet();
+        } finally {
+            WorldEpoch.end();
+        }
+    }
 
-    PortShipCapacity(int value) {
+    public int getVoyages() {
         /**
-         * Initialize a PortShipCapacity enum value with a specified capacity value.
+         * Get the number of voyages completed since the ship was commissioned.
          *
-         * @param value: The capacity value for the enum.
+         * @return int: The number of completed voyages.
          */
-        this.value = value;
+        return voyages.get();
     }
 
-    @Override
-    public Integer get() {
+    public boolean isRetiring() {
         /**
-         * Get the capacity value associated with the enum.
+         * Check whether the ship is sailing its last voyages and must not be sent again.
          *
-         * @return Integer: The capacity value.
+         * @return boolean: true if the ship is retiring.
          */
-        return this.value;
+        return retiring;
     }
-}
-
-/**
- * PortProductCapacity
- */
-enum PortProductCapacity implements PortElement<Integer> {
-    SMALL(ShipCapacity.SMALL.get() * 4),
-    MIDDLE(ShipCapacity.MIDDLE.get() * 4),
-    BIG(ShipCapacity.BIG.get() * 4);
 
-    private final int value;
+    void markRetiring() {
+        /**
+         * Stop sending the ship; it retires once its berths and voyages are released.
+         */
+        WorldEpoch.begin();
+        try {
+            retiring = true;
+        } finally {
+            WorldEpoch.end();
+        }
+    }
 
-    PortProductCapacity(int value) {
+    boolean tryRetire() {
         /**
-         * Initialize a PortProductCapacity enum value with a specified capacity value.
+         * Retire a retiring ship if nothing holds it. Only one caller can succeed.
          *
-         * @param value: The capacity value for the enum.
+         * @return boolean: true if the ship is now retired.
          */
-        this.value = value;
+        return retiring && holds.compareAndSet(0, RETIRED);
     }
 
-    @Override
-    public Integer get() {
+    public boolean isRetired() {
         /**
-         * Get the capacity value associated with the enum.
+         * Check whether the ship waits in the fleet pool.
          *
-         * @return Integer: The capacity value.
+         * @return boolean: true if the ship is retired.
          */
-        return this.value;
+        return holds.get() == RETIRED;
     }
-}
 
-/**
- * SHIP ELEMENTS
- * ========================================================================================================
- * ========================================================================================================
- */
+    void restoreVoyages(int voyages) {
+        /**
+         * Set the completed voyage count of a ship restored from a snapshot.
+         */
+        this.voyages.set(voyages);
+    }
 
-/**
- * ShipElement
- */
-interface ShipElement<T> {
-    T get();
+    void recommission(long id, int x, int y, String nameOfCreator) {
+        /**
+         * Reuse a retired ship as a new one: new ID, position and creator, no voyages.
+         */
+        WorldEpoch.begin();
+        try {
+            this.ID = id;
+            this.course = null;
+            this.location.setX(x);
+            this.location.setY(y);
+            this.nameOfCreator = nameOfCreator;
+            this.voyages.set(0);
+            this.retiring = false;
+            this.voyageState.set(IN_PORT);
+            this.voyagePlan = null;
+            this.refusals = 0;
+            this.holds.set(0);
+        } finally {
+            WorldEpoch.end();
+        }
+    }
 }
 
 /**
- * ShipCapacity
+ * Port
  */
-enum ShipCapacity implements ShipElement<Integer> {
-    SMALL(90),
-    MIDDLE(180),
-    BIG(360);
-
-    private final int value;
+class Port implements ObjLocation {
+    private final PortDataBase portDataBase;
+    private final int ID;
+    private final Location location;
+    private final Product product;
+    private final CargoLedger cargo;
+    private final int productOrdinal;
+    private final PortSpec spec;
+    private final PortAdmission admission = new PortAdmission(this);
+    private volatile FabricShip fabricShip;
+    private volatile ShipStorage shipStorage;
 
-    ShipCapacity(int value) {
+    public Port(PortDataBase portDataBase,
+            int id,
+            Location location,
+            FabricShip fabricShip,
+            Product product,
+            ShipStorage shipStorage) {
         /**
-         * Initialize a ShipCapacity enum value with a specified capacity value.
+         * Initialize a Port with the specified attributes.
          *
-         * @param value: The capacity value for the enum.
+         * @param portDataBase: The database associated with the port.
+         * @param id:           The ID of the port.
+         * @param location:     The location of the port.
+         * @param fabricShip:   The fabric to create ships.
+         * @param product:      The product available at the port.
+         * @param shipStorage:  The storage for ships at the port.
          */
-        this.value = value;
+        this(portDataBase, id, location, product, null);
+        this.fabricShip = fabricShip;
+        this.shipStorage = shipStorage;
     }
 
-    @Override
-    public Integer get() {
+    public Port(PortDataBase portDataBase, int id, Location location, Product<?> product, PortSpec spec) {
         /**
-         * Get the capacity value associated with the enum.
+         * Initialize a Port whose FabricShip and ShipStorage are built from the spec the
+         * first time they are needed.
          *
-         * @return Integer: The capacity value.
+         * @param portDataBase: The database associated with the port.
+         * @param id:           The ID of the port.
+         * @param location:     The location of the port.
+         * @param product:      The product available at the port.
+         * @param spec:         The berths, shipyard and generation period of the port.
          */
-        return this.value;
+        this.portDataBase = portDataBase;
+        this.ID = id;
+        this.location = location;
+        this.product = product;
+        this.spec = spec;
+        this.productOrdinal = product.getProductOrdinal();
+        this.cargo = new CargoLedger();
+        if (product instanceof CargoProduct) {
+            ((CargoProduct) product).bindTo(cargo);
+        } else {
+            this.cargo.set(productOrdinal, (Integer) product.get());
+        }
     }
-}
 
-/**
- * PRODUCTS
- * ========================================================================================================
- * ========================================================================================================
- */
+    public void setShipStorage(ShipStorage shipStorage) {
+        this.shipStorage = shipStorage;
+    }
 
-/**
- * Product
+    public Product getProduct() {
+        /**
+         * Get the product available at the port.
+         *
+         * @return Product: The product at the port.
+         */
+        return product;
+    }
+
+    public CargoLedger getCargo() {
+        /**
+         * Get the cargo ledger of the port.
+         *
+         * @return CargoLedger: The port's stock, by product ordinal.
+         */
+        return cargo;
+    }
+
+    public int getProductOrdinal() {
+        /**
+         * Get the ordinal of the product the port trades in.
+         *
+         * @return int: The FabricProduct ordinal of the port's product.
+         */
+        return productOrdinal;
+    }
+
+    public FabricShip getFabricShip() {
+        /**
+         * Get the fabric for creating ships.
+         *
+         * @return FabricShip: The fabric ship associated with the port.
+         */
+        FabricShip fabric = fabricShip;
+        return fabric != null ? fabric : buildFabricShip();
+    }
+
+    public ShipStorage getShipStorage() {
+        /**
+         * Get the storage for ships at the port.
+         *
+         * @return ShipStorage: The ship storage at the port.
+         */
+        ShipStorage storage = shipStorage;
+        return storage != null ? storage : buildShipStorage();
+    }
+
+    public PortAdmission getAdmission() {
+        /**
+         * Get the controller that hands out the port's berths to departing ships.
+         *
+         * @return PortAdmission: The admission controller of the port.
+         */
+        return admission;
+    }
+
+    public boolean hasShipStorage() {
+        /**
+         * Check whether the port's storage exists yet, without building it.
+         *
+         * @return boolean: False for a scenario port that has not docked or built a ship.
+         */
+        return shipStorage != null;
+    }
+
+    public int getBerthCapacity() {
+        /**
+         * Get the number of berths of the port, without building its storage.
+         *
+         * @return int: The big, middle and small berths together.
+         */
+        ShipStorage storage = shipStorage;
+        return storage != null || spec == null ? getShipStorage().getCapacity() : spec.getBerthCapacity();
+    }
+
+    public int getBerthCount(ShipCapacity capacity) {
+        /**
+         * Get the number of berths of one capacity class, without building the port's storage.
+         *
+         * @param capacity: The capacity class of the berths.
+         * @return int: The number of berths of that class.
+         */
+        ShipStorage storage = shipStorage;
+        return storage != null || spec == null ? getShipStorage().getBerths(capacity).getCapacity()
+                : spec.getBerthCount(capacity);
+    }
+
+    public long getGenerationPeriodMs() {
+        /**
+         * Get how often the port builds a ship.
+         *
+         * @return long: The period of the port cycle in ms.
+         */
+        return spec != null ? spec.getGenerationPeriodMs() : ActivePort.PERIOD_MS;
+    }
+
+    private synchronized FabricShip buildFabricShip() {
+        if (fabricShip == null && spec != null) {
+            fabricShip = spec.createFabricShip(ID);
+        }
+        return fabricShip;
+    }
+
+    private synchronized ShipStorage buildShipStorage() {
+        if (shipStorage == null && spec != null) {
+            shipStorage = spec.createShipStorage();
+        }
+        return shipStorage;
+    }
+
+    public PortDataBase getPortDataBase() {
+        /**
+         * Get the database associated with the port.
+         *
+         * @return PortDataBase: The database of the port.
+         */
+        return portDataBase;
+    }
+
+    public int getID() {
+        /**
+         * Get the ID of the port.
+         *
+         * @return int: The ID of the port.
+         */
+        return ID;
+    }
+
+    @Override
+    public Location getLocation() {
+        /**
+         * Get the location of the port.
+         *
+         * @return Location: The location of the port.
+         */
+        return this.location;
+    }
+}
+
+/**
+ * Tunel
+ */
+class Tunnel implements ObjLocation {
+    static final int MAX_CONNECTIONS = 5;
+    private final TunnelAdmission admission;
+    private Location location;
+
+    public Tunnel(Location location) {
+        /**
+         * Initialize a Tunnel with a specified location, MAX_CONNECTIONS lanes and FIFO admission.
+         *
+         * @param location: The location of the tunnel.
+         */
+        this(location, new TunnelAdmission(MAX_CONNECTIONS, TunnelPolicy.FIFO));
+    }
+
+    public Tunnel(Location location, TunnelAdmission admission) {
+        /**
+         * Initialize a Tunnel with a specified location and admission scheduler.
+         *
+         * @param location:  The location of the tunnel.
+         * @param admission: The scheduler that admits ships into the tunnel lanes.
+         */
+        this.location = location;
+        this.admission = admission;
+    }
+
+    public TunnelAdmission getAdmission() {
+        /**
+         * Get the admission scheduler of the tunnel.
+         *
+         * @return TunnelAdmission: The scheduler managing the tunnel lanes.
+         */
+        return admission;
+    }
+
+    @Override
+    public Location getLocation() {
+        /**
+         * Get the location of the tunnel.
+         *
+         * @return Location: The location of the tunnel.
+         */
+        return this.location;
+    }
+}
+
+/**
+ * LOCATION
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * ObjLocation
+ */
+interface ObjLocation {
+    /**
+     * Get the location of an object.
+     *
+     * @return Location: The location of the object.
+     */
+    Location getLocation();
+
+    /**
+     * Write the current position of an object into a Location the caller owns.
+     *
+     * @param into: Where the position is written.
+     * @return Location: into.
+     */
+    default Location locate(Location into) {
+        Location location = getLocation();
+        into.setX(location.getX());
+        into.setY(location.getY());
+        return into;
+    }
+}
+
+/**
+ * Location
+ */
+class Location {
+    private int x;
+    private int y;
+
+    public Location(int x, int y) {
+        /**
+         * Initialize a Location with x and y coordinates.
+         *
+         * @param x: The x-coordinate.
+         * @param y: The y-coordinate.
+         */
+        this.x = x;
+        this.y = y;
+    }
+
+    public int getX() {
+        /**
+         * Get the x-coordinate of the location.
+         *
+         * @return int: The x-coordinate.
+         */
+        return x;
+    }
+
+    public int getY() {
+        /**
+         * Get the y-coordinate of the location.
+         *
+         * @return int: The y-coordinate.
+         */
+        return y;
+    }
+
+    public void setX(int x) {
+        /**
+         * Set the x-coordinate of the location.
+         *
+         * @param x: The new x-coordinate.
+         */
+        this.x = x;
+    }
+
+    public void setY(int y) {
+        /**
+         * Set the y-coordinate of the location.
+         *
+         * @param y: The new y-coordinate.
+         */
+        this.y = y;
+    }
+}
+
+/**
+ * PORT ELEMENTS
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * PortElement<T>
+ */
+interface PortElement<T> extends ShipElement<T> {
+    /**
+     * This interface extends ShipElement and represents elements related to a port.
+     *
+     * @param <T>: The type of element.
+     */
+}
+
+/**
+ * ShipStorageCapacity
+ */
+enum ShipStorageCapacity implements PortElement<Integer> {
+    BIG(8),
+    MIDDLE(4),
+    SMALL(2);
+
+    private final int value;
+
+    ShipStorageCapacity(int value) {
+        /**
+         * Initialize a ShipStorageCapacity enum value with a specified capacity value.
+         *
+         * @param value: The capacity value for the enum.
+         */
+        this.value = value;
+    }
+
+    @Override
+    public Integer get() {
+        /**
+         * Get the capacity value associated with the enum.
+         *
+         * @return int: The capacity value.
+         */
+        return this.value;
+    }
+}
+
+/**
+ * ShipStorage
+ */
+class ShipStorage implements PortElement<List<Ship[]>> {
+    private final BerthAllocator big;
+    private final BerthAllocator middle;
+    private final BerthAllocator small;
+
+    public ShipStorage(ShipStorageCapacity big, ShipStorageCapacity middle, ShipStorageCapacity small) {
+        /**
+         * Initialize a ShipStorage with different capacities for big, middle, and small
+         * ships.
+         *
+         * @param big:    Capacity for big ships.
+         * @param middle: Capacity for middle-sized ships.
+         * @param small:  Capacity for small ships.
+         */
+        this(big.get(), middle.get(), small.get());
+    }
+
+    public ShipStorage(int big, int middle, int small) {
+        /**
+         * Initialize a ShipStorage with any number of big, middle and small berths.
+         *
+         * @param big:    Berths for big ships.
+         * @param middle: Berths for middle-sized ships.
+         * @param small:  Berths for small ships.
+         */
+        this.big = new BerthAllocator(big);
+        this.middle = new BerthAllocator(middle);
+        this.small = new BerthAllocator(small);
+    }
+
+    public ShipStorage(List<Ship[]> ships) {
+        /**
+         * Initialize a ShipStorage from big, middle and small ship arrays; every non-null
+         * ship holds a reservation until occupy() records its arrival.
+         *
+         * @param ships: The big, middle and small ship arrays.
+         */
+        this.big = BerthAllocator.of(ships.get(0));
+        this.middle = BerthAllocator.of(ships.get(1));
+        this.small = BerthAllocator.of(ships.get(2));
+    }
+
+    @Override
+    public List<Ship[]> get() {
+        /**
+         * Get a snapshot of the big, middle and small berths.
+         *
+         * @return List<Ship[]>: A list of ship arrays.
+         */
+        List<Ship[]> list = new ArrayList<>();
+        Collections.addAll(list, big.snapshot(), middle.snapshot(), small.snapshot());
+        return list;
+    }
+
+    public BerthAllocator getBerths(ShipCapacity capacity) {
+        /**
+         * Get the berth allocator for a ship capacity class.
+         *
+         * @param capacity: The capacity class of the ship.
+         * @return BerthAllocator: The berths for that class.
+         */
+        switch (capacity) {
+            case SMALL:
+                return small;
+            case MIDDLE:
+                return middle;
+            case BIG:
+                return big;
+            default:
+                throw new IllegalArgumentException("Invalid ship capacity");
+        }
+    }
+
+    public int dock(ShipCapacity capacity, Ship ship) {
+        /**
+         * Reserve a free berth of its capacity class for a ship; it is docked once it arrives.
+         *
+         * @param capacity: The capacity class of the ship.
+         * @param ship:     The ship to dock.
+         * @return int: The berth index, or -1 if the class is full.
+         */
+        int slot = getBerths(capacity).claim(ship);
+        if (slot < 0) {
+            Metrics.BERTHS_REJECTED.increment();
+        }
+        return slot;
+    }
+
+    public int occupy(ShipCapacity capacity, Ship ship) {
+        /**
+         * Dock a ship that arrived in the berth reserved for it.
+         *
+         * @param capacity: The capacity class of the ship.
+         * @param ship:     The ship that arrived.
+         * @return int: The berth index, or -1 if no berth here is reserved for the ship.
+         */
+        return getBerths(capacity).occupy(ship);
+    }
+
+    public int undockAll(List<Ship> into) {
+        /**
+         * Undock every ship that has arrived, adding it to the given list. Reserved berths stay
+         * reserved.
+         *
+         * @param into: The list receiving the undocked ships.
+         * @return int: The number of ships undocked.
+         */
+        return big.drainTo(into) + middle.drainTo(into) + small.drainTo(into);
+    }
+
+    public int getOccupancy() {
+        /**
+         * Get the number of docked ships in all classes.
+         *
+         * @return int: The number of docked ships.
+         */
+        return big.getOccupancy() + middle.getOccupancy() + small.getOccupancy();
+    }
+
+    public int getReserved() {
+        /**
+         * Get the number of berths reserved for ships still at sea.
+         *
+         * @return int: The number of reserved berths.
+         */
+        return big.getReserved() + middle.getReserved() + small.getReserved();
+    }
+
+    public int getCapacity() {
+        /**
+         * Get the number of berths in all classes.
+         *
+         * @return int: The number of berths.
+         */
+        return big.getCapacity() + middle.getCapacity() + small.getCapacity();
+    }
+
+    public Ship[] getBig() {
+        /**
+         * Get a snapshot of the big berths.
+         *
+         * @return Ship[]: The array of big ships.
+         */
+        return big.snapshot();
+    }
+
+    public Ship[] getMiddle() {
+        /**
+         * Get a snapshot of the middle-sized berths.
+         *
+         * @return Ship[]: The array of middle-sized ships.
+         */
+        return middle.snapshot();
+    }
+
+    public Ship[] getSmall() {
+        /**
+         * Get a snapshot of the small berths.
+         *
+         * @return Ship[]: The array of small ships.
+         */
+        return small.snapshot();
+    }
+}
+
+/**
+ * BerthAllocator
+ * Lock-free berths for one ship capacity class. A bitmap of 64-bit words marks claimed berths;
+ * claiming CAS-sets the lowest free bit of a word and reserves the berth for a ship still at sea. A
+ * second bitmap marks the berths whose ship has arrived: occupy() sets its bit, and undocking takes
+ * only those, CAS-clearing the arrival bit first so one sweep takes the ship, then the claim bit.
+ * A bit is set before its ship is stored and cleared only after the ship was taken, so readers may
+ * briefly see a claimed berth that is still empty, but never lose a docked ship.
+ */
+class BerthAllocator {
+    private final int capacity;
+    private final AtomicReferenceArray<Ship> berths;
+    private final AtomicLongArray occupied;
+    private final AtomicLongArray arrived;
+    private final AtomicInteger claimed = new AtomicInteger();
+    private final AtomicInteger occupancy = new AtomicInteger();
+
+    public BerthAllocator(int capacity) {
+        this.capacity = capacity;
+        this.berths = new AtomicReferenceArray<>(capacity);
+        this.occupied = new AtomicLongArray((capacity + 63) >>> 6);
+        this.arrived = new AtomicLongArray((capacity + 63) >>> 6);
+    }
+
+    /**
+     * Berths reserved for the given ships; call occupy() for those already in port.
+     */
+    public static BerthAllocator of(Ship[] ships) {
+        BerthAllocator allocator = new BerthAllocator(ships.length);
+        for (Ship ship : ships) {
+            if (ship != null) {
+                allocator.claim(ship);
+            }
+        }
+        return allocator;
+    }
+
+    private long usableBits(int word) {
+        int bits = capacity - (word << 6);
+        return bits >= 64 ? -1L : (1L << bits) - 1;
+    }
+
+    public int claim(Ship ship) {
+        WorldEpoch.begin();
+        try {
+            for (int word = 0; word < occupied.length(); word++) {
+                long usable = usableBits(word);
+                long current = occupied.get(word);
+                long free = ~current & usable;
+                while (free != 0) {
+                    long bit = Long.lowestOneBit(free);
+                    if (occupied.compareAndSet(word, current, current | bit)) {
+                        int slot = (word << 6) + Long.numberOfTrailingZeros(bit);
+                        berths.set(slot, ship);
+                        claimed.incrementAndGet();
+                        return slot;
+                    }
+                    current = occupied.get(word);
+                    free = ~current & usable;
+                }
+            }
+            return -1;
+        } finally {
+            WorldEpoch.end();
+        }
+    }
+
+    /**
+     * Turns the ship's reservation into an occupied berth, once the ship has arrived.
+     *
+     * @return the berth index, or -1 if no berth here is reserved for the ship.
+     */
+    public int occupy(Ship ship) {
+        WorldEpoch.begin();
+        try {
+            for (int word = 0; word < occupied.length(); word++) {
+                long reserved = occupied.get(word) & ~arrived.get(word);
+                while (reserved != 0) {
+                    long bit = Long.lowestOneBit(reserved);
+                    reserved &= reserved - 1;
+                    int slot = (word << 6) + Long.numberOfTrailingZeros(bit);
+                    if (berths.get(slot) != ship) {
+                        continue;
+                    }
+                    long current;
+                    do {
+                        current = arrived.get(word);
+                    } while (!arrived.compareAndSet(word, current, current | bit));
+                    occupancy.incrementAndGet();
+                    return slot;
+                }
+            }
+            return -1;
+        } finally {
+            WorldEpoch.end();
+        }
+    }
+
+    public Ship release(int slot) {
+        WorldEpoch.begin();
+        try {
+            int word = slot >>> 6;
+            long bit = 1L << (slot & 63);
+            long current;
+            do {
+                current = arrived.get(word);
+                if ((current & bit) == 0) {
+                    // Free, still reserved for a ship at sea, or taken by another sweep
+                    return null;
+                }
+            } while (!arrived.compareAndSet(word, current, current & ~bit));
+            Ship ship = berths.getAndSet(slot, null);
+            do {
+                current = occupied.get(word);
+            } while (!occupied.compareAndSet(word, current, current & ~bit));
+            occupancy.decrementAndGet();
+            claimed.decrementAndGet();
+            return ship;
+        } finally {
+            WorldEpoch.end();
+        }
+    }
+
+    public int drainTo(List<Ship> into) {
+        int drained = 0;
+        for (int word = 0; word < arrived.length(); word++) {
+            long docked = arrived.get(word);
+            while (docked != 0) {
+                int slot = (word << 6) + Long.numberOfTrailingZeros(docked);
+                docked &= docked - 1;
+                Ship ship = release(slot);
+                if (ship != null) {
+                    into.add(ship);
+                    drained++;
+                }
+            }
+        }
+        return drained;
+    }
+
+    public Ship get(int slot) {
+        return berths.get(slot);
+    }
+
+    /**
+     * Whether the ship in the berth has arrived, rather than holding a reservation.
+     */
+    public boolean isDocked(int slot) {
+        return (arrived.get(slot >>> 6) & (1L << (slot & 63))) != 0;
+    }
+
+    public Ship[] snapshot() {
+        Ship[] ships = new Ship[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ships[i] = berths.get(i);
+        }
+        return ships;
+    }
+
+    public boolean isFull() {
+        return claimed.get() >= capacity;
+    }
+
+    /**
+     * The number of ships docked in this class; reserved berths are not counted.
+     */
+    public int getOccupancy() {
+        return occupancy.get();
+    }
+
+    public int getReserved() {
+        return claimed.get() - occupancy.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
+
+/**
+ * PortShipCapacity
+ */
+enum PortShipCapacity implements PortElement<Integer> {
+    SMALL(4),
+    MIDDLE(16),
+    BIG(32);
+
+    private final int value;
+
+    PortShipCapacity(int value) {
+        /**
+         * Initialize a PortShipCapacity enum value with a specified capacity value.
+         *
+         * @param value: The capacity value for the enum.
+         */
+        this.value = value;
+    }
+
+    @Override
+    public Integer get() {
+        /**
+         * Get the capacity value associated with the enum.
+         *
+         * @return Integer: The capacity value.
+         */
+        return this.value;
+    }
+}
+
+/**
+ * PortProductCapacity
+ */
+enum PortProductCapacity implements PortElement<Integer> {
+    SMALL(ShipCapacity.SMALL.get() * 4),
+    MIDDLE(ShipCapacity.MIDDLE.get() * 4),
+    BIG(ShipCapacity.BIG.get() * 4);
+
+    private final int value;
+
+    PortProductCapacity(int value) {
+        /**
+         * Initialize a PortProductCapacity enum value with a specified capacity value.
+         *
+         * @param value: The capacity value for the enum.
+         */
+        this.value = value;
+    }
+
+    @Override
+    public Integer get() {
+        /**
+         * Get the capacity value associated with the enum.
+         *
+         * @return Integer: The capacity value.
+         */
+        return this.value;
+    }
+}
+
+/**
+ * SHIP ELEMENTS
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * ShipElement
+ */
+interface ShipElement<T> {
+    T get();
+}
+
+/**
+ * ShipCapacity
+ */
+enum ShipCapacity implements ShipElement<Integer> {
+    SMALL(90),
+    MIDDLE(180),
+    BIG(360);
+
+    private final int value;
+
+    ShipCapacity(int value) {
+        /**
+         * Initialize a ShipCapacity enum value with a specified capacity value.
+         *
+         * @param value: The capacity value for the enum.
+         */
+        this.value = value;
+    }
+
+    @Override
+    public Integer get() {
+        /**
+         * Get the capacity value associated with the enum.
+         *
+         * @return Integer: The capacity value.
+         */
+        return this.value;
+    }
+}
+
+/**
+ * PRODUCTS
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * Product
+ */
+interface Product<T> extends ShipElement<T> {
+    T get();
+
+    void set(T nValue);
+
+    /**
+     * The FabricProduct ordinal of this product's type, used to match and key cargo without instanceof.
+     */
+    int getProductOrdinal();
+}
+
+/**
+ * CargoProduct
+ * A product whose amount lives in a CargoLedger slot, keyed by the product's FabricProduct ordinal.
+ * A ship's product keeps a single-slot ledger; a port binds its product into the port's own ledger,
+ * so unloading is a ledger-to-ledger transfer and a port holds one ledger for all its products.
+ */
+abstract class CargoProduct implements Product<Integer> {
+    private CargoLedger ledger;
+    private final int productOrdinal;
+
+    protected CargoProduct(int productOrdinal, int value) {
+        this.productOrdinal = productOrdinal;
+        this.ledger = CargoLedger.forProduct(productOrdinal);
+        ledger.set(productOrdinal, value);
+    }
+
+    /**
+     * Moves this product's amount into the given ledger and keeps it there from now on. Called by the
+     * port that owns the product, before the port is shared.
+     */
+    void bindTo(CargoLedger portLedger) {
+        portLedger.set(productOrdinal, ledger.get(productOrdinal));
+        this.ledger = portLedger;
+    }
+
+    @Override
+    public final int getProductOrdinal() {
+        return productOrdinal;
+    }
+
+    public CargoLedger getLedger() {
+        return ledger;
+    }
+
+    public long getAmount() {
+        return ledger.get(productOrdinal);
+    }
+
+    @Override
+    public Integer get() {
+        return (int) Math.min(getAmount(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void set(Integer nValue) {
+        ledger.set(productOrdinal, nValue);
+    }
+}
+
+/**
+ * Wood
+ */
+class Wood extends CargoProduct {
+    public Wood(int value) {
+        super(FabricProduct.WOOD_FABRIC.ordinal(), value);
+    }
+}
+
+/**
+ * Meat
+ */
+class Meat extends CargoProduct {
+    public Meat(int value) {
+        super(FabricProduct.MEAT_FABRIC.ordinal(), value);
+    }
+}
+
+/**
+ * Gold
+ */
+class Gold extends CargoProduct {
+    public Gold(int value) {
+        super(FabricProduct.GOLD_FABRIC.ordinal(), value);
+    }
+}
+
+/**
+ * FABRICS
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * Fabric
+ */
+interface Fabric<T> {
+    T create();
+
+    T create(int val);
+}
+
+/**
+ * FabricShipStorage
+ */
+class FabricShipStorage implements Fabric<ShipStorage> {
+    private ShipStorageCapacity big;
+    private ShipStorageCapacity middle;
+    private ShipStorageCapacity small;
+
+    public FabricShipStorage(ShipStorageCapacity big, ShipStorageCapacity middle, ShipStorageCapacity small) {
+        this.big = big;
+        this.middle = middle;
+        this.small = small;
+    }
+
+    @Override
+    public ShipStorage create() {
+        return new ShipStorage(this.big, this.middle, this.small);
+    }
+
+    @Override
+    public ShipStorage create(int val) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+}
+
+/**
+ * FabricPortDataBase
+ */
+class FabricPortDataBase implements Fabric<PortDataBase> {
+    @Override
+    public PortDataBase create() {
+        return new PortDataBase(new ArrayList<>());
+    }
+
+    @Override
+    public PortDataBase create(int val) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+}
+
+/**
+ * FabricTunel
+ * Creates tunnels at random locations of the world, with the lanes and policy of the startup options.
+ */
+class FabricTunel implements Fabric<Tunnel> {
+    static final int WORLD_SIZE = 100;
+
+    private Random random;
+    private WorldConfig config;
+
+    public FabricTunel(Random random) {
+        this(random, new WorldConfig(null));
+    }
+
+    public FabricTunel(Random random, WorldConfig config) {
+        this.random = random;
+        this.config = config;
+    }
+
+    @Override
+    public Tunnel create() {
+        return create(new Location(this.random.nextInt(WORLD_SIZE), this.random.nextInt(WORLD_SIZE)));
+    }
+
+    public Tunnel create(Location location) {
+        return new Tunnel(location, TunnelAdmissions.create(config));
+    }
+
+    @Override
+    public Tunnel create(int val) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+}
+
+/**
+ * FabricPort
+ * Creates a new Port with random products and location.
+ */
+class FabricPort implements Fabric<Port> {
+    private int idCount;
+    private final Random random;
+    private final PortDataBase portDataBase;
+    private final MultiFabricProduct multiFabricProduct;
+    private final FabricShipStorage fabricShipStorage;
+
+    public FabricPort(Random random, PortDataBase portDataBase,
+            MultiFabricProduct multiFabricProduct, FabricShipStorage fabricShipStorage) {
+        this.random = random;
+        this.portDataBase = portDataBase;
+        this.multiFabricProduct = multiFabricProduct;
+        this.fabricShipStorage = fabricShipStorage;
+        this.idCount = 0;
+    }
+
+    @Override
+    public Port create() {
+        this.idCount++;
+        List<Product> products = this.multiFabricProduct.create();
+        int prodLength = products.size();
+
+        return new Port(this.portDataBase, this.idCount,
+                new Location(this.random.nextInt(100), this.random.nextInt(100)),
+                new FabricShip(this.idCount, "Port: " + this.idCount, RandomStreams.split(this.random)),
+                products.get(this.random.nextInt(prodLength)),
+                this.fabricShipStorage.create());
+    }
+
+    @Override
+    public Port create(int val) {
+        this.idCount++;
+        List<Product> products = this.multiFabricProduct.create(val);
+        int prodLength = products.size();
+
+        return new Port(this.portDataBase, this.idCount,
+                new Location(this.random.nextInt(100), this.random.nextInt(100)),
+                new FabricShip(this.idCount, "Port: " + this.idCount, RandomStreams.split(this.random)),
+                products.get(this.random.nextInt(prodLength)),
+                this.fabricShipStorage.create());
+    }
+
+    public Port create(Location location) {
+        this.idCount++;
+        List<Product> products = this.multiFabricProduct.create();
+        int prodLength = products.size();
+
+        return new Port(this.portDataBase, this.idCount, location,
+                new FabricShip(this.idCount, "Port: " + this.idCount, RandomStreams.split(this.random)),
+                products.get(this.random.nextInt(prodLength)),
+                this.fabricShipStorage.create());
+    }
+
+    public void setIdCount(int idCount) {
+        this.idCount = idCount;
+    }
+
+    public int getIdCount() {
+        return idCount;
+    }
+
+}
+
+/**
+ * FabricShip
+ * Creates a new ship with random products and capacities.
+ */
+class FabricShip implements Fabric<Ship> {
+    private static final FabricProduct[] PRODUCTS = FabricProduct.values();
+    private static final ShipCapacity[] CAPACITIES = ShipCapacity.values();
+    private static final ShipIdAllocator SHIP_IDS = new ShipIdAllocator(ShipIdAllocator.DEFAULT_STRIPES);
+    private final Random random;
+    private final int portId;
+    private final MultiFabricProduct multiFabricProduct = new MultiFabricProduct();
+    private final MultiFabricShipCapacity multiFabricShipCapacity = new MultiFabricShipCapacity();
+    private String nameOfCreator;
+
+    public FabricShip() {
+        this(null, new Random());
+    }
+
+    public FabricShip(String nameOfCreator) {
+        this(nameOfCreator, new Random());
+    }
+
+    public FabricShip(String nameOfCreator, Random random) {
+        this(0, nameOfCreator, random);
+    }
+
+    /**
+     * A fabric for one port: its ship IDs come from the port's stripe of the ID allocator.
+     */
+    public FabricShip(int portId, String nameOfCreator, Random random) {
+        this.portId = portId;
+        this.nameOfCreator = nameOfCreator;
+        this.random = random;
+    }
+
+    private List<ShipElement<?>> prepareElements() {
+        List<ShipElement<?>> shipElements = new ArrayList<>(2);
+
+        List<Product> products = multiFabricProduct.create();
+        int randomProduct = random.nextInt(products.size());
+        shipElements.add(products.get(randomProduct));
+
+        List<ShipCapacity> shipCapacities = multiFabricShipCapacity.create();
+        int randomCapacity = random.nextInt(shipCapacities.size());
+        shipElements.add(shipCapacities.get(randomCapacity));
+
+        return shipElements;
+    }
+
+    private void prepareShip(Ship ship) {
+        ship.getProduct().set(ship.getShipCapacity().get());
+    }
+
+    private long addID() {
+        return SHIP_IDS.allocate(portId);
+    }
+
+    static long getLastId() {
+        return SHIP_IDS.getHighWater();
+    }
+
+    /**
+     * Continues ship IDs after the ships restored from a snapshot. Call after the ports are created.
+     */
+    static void resumeIds(long lastId) {
+        SHIP_IDS.resumeAfter(lastId);
+    }
+
+    public String getNameOfCreator() {
+        return nameOfCreator;
+    }
+
+    @Override
+    public Ship create() {
+        Location location = new Location(0, 0);
+        return create(location, nameOfCreator);
+    }
+
+    @Override
+    public Ship create(int val) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
+    public Ship create(Location location) {
+        return create(location, nameOfCreator);
+    }
+
+    public Ship create(Location location, String nameOfCreator) {
+        // The ship gets its own Location: sharing the port's would move the port with the ship
+        Ship ship = new Ship(addID(), prepareElements(), new Location(location.getX(), location.getY()));
+        prepareShip(ship);
+        ship.setNameOfCreator(nameOfCreator);
+        return ship;
+    }
+
+    /**
+     * Same random product and capacity as create(location), but takes a retired ship of that type
+     * from the fleet's pool when there is one instead of allocating a new ship, location and products.
+     */
+    public Ship create(Location location, FleetManager fleet) {
+        int productOrdinal = random.nextInt(PRODUCTS.length);
+        int capacityOrdinal = random.nextInt(CAPACITIES.length);
+        Ship ship = fleet.reuse(productOrdinal, capacityOrdinal);
+        FleetStore store = fleet.getStore();
+        long id = addID();
+        int index;
+        if (ship != null) {
+            ship.recommission(id, location.getX(), location.getY(), nameOfCreator);
+        } else if (store != null && (index = store.tryAdd(id, location.getX(), location.getY(),
+                CAPACITIES[capacityOrdinal], productOrdinal, 0, FleetStore.originPortOf(nameOfCreator))) >= 0) {
+            ship = store.view(index);
+        } else {
+            List<ShipElement<?>> shipElements = new ArrayList<>(2);
+            shipElements.add(PRODUCTS[productOrdinal].create());
+            shipElements.add(CAPACITIES[capacityOrdinal]);
+            ship = new Ship(id, shipElements, new Location(location.getX(), location.getY()));
+            ship.setNameOfCreator(nameOfCreator);
+        }
+        fleet.register(ship);
+        prepareShip(ship);
+        return ship;
+    }
+
+    /**
+     * Builds a ship straight into a FleetStore: same random product and capacity as create(),
+     * cargo filled to capacity, and no objects allocated.
+     */
+    public int createInto(FleetStore fleet, Location location, int originPort) {
+        int productOrdinal = random.nextInt(PRODUCTS.length);
+        ShipCapacity shipCapacity = CAPACITIES[random.nextInt(CAPACITIES.length)];
+        return fleet.add(addID(), location.getX(), location.getY(), shipCapacity, productOrdinal,
+                shipCapacity.get(), originPort);
+    }
+}
+
+/**
+ * FabricProduct
+ */
+enum FabricProduct implements Fabric<Product> {
+    MEAT_FABRIC("meat", (Fabric) new FabricMeat()),
+    GOLD_FABRIC("gold", (Fabric) new FabricGold()),
+    WOOD_FABRIC("wood", (Fabric) new FabricWood());
+
+    private final String name;
+    private final Fabric<Product> fabric;
+
+    FabricProduct(String name, Fabric<Product> fabric) {
+        this.name = name;
+        this.fabric = fabric;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static FabricProduct fromName(String name) {
+        for (FabricProduct product : values()) {
+            if (product.name.equals(name)) {
+                return product;
+            }
+        }
+        throw new IllegalArgumentException("Unknown product: " + name);
+    }
+
+    @Override
+    public Product<Product> create() {
+        return fabric.create();
+    }
+
+    @Override
+    public Product<Product> create(int val) {
+        return fabric.create(val);
+    }
+}
+
+/**
+ * FabricMeat
+ */
+class FabricMeat implements Fabric<Meat> {
+    @Override
+    public Meat create() {
+        return new Meat(0);
+    }
+
+    @Override
+    public Meat create(int val) {
+        return new Meat(val);
+    }
+}
+
+/**
+ * FabricGold
+ */
+class FabricGold implements Fabric<Gold> {
+    @Override
+    public Gold create() {
+        return new Gold(0);
+    }
+
+    @Override
+    public Gold create(int val) {
+        return new Gold(val);
+    }
+
+}
+
+/**
+ * FabricWood
+ */
+class FabricWood implements Fabric<Wood> {
+    @Override
+    public Wood create() {
+        return new Wood(0);
+    }
+
+    @Override
+    public Wood create(int val) {
+        return new Wood(val);
+    }
+}
+
+/**
+ * MULTI_FABRICS
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * MultiFabric
+ */
+interface MultiFabric<T> extends Fabric<List<T>> {
+    List<T> create();
+}
+
+/**
+ * MultiFabricShipCapacity
+ */
+class MultiFabricShipCapacity implements MultiFabric<ShipCapacity> {
+    @Override
+    public List<ShipCapacity> create() {
+        return Arrays.asList(ShipCapacity.values());
+    }
+
+    @Override
+    public List<ShipCapacity> create(int val) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+}
+
+/**
+ * MultiFabricProduct
+ */
+class MultiFabricProduct implements MultiFabric<Product> {
+    @Override
+    public List<Product> create() {
+        List<Product> products = new ArrayList<>(3);
+
+        for (FabricProduct fabrics : FabricProduct.values())
+            products.add(fabrics.create());
+
+        return products;
+    }
+
+    @Override
+    public List<Product> create(int val) {
+        List<Product> products = new ArrayList<>(3);
+
+        for (FabricProduct fabrics : FabricProduct.values())
+            products.add(fabrics.create(val));
+
+        return products;
+    }
+}
+
+/**
+ * GETTERS
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * Getter
+ */
+interface Getter<T> {
+    T get(Ship ship);
+}
+
+/**
+ * ShipCapacityGetter
+ * Retrieves the ship capacity element from a ship.
+ */
+class ShipCapacityGetter implements Getter<ShipCapacity> {
+    @Override
+    public ShipCapacity get(Ship ship) {
+        return ship.getShipCapacity();
+    }
+}
+
+/**
+ * ShipProductGetter
+ * Retrieves the product element from a ship.
+ */
+class ShipProductGetter implements Getter<Product> {
+    @Override
+    public Product get(Ship ship) {
+        return ship.getProduct();
+    }
+}
+
+/**
+ * SHIP LOGIC
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * Convertor
+ */
+class Converter {
+    public static Ship objLocationToShip(ObjLocation objLocation) {
+        return (objLocation instanceof Ship) ? (Ship) objLocation : null;
+    }
+}
+
+/**
+ * ShipRoad
+ * Represents a road for ships to travel between two locations through a tunnel.
+ */
+class ShipRoad implements Runnable {
+    private final RoutePlan plan;
+    private final ObjLocation firstObj;
+    private final ObjLocation secondObj;
+    private final Random random;
+    private final Tunnel tunnel;
+    private final TaskLauncher launcher;
+    private final int startLeg;
+
+    public ShipRoad(RoutePlan plan, ObjLocation firstObj, Random random) {
+        this(plan, firstObj, random, null, null);
+    }
+
+    /**
+     * With a launcher, a ship that was unloaded while sailing is sent on from its port on arrival.
+     */
+    public ShipRoad(RoutePlan plan, ObjLocation firstObj, Random random, Tunnel tunnel, TaskLauncher launcher) {
+        this(plan, firstObj, random, tunnel, launcher, RoutePlan.LEG_TO_TUNNEL);
+    }
+
+    /**
+     * Resumes a voyage at startLeg, for ships restored from a WorldSnapshot.
+     */
+    public ShipRoad(RoutePlan plan, ObjLocation firstObj, Random random, Tunnel tunnel, TaskLauncher launcher,
+            int startLeg) {
+        this.plan = plan;
+        this.firstObj = firstObj;
+        this.secondObj = plan.getTo();
+        this.random = random;
+        this.tunnel = tunnel;
+        this.launcher = launcher;
+        this.startLeg = startLeg;
+    }
+
+    static long shipId(ObjLocation objLocation) {
+        return (objLocation instanceof Ship) ? ((Ship) objLocation).getID() : -1;
+    }
+
+    static int portId(ObjLocation objLocation) {
+        return (objLocation instanceof Port) ? ((Port) objLocation).getID() : -1;
+    }
+
+    @Override
+    public void run() {
+        SpatialIndex<Ship> shipIndex = plan.getTo().getPortDataBase().getShipIndex();
+        long departedAt = System.currentTimeMillis();
+
+        try {
+            // Sail to the tunnel entrance, pass the tunnel on this task's own thread, then sail to the port
+            if (startLeg == RoutePlan.LEG_TO_TUNNEL) {
+                stage(RoutePlan.LEG_TO_TUNNEL);
+                new ShipMovement(firstObj, plan.getTunnel(), shipIndex).run();
+            }
+            if (startLeg != RoutePlan.LEG_TO_PORT) {
+                stage(RoutePlan.LEG_IN_TUNNEL);
+                new ShipEnterTunnel(plan.getTunnel(), this.firstObj, this.random).run();
+                if (Thread.currentThread().isInterrupted()) {
+                    EventLog.log(LogEvent.ROAD_INTERRUPTED, shipId(firstObj), portId(secondObj),
+                            firstObj.getLocation());
+                    return;
+                }
+            }
+
+            stage(RoutePlan.LEG_TO_PORT);
+            ShipMovement shipMovement = new ShipMovement(firstObj, secondObj, shipIndex);
+            shipMovement.run();
+            Metrics.VOYAGE_MS.record(System.currentTimeMillis() - departedAt);
+            if (firstObj instanceof Ship) {
+                EventJournal.record(JournalEvent.SHIP_ARRIVED, (Ship) firstObj, plan.getTo().getID(),
+                        plan.getTo().getLocation(), 0);
+                ((Ship) firstObj).completeVoyage();
+            }
+        } finally {
+            if (firstObj instanceof Ship) {
+                arrive((Ship) firstObj);
+            }
+        }
+    }
+
+    private void stage(int leg) {
+        if (firstObj instanceof Ship) {
+            ((Ship) firstObj).setVoyage(plan, leg);
+        }
+    }
+
+    private void arrive(Ship ship) {
+        Port port = plan.getTo();
+        FleetManager fleet = port.getPortDataBase().getFleetManager();
+        port.getAdmission().arrive(ship);
+        boolean sendOn = ship.arrive();
+        fleet.unhold(ship);
+        if (sendOn && launcher != null && !Thread.currentThread().isInterrupted() && !fleet.retireIfDue(ship)) {
+            launcher.launch(new SendShip(port, ship, RandomStreams.split(random), tunnel, launcher));
+        }
+    }
+}
+
+/**
+ * ShipEnterTunnel
+ * Represents a ship entering a tunnel.
+ */
+class ShipEnterTunnel implements Runnable {
+    static final int MIN_TIME_IN_TUNNEL_MS = 2000;
+    static final int TIME_IN_TUNNEL_SPREAD_MS = 8000;
+    static final long MEAN_TIME_IN_TUNNEL_MS = MIN_TIME_IN_TUNNEL_MS + TIME_IN_TUNNEL_SPREAD_MS / 2;
+
+    private final Tunnel tunnel;
+    private final Ship ship;
+    private final Random random;
+
+    public ShipEnterTunnel(Tunnel tunnel, ObjLocation objLocation, Random random) {
+        this.tunnel = tunnel;
+        this.ship = Converter.objLocationToShip(objLocation);
+        this.random = random;
+    }
+
+    @Override
+    public void run() {
+        // Check if the ship object is not null before accessing its methods
+        if (ship == null) {
+            // Handle the case when ship is null
+            EventLog.log(LogEvent.TUNNEL_NULL_SHIP, -1, -1, tunnel.getLocation());
+            return;
+        }
+
+        TunnelAdmission admission = this.tunnel.getAdmission();
+        try {
+            EventLog.log(LogEvent.TUNNEL_WAIT, ship.getID(), -1, tunnel.getLocation());
+            // Wait for a free lane; the tunnel's policy decides who goes first
+            long waitStartedAt = System.currentTimeMillis();
+            admission.acquire(ship);
+            Metrics.TUNNEL_WAIT_MS.record(System.currentTimeMillis() - waitStartedAt);
+        } catch (InterruptedException e) {
+            EventLog.log(LogEvent.TUNNEL_INTERRUPTED, ship.getID(), -1, tunnel.getLocation());
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        try {
+            // Calculate the time the ship will spend in the tunnel
+            final int timeInTunnel = random.nextInt(TIME_IN_TUNNEL_SPREAD_MS) + MIN_TIME_IN_TUNNEL_MS;
+
+            // Log the entry of the ship into the tunnel
+            EventLog.log(LogEvent.TUNNEL_ENTER, ship.getID(), -1, tunnel.getLocation());
+            EventJournal.record(JournalEvent.TUNNEL_ENTER, ship, -1, tunnel.getLocation(), 0);
+
+            // Simulate the time spent in the tunnel
+            long enteredAt = System.currentTimeMillis();
+            Thread.sleep(timeInTunnel);
+            Metrics.TUNNEL_TRANSIT_MS.record(System.currentTimeMillis() - enteredAt);
+
+            // Log the exit of the ship from the tunnel
+            EventLog.log(LogEvent.TUNNEL_EXIT, ship.getID(), -1, tunnel.getLocation());
+            EventJournal.record(JournalEvent.TUNNEL_EXIT, ship, -1, tunnel.getLocation(), 0);
+        } catch (InterruptedException e) {
+            // Log interruption details and re-interrupt the thread
+            EventLog.log(LogEvent.TUNNEL_INTERRUPTED, ship.getID(), -1, tunnel.getLocation());
+            Thread.currentThread().interrupt();
+        } finally {
+            // Ensure that the lane is released
+            admission.release();
+        }
+    }
+}
+
+/**
+ * ShipMovement
+ * Represents the movement of a ship from one location to another.
+ */
+class ShipMovement implements Runnable {
+    static final long STEP_DURATION_MS = 1000;
+
+    private final ObjLocation firstObj;
+    private final ObjLocation secondObj;
+    private final SpatialIndex<Ship> shipIndex;
+
+    public ShipMovement(ObjLocation firstObj, ObjLocation secondObj) {
+        this(firstObj, secondObj, null);
+    }
+
+    public ShipMovement(ObjLocation firstObj, ObjLocation secondObj, SpatialIndex<Ship> shipIndex) {
+        this.firstObj = firstObj;
+        this.secondObj = secondObj;
+        this.shipIndex = shipIndex;
+    }
+
+    @Override
+    public void run() {
+        final long shipId = ShipRoad.shipId(firstObj);
+        final int portId = ShipRoad.portId(secondObj);
+
+        // Destination coordinates travel with the event; the ship's own position is logged on arrival
+        EventLog.log(LogEvent.JOURNEY_START, shipId, portId, secondObj.getLocation());
+        long startedAt = System.currentTimeMillis();
+        Location target = secondObj.getLocation();
+        Course course;
+        if (firstObj instanceof Ship) {
+            course = ((Ship) firstObj).setCourse(target, System::currentTimeMillis);
+        } else {
+            Location from = firstObj.getLocation();
+            course = new Course(from.getX(), from.getY(), target.getX(), target.getY(), startedAt,
+                    STEP_DURATION_MS, System::currentTimeMillis);
+        }
+        updateIndex();
+
+        try {
+            // One wakeup for the whole leg: the course interpolates the position in between
+            long remaining;
+            while ((remaining = course.getArrivalAt() - System.currentTimeMillis()) > 0) {
+                Thread.sleep(remaining);
+            }
+        } catch (InterruptedException e) {
+            EventLog.log(LogEvent.MOVEMENT_INTERRUPTED, shipId, portId, firstObj.locate(new Location(0, 0)));
+            Thread.currentThread().interrupt();
+        }
+        // An interrupted leg still ends at the target, as the step-by-step movement did
+        WorldEpoch.begin();
+        try {
+            if (firstObj instanceof Ship) {
+                ((Ship) firstObj).stopCourse();
+            }
+            firstObj.getLocation().setX(target.getX());
+            firstObj.getLocation().setY(target.getY());
+        } finally {
+            WorldEpoch.end();
+        }
+        updateIndex();
+
+        EventLog.log(LogEvent.JOURNEY_END, shipId, portId, firstObj.getLocation());
+        Metrics.MOVEMENT_MS.record(System.currentTimeMillis() - startedAt);
+    }
+
+    private void updateIndex() {
+        if (shipIndex != null && firstObj instanceof Ship) {
+            Ship ship = (Ship) firstObj;
+            shipIndex.update(ship, ship.getCourse());
+        }
+    }
+}
+
+/**
+ * Course
+ * A leg from start to target at one unit per stepMs, X first and then Y, leaving at departedAt. Nothing
+ * moves along it: the position at any time is worked out from the clock when someone asks, so a leg of
+ * any length costs one wakeup, at getArrivalAt().
+ */
+class Course {
+    private final int startX;
+    private final int startY;
+    private final int targetX;
+    private final int targetY;
+    private final long departedAt;
+    private final long stepMs;
+    private final LongSupplier clock;
+
+    public Course(int startX, int startY, int targetX, int targetY, long departedAt, long stepMs,
+            LongSupplier clock) {
+        this.startX = startX;
+        this.startY = startY;
+        this.targetX = targetX;
+        this.targetY = targetY;
+        this.departedAt = departedAt;
+        this.stepMs = stepMs;
+        this.clock = clock;
+    }
+
+    public int getTargetX() {
+        return targetX;
+    }
+
+    public int getTargetY() {
+        return targetY;
+    }
+
+    public int getDistance() {
+        return Math.abs(targetX - startX) + Math.abs(targetY - startY);
+    }
+
+    public long getDepartedAt() {
+        return departedAt;
+    }
+
+    public long getDurationMs() {
+        return getDistance() * stepMs;
+    }
+
+    public long getArrivalAt() {
+        return departedAt + getDurationMs();
+    }
+
+    /**
+     * Writes the position at the clock's current time into location.
+     */
+    public void locate(Location location) {
+        locate(clock.getAsLong(), location);
+    }
+
+    public void locate(long time, Location location) {
+        int distanceX = Math.abs(targetX - startX);
+        int steps = (int) Math.max(0, Math.min(getDistance(), (time - departedAt) / stepMs));
+        if (steps <= distanceX) {
+            location.setX(startX + Integer.signum(targetX - startX) * steps);
+            location.setY(startY);
+        } else {
+            location.setX(targetX);
+            location.setY(startY + Integer.signum(targetY - startY) * (steps - distanceX));
+        }
+    }
+}
+
+/**
+ * TASK LAUNCHERS
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * TaskLauncher
+ * Runs a ship or port task asynchronously. Every task spawn in the process layer goes through it.
+ */
+interface TaskLauncher {
+    void launch(Runnable task);
+
+    String getName();
+}
+
+/**
+ * PlatformTaskLauncher
+ * One OS thread per task, the original behaviour.
+ */
+class PlatformTaskLauncher implements TaskLauncher {
+    @Override
+    public void launch(Runnable task) {
+        new Thread(task).start();
+    }
+
+    @Override
+    public String getName() {
+        return "platform";
+    }
+}
+
+/**
+ * VirtualTaskLauncher
+ * One virtual thread per task. Blocking on the tunnel semaphore or sleeping parks the virtual thread
+ * and frees its carrier, so hundreds of thousands of ships can be in flight at once.
+ * Thread.startVirtualThread is looked up at runtime so the project still compiles on older JDKs; where it
+ * is missing, tasks run on platform threads.
+ */
+class VirtualTaskLauncher implements TaskLauncher {
+    private static final MethodHandle START_VIRTUAL_THREAD = findStartVirtualThread();
+
+    private static final int FINAL_FEATURE_RELEASE = 21;
+
+    private static MethodHandle findStartVirtualThread() {
+        // JDK 19/20 expose the method as a preview API that throws unless previews are enabled
+        if (Runtime.version().feature() < FINAL_FEATURE_RELEASE
+                && !ManagementFactory.getRuntimeMXBean().getInputArguments().contains("--enable-preview")) {
+            return null;
+        }
+        try {
+            return MethodHandles.publicLookup().findStatic(Thread.class, "startVirtualThread",
+                    MethodType.methodType(Thread.class, Runnable.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    public static boolean isSupported() {
+        return START_VIRTUAL_THREAD != null;
+    }
+
+    @Override
+    public void launch(Runnable task) {
+        if (START_VIRTUAL_THREAD == null) {
+            new Thread(task).start();
+            return;
+        }
+        try {
+            START_VIRTUAL_THREAD.invoke(task);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not start virtual thread", e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "virtual";
+    }
+}
+
+/**
+ * InlineTaskLauncher
+ * Runs the task on the calling thread. Used where time is virtual and nothing may block.
+ */
+class InlineTaskLauncher implements TaskLauncher {
+    @Override
+    public void launch(Runnable task) {
+        task.run();
+    }
+
+    @Override
+    public String getName() {
+        return "inline";
+    }
+}
+
+/**
+ * TaskLaunchers
+ * Picks the launcher for the "launcher" startup option.
+ */
+class TaskLaunchers {
+    public static TaskLauncher create(WorldConfig config) {
+        String mode = config.getString("launcher", "platform");
+        if (mode.equals("pool")) {
+            return new SimulationScheduler(
+                    config.getInt("pool.threads", Runtime.getRuntime().availableProcessors() * 4),
+                    config.getInt("pool.queue", SimulationScheduler.DEFAULT_QUEUE_CAPACITY),
+                    QueuePolicy.fromName(config.getString("pool.policy", "block")),
+                    config.getInt("pool.tickThreads", 2));
+        }
+        return create(mode);
+    }
+
+    public static TaskLauncher create(String mode) {
+        switch (mode) {
+            case "virtual":
+                if (VirtualTaskLauncher.isSupported()) {
+                    return new VirtualTaskLauncher();
+                }
+                System.out.println("Virtual threads are not supported by this JVM, using platform threads");
+                return new PlatformTaskLauncher();
+            case "inline":
+                return new InlineTaskLauncher();
+            case "platform":
+                return new PlatformTaskLauncher();
+            default:
+                throw new IllegalArgumentException("Unknown launcher mode: " + mode);
+        }
+    }
+}
+
+/**
+ * QueuePolicy
+ * What SimulationScheduler does with a ship task when its work queue is full.
+ */
+enum QueuePolicy {
+    BLOCK("block"),
+    CALLER_RUNS("caller-runs"),
+    SHED("shed");
+
+    private final String name;
+
+    QueuePolicy(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static QueuePolicy fromName(String name) {
+        for (QueuePolicy policy : values()) {
+            if (policy.name.equals(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown queue policy: " + name);
+    }
+}
+
+/**
+ * SimulationScheduler
+ * Central scheduler: periodic port ticks on a ScheduledExecutorService and ship lifecycle stages
+ * on a bounded worker pool. When the work queue is full the QueuePolicy decides whether the
+ * submitter waits, runs the task itself or drops it, so overload never creates new threads.
+ */
+class SimulationScheduler implements TaskLauncher {
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    static final long STATS_PERIOD_MS = 10_000;
+
+    private final ScheduledExecutorService ticker;
+    private final ThreadPoolExecutor workers;
+    private final QueuePolicy policy;
+    private final ThreadLocal<Boolean> workerThread = ThreadLocal.withInitial(() -> Boolean.FALSE);
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder callerRuns = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+
+    public SimulationScheduler(int workerThreads, int queueCapacity, QueuePolicy policy, int tickThreads) {
+        this.policy = policy;
+        this.ticker = Executors.newScheduledThreadPool(tickThreads, namedThreads("port-tick-"));
+        ThreadFactory workerFactory = namedThreads("ship-worker-");
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                task -> workerFactory.newThread(() -> {
+                    workerThread.set(Boolean.TRUE);
+                    task.run();
+                }),
+                this::reject);
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> new Thread(task, prefix + counter.incrementAndGet());
+    }
+
+    @Override
+    public void launch(Runnable task) {
+        workers.execute(task);
+    }
+
+    @Override
+    public String getName() {
+        return "pool(" + workers.getMaximumPoolSize() + " threads, " + policy.getName() + ")";
+    }
+
+    public ScheduledFuture<?> schedulePeriodic(Runnable task, long initialDelayMs, long periodMs) {
+        return ticker.scheduleWithFixedDelay(task, initialDelayMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void reject(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            shed.increment();
+            return;
+        }
+        switch (policy) {
+            case BLOCK:
+                // A worker waiting on its own full queue could deadlock the pool, so it runs the task instead
+                if (workerThread.get()) {
+                    callerRuns.increment();
+                    task.run();
+                    return;
+                }
+                blocked.increment();
+                try {
+                    executor.getQueue().put(task);
+                } catch (InterruptedException e) {
+                    shed.increment();
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            case CALLER_RUNS:
+                callerRuns.increment();
+                task.run();
+                return;
+            case SHED:
+            default:
+                shed.increment();
+        }
+    }
+
+    public int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return workers.getActiveCount();
+    }
+
+    public long getCompletedCount() {
+        return workers.getCompletedTaskCount();
+    }
+
+    public long getBlockedCount() {
+        return blocked.sum();
+    }
+
+    public long getCallerRunsCount() {
+        return callerRuns.sum();
+    }
+
+    public long getShedCount() {
+        return shed.sum();
+    }
+
+    public long getRejectedCount() {
+        return getBlockedCount() + getCallerRunsCount() + getShedCount();
+    }
+
+    public String getStats() {
+        return "Scheduler: queue=" + getQueueDepth() + ", active=" + getActiveCount()
+                + ", completed=" + getCompletedCount() + ", rejected=" + getRejectedCount()
+                + " (blocked=" + getBlockedCount() + ", callerRuns=" + getCallerRunsCount()
+                + ", shed=" + getShedCount() + ")";
+    }
+
+    public void shutdown() {
+        ticker.shutdownNow();
+        workers.shutdownNow();
+    }
+}
+
+/**
+ * PORT LOGIC
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+/**
+ * ActivePort
+ */
+class ActivePort implements Runnable {
+    static final int SLEEP_DURATION_MS = 2000;
+    static final long PERIOD_MS = SLEEP_DURATION_MS + PortGenShip.SLEEP_DURATION_MS;
+
+    private final Port port;
+    private final Random random;
+    private final Tunnel tunnel;
+    private final TaskLauncher launcher;
+    private final PortGenShip portGenShip;
+    private final PortCheckShipStorage portCheckShipStorage;
+    private final long idleMs;
+
+    public ActivePort(Port port, Random random, Tunnel tunnel, TaskLauncher launcher) {
+        this.port = port;
+        this.idleMs = idleMs(port);
+        this.random = random;
+        this.tunnel = tunnel;
+        this.launcher = launcher;
+        // A port runs one cycle at a time, so both stages are created once and reused every cycle
+        this.portGenShip = new PortGenShip(port, random, tunnel, launcher);
+        this.portCheckShipStorage = new PortCheckShipStorage(port, tunnel, random, launcher);
+    }
+
+    @Override
+    public void run() {
+        final int portId = port.getID();
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                EventLog.log(LogEvent.PORT_SLEEPING, -1, portId, port.getLocation());
+                Thread.sleep(idleMs);
+                generateAndProcessShips();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                EventLog.log(LogEvent.PORT_INTERRUPTED, -1, portId, port.getLocation());
+                return;
+            }
+        }
+    }
+
+    /**
+     * The part of the port's generation period spent sleeping before a cycle; the rest is the
+     * PortGenShip build time, so a period shorter than that runs cycles back to back.
+     */
+    static long idleMs(Port port) {
+        return Math.max(0, port.getGenerationPeriodMs() - PortGenShip.SLEEP_DURATION_MS);
+    }
+
+    private void generateAndProcessShips() {
+        EventLog.log(LogEvent.PORT_GENERATING, -1, port.getID(), port.getLocation());
+        portGenShip.run();
+        EventLog.log(LogEvent.PORT_CHECKING_STORAGE, -1, port.getID(), port.getLocation());
+        portCheckShipStorage.run();
+    }
+
+    /**
+     * One port cycle without sleeping, for callers that schedule the cycle themselves
+     * (SimulationScheduler runs it every generation period of the port).
+     */
+    public void tick() {
+        EventLog.log(LogEvent.PORT_GENERATING, -1, port.getID(), port.getLocation());
+        portGenShip.generate();
+        EventLog.log(LogEvent.PORT_CHECKING_STORAGE, -1, port.getID(), port.getLocation());
+        portCheckShipStorage.run();
+    }
+}
+
+/**
+ * PortCheckShipStorage
+ */
+class PortCheckShipStorage implements Runnable {
+    private Port port;
+    private Random random;
+    private final Tunnel tunnel;
+    private final TaskLauncher launcher;
+    private final List<Ship> found = new ArrayList<>();
+
+    public PortCheckShipStorage(Port port, Tunnel tunnel, Random random, TaskLauncher launcher) {
+        this.port = port;
+        this.tunnel = tunnel;
+        this.random = random;
+        this.launcher = launcher;
+    }
+
+    @Override
+    public void run() {
+        List<Ship> ships = undockShips();
+        EventLog.log(LogEvent.STORAGE_CLEANED, -1, port.getID(), port.getLocation());
+
+        for (Ship ship : ships) {
+            EventLog.log(LogEvent.STORAGE_FOUND_SHIP, ship.getID(), port.getID(), port.getLocation());
+            new PortUnloadShip(this.port, ship, random, this.tunnel, this.launcher).run();
+        }
+    }
+
+    /**
+     * Takes every docked ship out of the storage and drops the berth holds. Ships docking
+     * concurrently either land in this sweep or stay docked for the next one. The returned list is
+     * reused by the next sweep of this instance.
+     */
+    public List<Ship> undockShips() {
+        found.clear();
+        if (!port.hasShipStorage()) {
+            // A scenario port that has not built or docked a ship yet has nothing to sweep
+            return found;
+        }
+        port.getShipStorage().undockAll(found);
+        FleetManager fleet = port.getPortDataBase().getFleetManager();
+        for (Ship ship : found) {
+            EventJournal.record(JournalEvent.SHIP_UNDOCKED, ship, port.getID(), port.getLocation(), 0);
+            fleet.unhold(ship);
+        }
+        return found;
+    }
+}
+
+/**
+ * PortUnloadShip
+ */
+class PortUnloadShip implements Runnable {
+    private Port port;
+    private Ship ship;
+    private Random random;
+    private final Tunnel tunnel;
+    private final TaskLauncher launcher;
+
+    public PortUnloadShip(Port port, Ship ship, Random random, Tunnel tunnel, TaskLauncher launcher) {
+        this.port = port;
+        this.ship = ship;
+        this.random = random;
+        this.tunnel = tunnel;
+        this.launcher = launcher;
+    }
+
+    @Override
+    public void run() {
+        EventLog.log(LogEvent.UNLOAD_START, ship.getID(), port.getID(), port.getLocation());
+        unload();
+
+        EventLog.log(LogEvent.UNLOAD_DONE, ship.getID(), port.getID(), port.getLocation());
+        if (retireIfDue() || ship.deferDeparture()) {
+            return;
+        }
+        launcher.launch(new SendShip(port, ship, RandomStreams.split(this.random), this.tunnel, this.launcher));
+
+    }
+
+    /**
+     * Retires the ship if it has sailed its last voyage.
+     *
+     * @return true if the ship is retiring and must not be sent again.
+     */
+    public boolean retireIfDue() {
+        return port.getPortDataBase().getFleetManager().retireIfDue(ship);
+    }
+
+    public long unload() {
+        Metrics.SHIPS_UNLOADED.increment();
+        // Ports only take the product they trade in; other cargo stays on board
+        int productOrdinal = ship.getProductOrdinal();
+        if (productOrdinal != port.getProductOrdinal()) {
+            return 0;
+        }
+        Product<Integer> cargo = ship.getProduct();
+        long amount;
+        if (cargo instanceof CargoProduct) {
+            amount = CargoLedger.transfer(((CargoProduct) cargo).getLedger(), port.getCargo(), productOrdinal);
+        } else if (cargo instanceof FleetCargo) {
+            amount = ((FleetCargo) cargo).unloadInto(port.getCargo());
+        } else {
+            return 0;
+        }
+        Metrics.CARGO_UNLOADED.add(amount);
+        EventJournal.record(JournalEvent.SHIP_UNLOADED, ship.getID(), port.getID(), port.getLocation().getX(),
+                port.getLocation().getY(), (int) amount, productOrdinal);
+        return amount;
+    }
+}
+
+/**
+ * PortGenShip
+ */
+class PortGenShip implements Runnable {
+    private final Port port;
+    private Random random;
+    private final Tunnel tunnel;
+    private final TaskLauncher launcher;
+    static final int SHIP_COST_THRESHOLD = 100;
+    static final long SLEEP_DURATION_MS = 5000;
+
+    public PortGenShip(Port port, Random random, Tunnel tunnel, TaskLauncher launcher) {
+        this.port = port;
+        this.random = random;
+        this.tunnel = tunnel;
+        this.launcher = launcher;
+    }
+
+    @Override
+    public void run() {
+        generate();
+        sleepThread();
+    }
+
+    public void generate() {
+        EventLog.log(LogEvent.PORT_CHECKING_PRODUCT, -1, port.getID(), port.getLocation());
+        if (reserveShip()) {
+            createAndSendShip();
+        }
+    }
+
+    private void createAndSendShip() {
+        Ship newShip = buildShip();
+        EventLog.log(LogEvent.SHIP_BUILT, newShip.getID(), port.getID(), port.getLocation());
+        Runnable sendShipTask = new SendShip(this.port, newShip, RandomStreams.split(random), tunnel, launcher);
+        launcher.launch(sendShipTask);
+    }
+
+    public Ship buildShip() {
+        Metrics.SHIPS_GENERATED.increment();
+        Metrics.shipsGenerated(this.port.getID()).increment();
+        Ship ship = this.port.getFabricShip().create(this.port.getLocation(),
+                this.port.getPortDataBase().getFleetManager());
+        EventJournal.recordCreated(ship, this.port.getID());
+        return ship;
+    }
+
+    /**
+     * Takes a place in the fleet if the port has enough product to build a ship; gives the place back
+     * if it has not.
+     *
+     * @return true if a ship may be built.
+     */
+    public boolean reserveShip() {
+        FleetManager fleet = this.port.getPortDataBase().getFleetManager();
+        if (!fleet.tryCommission()) {
+            EventLog.log(LogEvent.FLEET_FULL, -1, port.getID(), port.getLocation());
+            return false;
+        }
+        if (!hasEnoughProduct()) {
+            fleet.cancelCommission();
+            EventLog.log(LogEvent.PORT_LOW_PRODUCT, -1, port.getID(), port.getLocation());
+            return false;
+        }
+        return true;
+    }
+
+    public boolean hasEnoughProduct() {
+        return this.port.getCargo().get(this.port.getProductOrdinal()) > SHIP_COST_THRESHOLD;
+    }
+
+    private void sleepThread() {
+        try {
+            Thread.sleep(SLEEP_DURATION_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/**
+ * SendShip
+ */
+class SendShip implements Runnable {
+    private Port port;
+    private Ship ship;
+    private Random random;
+    private final Tunnel tunnel;
+    private final TaskLauncher launcher;
+
+    public SendShip(Port port, Ship ship, Random random, Tunnel tunnel, TaskLauncher launcher) {
+        this.port = port;
+        this.ship = ship;
+        this.random = random;
+        this.tunnel = tunnel;
+        this.launcher = launcher;
+    }
+
+    @Override
+    public void run() {
+        Port randomPort = this.port.getPortDataBase().getDestinationSelector().select(this.port, this.random);
+        ShipCapacity shipCapacity = ship.getShipCapacity();
+        EventLog.log(LogEvent.SHIP_SENT, ship.getID(), randomPort.getID(), randomPort.getLocation());
+        EventJournal.record(JournalEvent.SHIP_SENT, ship, port.getID(), randomPort.getID());
+
+        AppendShip appendShip = new AppendShip(shipCapacity, ship, port, randomPort, RandomStreams.split(random),
+                tunnel, launcher);
+        launcher.launch(appendShip);
+    }
+
+}
+
+/**
+ * AppendShip
+ */
+class AppendShip implements Runnable {
+    private ShipCapacity shipCapacity;
+    private Ship newShip;
+    private final Port origin;
+    private Port port;
+    private Random random;
+    private boolean added = false;
+    private final Tunnel tunnel;
+    private final TaskLauncher launcher;
+
+    public boolean getAdded() {
+        return this.added;
+    }
+
+    public AppendShip(ShipCapacity shipCapacity, Ship newShip, Port origin, Port port, Random random, Tunnel tunnel,
+            TaskLauncher launcher) {
+        this.shipCapacity = shipCapacity;
+        this.newShip = newShip;
+        this.origin = origin;
+        this.port = port;
+        this.random = random;
+        this.tunnel = tunnel;
+        this.launcher = launcher;
+    }
+
+    @Override
+    public void run() {
+        EventLog.log(LogEvent.BERTH_CHECK, newShip.getID(), port.getID(), port.getLocation());
+        switch (shipCapacity) {
+            case SMALL:
+            case MIDDLE:
+            case BIG:
+                // Depart before docking: a sweep that unloads the ship from now on defers to the arrival
+                newShip.depart();
+                if (!reserve()) {
+                    long backoffMs = refuse();
+                    if (backoffMs >= 0) {
+                        hold(backoffMs);
+                    }
+                    break;
+                }
+                EventLog.log(LogEvent.SHIP_DOCKED, newShip.getID(), port.getID(), port.getLocation());
+                startShipRoadThread();
+                break;
+            default:
+                handleDefaultCase();
+                break;
+        }
+    }
+
+    public Port getPort() {
+        return port;
+    }
+
+    public boolean dock() {
+        // Hold before the ship becomes visible in the storage, so a sweep cannot retire it meanwhile
+        newShip.hold();
+        int berth = port.getAdmission().reserve(shipCapacity, newShip);
+        added = berth >= 0;
+        if (!added) {
+            newShip.unhold();
+        } else {
+            // The ship is still at sea; PortAdmission.arrive() journals SHIP_BERTHED when it docks
+            EventJournal.record(JournalEvent.SHIP_RESERVED, newShip, port.getID(), port.getLocation(), berth);
+            newShip.clearRefusals();
+        }
+        return added;
+    }
+
+    /**
+     * Claims the berth the ship sails to before it leaves: at the chosen port or, if that one is
+     * full, at the nearest port with a free berth of the ship's class. Call after depart().
+     */
+    public boolean reserve() {
+        if (dock()) {
+            return true;
+        }
+        Port redirect = port.getAdmission().redirect(origin, shipCapacity);
+        if (redirect == null) {
+            return false;
+        }
+        Metrics.SHIPS_REDIRECTED.increment();
+        EventLog.log(LogEvent.SHIP_REDIRECTED, newShip.getID(), redirect.getID(), redirect.getLocation());
+        EventJournal.record(JournalEvent.SHIP_SENT, newShip, origin.getID(), redirect.getID());
+        port = redirect;
+        return dock();
+    }
+
+    /**
+     * Takes back depart() for a ship no port could berth: it stays at its origin, in no storage.
+     * Returns how long it waits before it is sent again, or -1 if it retired instead.
+     */
+    public long refuse() {
+        newShip.cancelDeparture();
+        Metrics.SHIPS_HELD.increment();
+        EventLog.log(LogEvent.NO_BERTH, newShip.getID(), port.getID(), port.getLocation());
+        EventJournal.record(JournalEvent.SHIP_HELD, newShip, origin.getID(), newShip.getRefusals());
+        origin.getPortDataBase().getFleetManager().unhold(newShip);
+        return newShip.isRetired() ? -1 : ShipHolding.backoffMs(newShip.getRefusals(), random);
+    }
+
+    private void hold(long backoffMs) {
+        Random retryRandom = RandomStreams.split(random);
+        origin.getPortDataBase().getShipHolding().hold(backoffMs,
+                () -> launcher.launch(new SendShip(origin, newShip, retryRandom, tunnel, launcher)));
+    }
+
+    private void startShipRoadThread() {
+        EventLog.log(LogEvent.ROAD_PREPARED, newShip.getID(), port.getID(), port.getLocation());
+        Runnable shipRoadRunnable = new ShipRoad(planRoute(), this.newShip, RandomStreams.split(this.random),
+                this.tunnel, this.launcher);
+        launcher.launch(shipRoadRunnable);
+    }
+
+    public RoutePlan planRoute() {
+        RoutePlanner routePlanner = port.getPortDataBase().getRoutePlanner();
+        return routePlanner != null
+                ? routePlanner.plan(origin, port, random)
+                : RoutePlan.through(origin, port, tunnel);
+    }
+
+    private void handleDefaultCase() {
+        EventLog.log(LogEvent.NO_BERTH, newShip.getID(), port.getID(), port.getLocation());
+        hold(ShipHolding.BASE_BACKOFF_MS);
+    }
+}
+
+/**
+ * SIMULATION ENGINE
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * VirtualClock
+ * Simulated time in milliseconds, advanced only by the EventEngine and read by telemetry while it runs.
+ */
+class VirtualClock {
+    private volatile long now;
+
+    public long getNow() {
+        return now;
+    }
+
+    public void advanceTo(long time) {
+        if (time < now) {
+            throw new IllegalStateException("Virtual time cannot go backwards: " + time + " < " + now);
+        }
+        this.now = time;
+    }
+}
+
+/**
+ * SimEvent
+ * A timestamped action on the virtual timeline. Events with the same time fire in scheduling order.
+ */
+abstract class SimEvent implements Comparable<SimEvent> {
+    private long time;
+    private long sequence;
+
+    void setSchedule(long time, long sequence) {
+        this.time = time;
+        this.sequence = sequence;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public abstract void fire(EventEngine engine);
+
+    @Override
+    public int compareTo(SimEvent other) {
+        int byTime = Long.compare(this.time, other.time);
+        return byTime != 0 ? byTime : Long.compare(this.sequence, other.sequence);
+    }
+}
+
+/**
+ * EventEngine
+ * Discrete-event loop: pops the earliest event, jumps the clock to it and fires it.
+ */
+class EventEngine {
+    private final PriorityQueue<SimEvent> queue = new PriorityQueue<>();
+    private final VirtualClock clock = new VirtualClock();
+    private long sequence;
+    private long processed;
+
+    public void schedule(long delayMs, SimEvent event) {
+        event.setSchedule(clock.getNow() + Math.max(0, delayMs), sequence++);
+        queue.add(event);
+    }
+
+    /**
+     * Moves the clock of an engine with no events yet to a restored start time.
+     */
+    public void startAt(long time) {
+        if (!queue.isEmpty()) {
+            throw new IllegalStateException("The start time must be set before events are scheduled");
+        }
+        clock.advanceTo(time);
+    }
+
+    public long runUntil(long endTime) {
+        while (!queue.isEmpty() && queue.peek().getTime() <= endTime) {
+            SimEvent event = queue.poll();
+            clock.advanceTo(event.getTime());
+            event.fire(this);
+            processed++;
+        }
+        if (clock.getNow() < endTime) {
+            clock.advanceTo(endTime);
+        }
+        return processed;
+    }
+
+    public long getNow() {
+        return clock.getNow();
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public int getPending() {
+        return queue.size();
+    }
+}
+
+/**
+ * EventWorld
+ * Drives the Port/Ship/Tunnel model on virtual time instead of sleeping threads.
+ */
+class EventWorld {
+    private final EventEngine engine = new EventEngine();
+    private final LongSupplier clock = engine::getNow;
+    private final PortDataBase portDataBase;
+    private final Tunnel tunnel;
+    private final Random random;
+    private final TaskLauncher launcher = new InlineTaskLauncher();
+    private final Map<Ship, Long> departures = new IdentityHashMap<>();
+    private long shipsBuilt;
+    private long shipsArrived;
+    private long shipsUnloaded;
+
+    public EventWorld(PortDataBase portDataBase, Tunnel tunnel, Random random) {
+        this.portDataBase = portDataBase;
+        this.tunnel = tunnel;
+        this.random = random;
+        EventJournal.setClock(clock);
+        EventLog.setClock(clock);
+    }
+
+    public void run(long durationMs) {
+        for (Port port : portDataBase.getPorts()) {
+            engine.schedule(ActivePort.SLEEP_DURATION_MS, new PortTickEvent(this, port));
+        }
+
+        long started = System.nanoTime();
+        engine.runUntil(engine.getNow() + durationMs);
+        long wallMs = (System.nanoTime() - started) / 1_000_000;
+
+        System.out.println("Virtual time: " + engine.getNow() + " ms, wall time: " + wallMs + " ms");
+        System.out.println("Events processed: " + engine.getProcessed() + ", pending: " + engine.getPending());
+        System.out.println("Ships built: " + shipsBuilt + ", arrived: " + shipsArrived
+                + ", unloaded: " + shipsUnloaded);
+        RoutePlanner routePlanner = portDataBase.getRoutePlanner();
+        System.out.println(routePlanner != null
+                ? routePlanner.getTunnelNetwork().getStats(engine.getNow())
+                : tunnel.getAdmission().getStats(engine.getNow()));
+        if (Metrics.isEnabled()) {
+            System.out.println(Metrics.REGISTRY.snapshot(engine.getNow()));
+        }
+    }
+
+    public EventEngine getEngine() {
+        return engine;
+    }
+
+    void onPortTick(Port port) {
+        PortGenShip portGenShip = new PortGenShip(port, random, tunnel, launcher);
+        if (portGenShip.reserveShip()) {
+            shipsBuilt++;
+            dispatch(port, portGenShip.buildShip());
+        }
+        engine.schedule(PortGenShip.SLEEP_DURATION_MS, new StorageSweepEvent(this, port));
+    }
+
+    void onStorageSweep(Port port) {
+        PortCheckShipStorage check = new PortCheckShipStorage(port, tunnel, random, launcher);
+        for (Ship ship : check.undockShips()) {
+            engine.schedule(0, new UnloadEvent(this, port, ship));
+        }
+        engine.schedule(ActivePort.idleMs(port), new PortTickEvent(this, port));
+    }
+
+    void onUnload(Port port, Ship ship) {
+        PortUnloadShip portUnloadShip = new PortUnloadShip(port, ship, random, tunnel, launcher);
+        portUnloadShip.unload();
+        shipsUnloaded++;
+        if (!portUnloadShip.retireIfDue() && !ship.deferDeparture()) {
+            dispatch(port, ship);
+        }
+    }
+
+    void onTunnelEnter(TunnelEnterEvent event) {
+        event.getShip().setVoyage(event.getPlan(), RoutePlan.LEG_IN_TUNNEL);
+        AdmissionTicket ticket = new AdmissionTicket(event.getShip(), event, engine.getNow());
+        if (event.getPlan().getTunnel().getAdmission().offer(ticket, engine.getNow())) {
+            passTunnel(event, ticket.getRequestedAt());
+        }
+    }
+
+    private void passTunnel(TunnelEnterEvent event, long requestedAt) {
+        int timeInTunnel = random.nextInt(ShipEnterTunnel.TIME_IN_TUNNEL_SPREAD_MS)
+                + ShipEnterTunnel.MIN_TIME_IN_TUNNEL_MS;
+        Metrics.TUNNEL_WAIT_MS.record(engine.getNow() - requestedAt);
+        Metrics.TUNNEL_TRANSIT_MS.record(timeInTunnel);
+        EventJournal.record(JournalEvent.TUNNEL_ENTER, event.getShip(), event.getPlan().getTo().getID(),
+                event.getPlan().getTunnel().getLocation(), 0);
+        engine.schedule(timeInTunnel, new TunnelExitEvent(this, event.getShip(), event.getPlan()));
+    }
+
+    void onTunnelExit(Ship ship, RoutePlan plan) {
+        EventJournal.record(JournalEvent.TUNNEL_EXIT, ship, plan.getTo().getID(), plan.getTunnel().getLocation(), 0);
+        AdmissionTicket next = plan.getTunnel().getAdmission().release(engine.getNow());
+        if (next != null) {
+            passTunnel((TunnelEnterEvent) next.getPayload(), next.getRequestedAt());
+        }
+        ship.setVoyage(plan, RoutePlan.LEG_TO_PORT);
+        startLeg(ship, plan, RoutePlan.LEG_TO_PORT);
+    }
+
+    /**
+     * One event per leg: the ship follows a Course on the virtual clock and the event fires when it
+     * reaches the waypoint.
+     */
+    private void startLeg(Ship ship, RoutePlan plan, int leg) {
+        Course course = ship.setCourse(plan.getWaypoint(leg).getLocation(), clock);
+        portDataBase.getShipIndex().update(ship, course);
+        engine.schedule(course.getDurationMs(), new ShipLegEvent(this, ship, plan, leg));
+    }
+
+    void onLegEnd(Ship ship, RoutePlan plan, int leg) {
+        Metrics.MOVEMENT_MS.record(engine.getNow() - ship.getCourse().getDepartedAt());
+        portDataBase.getShipIndex().update(ship);
+        if (leg == RoutePlan.LEG_TO_TUNNEL) {
+            engine.schedule(0, new TunnelEnterEvent(this, ship, plan));
+        } else {
+            engine.schedule(0, new ShipArrivalEvent(this, ship, plan.getTo()));
+        }
+    }
+
+    void onShipArrival(Ship ship, Port target) {
+        shipsArrived++;
+        EventJournal.record(JournalEvent.SHIP_ARRIVED, ship, target.getID(), target.getLocation(), 0);
+        ship.completeVoyage();
+        target.getAdmission().arrive(ship);
+        boolean sendOn = ship.arrive();
+        FleetManager fleet = portDataBase.getFleetManager();
+        fleet.unhold(ship);
+        Long departedAt = departures.remove(ship);
+        if (departedAt != null) {
+            Metrics.VOYAGE_MS.record(engine.getNow() - departedAt);
+        }
+        if (sendOn && !fleet.retireIfDue(ship)) {
+            dispatch(target, ship);
+        }
+    }
+
+    private void dispatch(Port from, Ship ship) {
+        Port target = portDataBase.getDestinationSelector().select(from, random);
+        EventJournal.record(JournalEvent.SHIP_SENT, ship, from.getID(), target.getID());
+        ShipCapacity shipCapacity = ship.getShipCapacity();
+        AppendShip appendShip = new AppendShip(shipCapacity, ship, from, target, random, tunnel, launcher);
+        ship.depart();
+        if (!appendShip.reserve()) {
+            long backoffMs = appendShip.refuse();
+            if (backoffMs >= 0) {
+                portDataBase.getShipHolding().enter();
+                engine.schedule(backoffMs, new ShipRetryEvent(this, from, ship));
+            }
+            return;
+        }
+        departures.put(ship, engine.getNow());
+        RoutePlan plan = appendShip.planRoute();
+        ship.setVoyage(plan, RoutePlan.LEG_TO_TUNNEL);
+        startLeg(ship, plan, RoutePlan.LEG_TO_TUNNEL);
+    }
+
+    void onShipRetry(Port from, Ship ship) {
+        portDataBase.getShipHolding().leave();
+        dispatch(from, ship);
+    }
+
+    /**
+     * Continues a world restored from a WorldSnapshot: the clock starts at the snapshot's virtual time
+     * and every ship that was sailing resumes the leg it was on.
+     */
+    public void resume(long virtualTimeMs, List<Ship> underway) {
+        engine.startAt(virtualTimeMs);
+        for (Ship ship : underway) {
+            RoutePlan plan = ship.getVoyagePlan();
+            if (ship.getVoyageLeg() == RoutePlan.LEG_IN_TUNNEL) {
+                engine.schedule(0, new TunnelEnterEvent(this, ship, plan));
+            } else {
+                startLeg(ship, plan, ship.getVoyageLeg());
+            }
+        }
+    }
+}
+
+/**
+ * PortTickEvent
+ * A port wakes up and tries to build a ship.
+ */
+class PortTickEvent extends SimEvent {
+    private final EventWorld world;
+    private final Port port;
+
+    public PortTickEvent(EventWorld world, Port port) {
+        this.world = world;
+        this.port = port;
+    }
+
+    @Override
+    public void fire(EventEngine engine) {
+        world.onPortTick(port);
+    }
+}
+
+/**
+ * StorageSweepEvent
+ * A port checks its storage and schedules unloading of every docked ship.
+ */
+class StorageSweepEvent extends SimEvent {
+    private final EventWorld world;
+    private final Port port;
+
+    public StorageSweepEvent(EventWorld world, Port port) {
+        this.world = world;
+        this.port = port;
+    }
+
+    @Override
+    public void fire(EventEngine engine) {
+        world.onStorageSweep(port);
+    }
+}
+
+/**
+ * UnloadEvent
+ * A port unloads one ship and sends it to the next port.
+ */
+class UnloadEvent extends SimEvent {
+    private final EventWorld world;
+    private final Port port;
+    private final Ship ship;
+
+    public UnloadEvent(EventWorld world, Port port, Ship ship) {
+        this.world = world;
+        this.port = port;
+        this.ship = ship;
+    }
+
+    @Override
+    public void fire(EventEngine engine) {
+        world.onUnload(port, ship);
+    }
+}
+
+/**
+ * TunnelEnterEvent
+ * A ship asks for a tunnel permit; it waits in the tunnel queue if none is free.
+ */
+class TunnelEnterEvent extends SimEvent {
+    private final EventWorld world;
+    private final Ship ship;
+    private final RoutePlan plan;
+
+    public TunnelEnterEvent(EventWorld world, Ship ship, RoutePlan plan) {
+        this.world = world;
+        this.ship = ship;
+        this.plan = plan;
+    }
+
+    public Ship getShip() {
+        return ship;
+    }
+
+    public RoutePlan getPlan() {
+        return plan;
+    }
+
+    @Override
+    public void fire(EventEngine engine) {
+        world.onTunnelEnter(this);
+    }
+}
+
+/**
+ * TunnelExitEvent
+ * A ship leaves the tunnel, frees its permit and starts the leg to the target port.
+ */
+class TunnelExitEvent extends SimEvent {
+    private final EventWorld world;
+    private final Ship ship;
+    private final RoutePlan plan;
+
+    public TunnelExitEvent(EventWorld world, Ship ship, RoutePlan plan) {
+        this.world = world;
+        this.ship = ship;
+        this.plan = plan;
+    }
+
+    @Override
+    public void fire(EventEngine engine) {
+        world.onTunnelExit(ship, plan);
+    }
+}
+
+/**
+ * ShipLegEvent
+ * A ship reaches the waypoint of its current route leg.
+ */
+class ShipLegEvent extends SimEvent {
+    private final EventWorld world;
+    private final Ship ship;
+    private final RoutePlan plan;
+    private final int leg;
+
+    public ShipLegEvent(EventWorld world, Ship ship, RoutePlan plan, int leg) {
+        this.world = world;
+        this.ship = ship;
+        this.plan = plan;
+        this.leg = leg;
+    }
+
+    @Override
+    public void fire(EventEngine engine) {
+        world.onLegEnd(ship, plan, leg);
+    }
+}
+
+/**
+ * ShipArrivalEvent
+ * A ship reaches its target port.
+ */
+class ShipArrivalEvent extends SimEvent {
+    private final EventWorld world;
+    private final Ship ship;
+    private final Port target;
+
+    public ShipArrivalEvent(EventWorld world, Ship ship, Port target) {
+        this.world = world;
+        this.ship = ship;
+        this.target = target;
+    }
+
+    @Override
+    public void fire(EventEngine engine) {
+        world.onShipArrival(ship, target);
+    }
+}
+
+/**
+ * ShipRetryEvent
+ * A ship held at its origin for want of a berth is sent again.
+ */
+class ShipRetryEvent extends SimEvent {
+    private final EventWorld world;
+    private final Port from;
+    private final Ship ship;
+
+    public ShipRetryEvent(EventWorld world, Port from, Ship ship) {
+        this.world = world;
+        this.from = from;
+        this.ship = ship;
+    }
+
+    @Override
+    public void fire(EventEngine engine) {
+        world.onShipRetry(from, ship);
+    }
+}
+
+/**
+ * TickTask
+ * Runs a body over [0, count) in chunks of chunkSize on a ForkJoinPool. A body must only touch what its
+ * chunk owns; anything shared is merged after the pool returns, in index order, so the result does not
+ * depend on which thread ran which chunk.
+ */
+class TickTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    interface Body {
+        void run(int from, int to);
+    }
+
+    private final Body body;
+    private final int count;
+    private final int chunkSize;
+    private final int fromChunk;
+    private final int toChunk;
+
+    private TickTask(Body body, int count, int chunkSize, int fromChunk, int toChunk) {
+        this.body = body;
+        this.count = count;
+        this.chunkSize = chunkSize;
+        this.fromChunk = fromChunk;
+        this.toChunk = toChunk;
+    }
+
+    static void run(ForkJoinPool pool, int count, int chunkSize, Body body) {
+        int chunks = (count + chunkSize - 1) / chunkSize;
+        if (chunks == 1) {
+            body.run(0, count);
+        } else if (chunks > 1) {
+            pool.invoke(new TickTask(body, count, chunkSize, 0, chunks));
+        }
+    }
+
+    @Override
+    protected void compute() {
+        if (toChunk - fromChunk == 1) {
+            body.run(fromChunk * chunkSize, Math.min(count, toChunk * chunkSize));
+            return;
+        }
+        int middle = (fromChunk + toChunk) >>> 1;
+        invokeAll(new TickTask(body, count, chunkSize, fromChunk, middle),
+                new TickTask(body, count, chunkSize, middle, toChunk));
+    }
+}
+
+/**
+ * TickVoyage
+ * A ship between two ports in a TickWorld: the leg it is on, when it ends, and what the last movement
+ * phase found.
+ */
+class TickVoyage {
+    static final int SAILING = 0;
+    static final int AT_TUNNEL = 1;
+    static final int ARRIVED = 2;
+
+    final Ship ship;
+    final Port from;
+    final Port target;
+    final long departedAt;
+    RoutePlan plan;
+    int leg;
+    int outcome;
+    long arrivalAt;
+    long exitAt;
+    long retryAt;
+
+    TickVoyage(Ship ship, Port from, Port target, long departedAt) {
+        this.ship = ship;
+        this.from = from;
+        this.target = target;
+        this.departedAt = departedAt;
+    }
+}
+
+/**
+ * TickPort
+ * What one port owns in a TickWorld: its random stream, its cycle and the voyages handed to it by the
+ * last merge. Only the task for this port touches it during a parallel phase.
+ */
+class TickPort {
+    final Port port;
+    final Random random;
+    final PortCheckShipStorage storageCheck;
+    final List<TickVoyage> arrivals = new ArrayList<>();
+    final List<TickVoyage> departures = new ArrayList<>();
+    final List<TickVoyage> incoming = new ArrayList<>();
+    final List<TickVoyage> launched = new ArrayList<>();
+    final List<TickVoyage> refused = new ArrayList<>();
+    final List<TickVoyage> held = new ArrayList<>();
+    final TickEffects effects = new TickEffects();
+    long nextGenerationAt;
+    long nextSweepAt = Long.MAX_VALUE;
+    long shipsBuilt;
+    long shipsArrived;
+    long shipsUnloaded;
+
+    TickPort(Port port, Random random, Tunnel tunnel, TaskLauncher launcher, long startAt) {
+        this.port = port;
+        this.random = random;
+        this.storageCheck = new PortCheckShipStorage(port, tunnel, random, launcher);
+        this.nextGenerationAt = startAt + ActivePort.SLEEP_DURATION_MS;
+    }
+}
+
+/**
+ * TickTunnel
+ * One tunnel of a TickWorld with the ships in it and the requests merged for this tick.
+ */
+class TickTunnel {
+    final Tunnel tunnel;
+    final Random random;
+    final List<TickVoyage> requests = new ArrayList<>();
+    final List<TickVoyage> inTransit = new ArrayList<>();
+    final List<TickVoyage> exited = new ArrayList<>();
+    final TickEffects effects = new TickEffects();
+
+    TickTunnel(Tunnel tunnel, Random random) {
+        this.tunnel = tunnel;
+        this.random = random;
+    }
+}
+
+/**
+ * TickEffects
+ * What one port or tunnel of a TickWorld journals and returns to the fleet pools during a parallel
+ * phase. The task for that port or tunnel installs its TickEffects while it runs; EventJournal.record
+ * and FleetManager append to it instead of the shared journal and pools, and the serial merge applies
+ * every port's or tunnel's effects in index order. Records are packed into one long array that only
+ * grows, so a warm tick allocates nothing here.
+ */
+final class TickEffects {
+    private static final ThreadLocal<TickEffects> CURRENT = new ThreadLocal<>();
+    private static final int STRIDE = 5;
+    private static final long INT_MASK = 0xFFFFFFFFL;
+
+    private long[] records = new long[16 * STRIDE];
+    private int recordCount;
+    private final List<Ship> pooled = new ArrayList<>();
+
+    /**
+     * The effects of the port or tunnel the calling thread is running, or null outside a parallel phase.
+     */
+    static TickEffects current() {
+        return CURRENT.get();
+    }
+
+    void enter() {
+        CURRENT.set(this);
+    }
+
+    static void exit() {
+        CURRENT.remove();
+    }
+
+    void record(long time, int type, long shipId, int portId, int x, int y, int value, int aux) {
+        int at = recordCount * STRIDE;
+        if (at == records.length) {
+            records = Arrays.copyOf(records, records.length * 2);
+        }
+        records[at] = time;
+        records[at + 1] = shipId;
+        records[at + 2] = (long) type << 32 | (portId & INT_MASK);
+        records[at + 3] = (long) x << 32 | (y & INT_MASK);
+        records[at + 4] = (long) value << 32 | (aux & INT_MASK);
+        recordCount++;
+    }
+
+    void pool(Ship ship) {
+        pooled.add(ship);
+    }
+
+    /**
+     * Appends the held records to the journal and the retired ships to fleet's pools, in the order
+     * they were made, and empties this TickEffects.
+     */
+    void apply(FleetManager fleet) {
+        for (int i = 0; i < recordCount; i++) {
+            int at = i * STRIDE;
+            EventJournal.recordAt(records[at], (int) (records[at + 2] >> 32), records[at + 1],
+                    (int) records[at + 2], (int) (records[at + 3] >> 32), (int) records[at + 3],
+                    (int) (records[at + 4] >> 32), (int) records[at + 4]);
+        }
+        recordCount = 0;
+        for (Ship ship : pooled) {
+            fleet.pool(ship);
+        }
+        pooled.clear();
+    }
+}
+
+/**
+ * TickWorld
+ * Drives the Port/Ship/Tunnel model in fixed ticks of one movement step on a ForkJoinPool. Every tick
+ * runs the same phases, each parallel over what it owns and separated by a merge in index order:
+ *
+ *   1. ships whose Course reached its waypoint leave the sailing list (chunks of ships)
+ *   2. tunnels let ships out, then admit the ships that reached them (one task per tunnel)
+ *   3. ports take their arrivals, then sweep and unload their storage (chunks of ports)
+ *   4. ports send the held ships that are due again, and ports that are due build their
+ *      ship, in port order on the calling thread, so ship IDs and fleet places are handed out the same
+ *      way every run
+ *   5. departing ships reserve a berth at their target and plan their route (chunks of target ports);
+ *      a refused ship goes back to its origin's holding list, to be sent again in a later phase 4
+ *
+ * Ships reaching a tunnel or a port are handed over in the order of the sailing list, and departures in
+ * port order. What a port or tunnel journals and retires in phases 2, 3 and 5 is held in its TickEffects
+ * and applied in the same order by the merge after the phase, so a run, its journal and the pooled ship
+ * each retired ship becomes are repeatable for a seed whatever the number of threads.
+ */
+class TickWorld {
+    static final long TICK_MS = ShipMovement.STEP_DURATION_MS;
+    static final int SHIP_CHUNK = 1024;
+    static final int PORT_CHUNK = 64;
+
+    private final PortDataBase portDataBase;
+    private final Tunnel tunnel;
+    private final ForkJoinPool pool;
+    private final TaskLauncher launcher = new InlineTaskLauncher();
+    private final List<TickPort> ports = new ArrayList<>();
+    private final Map<Port, TickPort> portOf = new IdentityHashMap<>();
+    private final List<TickTunnel> tunnels = new ArrayList<>();
+    private final Map<Tunnel, TickTunnel> tunnelOf = new IdentityHashMap<>();
+    private List<TickVoyage> sailing = new ArrayList<>();
+    private List<TickVoyage> nextSailing = new ArrayList<>();
+    private volatile long now;
+    private final LongSupplier clock = this::getNow;
+    private long ticks;
+
+    public TickWorld(PortDataBase portDataBase, Tunnel tunnel, RandomStreams randomStreams, int threads) {
+        this.portDataBase = portDataBase;
+        this.tunnel = tunnel;
+        this.pool = new ForkJoinPool(threads);
+        for (Port port : portDataBase.getPorts()) {
+            TickPort tickPort = new TickPort(port, randomStreams.forPort(port.getID()), tunnel, launcher, 0);
+            ports.add(tickPort);
+            portOf.put(port, tickPort);
+        }
+        RoutePlanner routePlanner = portDataBase.getRoutePlanner();
+        List<Tunnel> all = routePlanner != null ? routePlanner.getTunnels() : Collections.singletonList(tunnel);
+        for (int i = 0; i < all.size(); i++) {
+            TickTunnel tickTunnel = new TickTunnel(all.get(i), randomStreams.stream(RandomStreams.EVENTS, i));
+            tunnels.add(tickTunnel);
+            tunnelOf.put(all.get(i), tickTunnel);
+        }
+        EventJournal.setClock(clock);
+        EventLog.setClock(clock);
+    }
+
+    public static TickWorld create(WorldConfig config, PortDataBase portDataBase, Tunnel tunnel,
+            RandomStreams randomStreams) {
+        return new TickWorld(portDataBase, tunnel, randomStreams,
+                config.getInt("ticks.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    public void run(long durationMs) {
+        long endTime = now + durationMs;
+        long started = System.nanoTime();
+        try {
+            while (now + TICK_MS <= endTime) {
+                now += TICK_MS;
+                tick();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        long wallMs = (System.nanoTime() - started) / 1_000_000;
+
+        long built = 0;
+        long arrived = 0;
+        long unloaded = 0;
+        for (TickPort port : ports) {
+            built += port.shipsBuilt;
+            arrived += port.shipsArrived;
+            unloaded += port.shipsUnloaded;
+        }
+        System.out.println("Virtual time: " + now + " ms, wall time: " + wallMs + " ms");
+        System.out.println("Ticks: " + ticks + " on " + pool.getParallelism() + " threads, sailing: " + sailing.size());
+        System.out.println("Ships built: " + built + ", arrived: " + arrived + ", unloaded: " + unloaded);
+        RoutePlanner routePlanner = portDataBase.getRoutePlanner();
+        System.out.println(routePlanner != null
+                ? routePlanner.getTunnelNetwork().getStats(now)
+                : tunnel.getAdmission().getStats(now));
+        if (Metrics.isEnabled()) {
+            System.out.println(Metrics.REGISTRY.snapshot(now));
+        }
+    }
+
+    public long getNow() {
+        return now;
+    }
+
+    private void tick() {
+        ticks++;
+        TickTask.run(pool, sailing.size(), SHIP_CHUNK, this::moveShips);
+        mergeMoves();
+        FleetManager fleet = portDataBase.getFleetManager();
+        TickTask.run(pool, tunnels.size(), 1, this::passTunnels);
+        for (TickTunnel tickTunnel : tunnels) {
+            tickTunnel.effects.apply(fleet);
+            sailing.addAll(tickTunnel.exited);
+            tickTunnel.exited.clear();
+        }
+        TickTask.run(pool, ports.size(), PORT_CHUNK, this::runPorts);
+        for (TickPort port : ports) {
+            port.effects.apply(fleet);
+        }
+        for (TickPort port : ports) {
+            if (!port.held.isEmpty()) {
+                retryHeld(port);
+            }
+            if (port.nextGenerationAt <= now) {
+                generate(port);
+            }
+        }
+        mergeDepartures();
+        TickTask.run(pool, ports.size(), PORT_CHUNK, this::berthDepartures);
+        for (TickPort port : ports) {
+            port.effects.apply(fleet);
+            sailing.addAll(port.launched);
+            port.launched.clear();
+            for (TickVoyage voyage : port.refused) {
+                portOf.get(voyage.from).held.add(voyage);
+            }
+            port.refused.clear();
+        }
+    }
+
+    /**
+     * Ships follow a Course on the tick clock, so a tick only has to find the ones whose leg is over.
+     */
+    private void moveShips(int from, int to) {
+        SpatialIndex<Ship> shipIndex = portDataBase.getShipIndex();
+        for (int i = from; i < to; i++) {
+            TickVoyage voyage = sailing.get(i);
+            if (voyage.arrivalAt > now) {
+                voyage.outcome = TickVoyage.SAILING;
+                continue;
+            }
+            voyage.outcome = voyage.leg == RoutePlan.LEG_TO_TUNNEL ? TickVoyage.AT_TUNNEL : TickVoyage.ARRIVED;
+            Metrics.MOVEMENT_MS.record(now - voyage.ship.getCourse().getDepartedAt());
+            shipIndex.update(voyage.ship);
+        }
+    }
+
+    private void startLeg(TickVoyage voyage, int leg) {
+        voyage.leg = leg;
+        voyage.ship.setVoyage(voyage.plan, leg);
+        Course course = voyage.ship.setCourse(voyage.plan.getWaypoint(leg).getLocation(), clock);
+        portDataBase.getShipIndex().update(voyage.ship, course);
+        voyage.arrivalAt = course.getArrivalAt();
+    }
+
+    private void mergeMoves() {
+        nextSailing.clear();
+        for (TickVoyage voyage : sailing) {
+            if (voyage.outcome == TickVoyage.SAILING) {
+                nextSailing.add(voyage);
+            } else if (voyage.outcome == TickVoyage.AT_TUNNEL) {
+                tunnelOf.get(voyage.plan.getTunnel()).requests.add(voyage);
+            } else {
+                portOf.get(voyage.target).arrivals.add(voyage);
+            }
+        }
+        List<TickVoyage> moved = nextSailing;
+        nextSailing = sailing;
+        sailing = moved;
+    }
+
+    private void passTunnels(int from, int to) {
+        for (int i = from; i < to; i++) {
+            TickTunnel tickTunnel = tunnels.get(i);
+            tickTunnel.effects.enter();
+            try {
+                passTunnel(tickTunnel);
+            } finally {
+                TickEffects.exit();
+            }
+        }
+    }
+
+    private void passTunnel(TickTunnel tickTunnel) {
+        TunnelAdmission admission = tickTunnel.tunnel.getAdmission();
+        List<TickVoyage> inTransit = tickTunnel.inTransit;
+        int kept = 0;
+        int count = inTransit.size();
+        for (int t = 0; t < count; t++) {
+            TickVoyage voyage = inTransit.get(t);
+            if (voyage.exitAt > now) {
+                inTransit.set(kept++, voyage);
+                continue;
+            }
+            EventJournal.record(JournalEvent.TUNNEL_EXIT, voyage.ship, voyage.target.getID(),
+                    tickTunnel.tunnel.getLocation(), 0);
+            startLeg(voyage, RoutePlan.LEG_TO_PORT);
+            tickTunnel.exited.add(voyage);
+            AdmissionTicket next = admission.release(now);
+            if (next != null) {
+                // Admitted ships are appended, past count, so this pass does not see them
+                inTransit.add(pass(tickTunnel, (TickVoyage) next.getPayload(), next.getRequestedAt()));
+            }
+        }
+        for (int t = count; t < inTransit.size(); t++) {
+            inTransit.set(kept++, inTransit.get(t));
+        }
+        inTransit.subList(kept, inTransit.size()).clear();
+
+        for (TickVoyage voyage : tickTunnel.requests) {
+            voyage.leg = RoutePlan.LEG_IN_TUNNEL;
+            voyage.ship.setVoyage(voyage.plan, RoutePlan.LEG_IN_TUNNEL);
+            if (admission.offer(new AdmissionTicket(voyage.ship, voyage, now), now)) {
+                inTransit.add(pass(tickTunnel, voyage, now));
+            }
+        }
+        tickTunnel.requests.clear();
+    }
+
+    private TickVoyage pass(TickTunnel tickTunnel, TickVoyage voyage, long requestedAt) {
+        int timeInTunnel = tickTunnel.random.nextInt(ShipEnterTunnel.TIME_IN_TUNNEL_SPREAD_MS)
+                + ShipEnterTunnel.MIN_TIME_IN_TUNNEL_MS;
+        Metrics.TUNNEL_WAIT_MS.record(now - requestedAt);
+        Metrics.TUNNEL_TRANSIT_MS.record(timeInTunnel);
+        EventJournal.record(JournalEvent.TUNNEL_ENTER, voyage.ship, voyage.target.getID(),
+                tickTunnel.tunnel.getLocation(), 0);
+        voyage.exitAt = now + timeInTunnel;
+        return voyage;
+    }
+
+    private void runPorts(int from, int to) {
+        FleetManager fleet = portDataBase.getFleetManager();
+        for (int i = from; i < to; i++) {
+            TickPort port = ports.get(i);
+            boolean sweepDue = port.nextSweepAt <= now;
+            if (port.arrivals.isEmpty() && !sweepDue) {
+                continue;
+            }
+            port.effects.enter();
+            try {
+                for (TickVoyage voyage : port.arrivals) {
+                    arrive(port, voyage, fleet);
+                }
+                port.arrivals.clear();
+                if (sweepDue) {
+                    port.nextSweepAt = Long.MAX_VALUE;
+                    sweep(port);
+                }
+            } finally {
+                TickEffects.exit();
+            }
+        }
+    }
+
+    private void arrive(TickPort port, TickVoyage voyage, FleetManager fleet) {
+        Ship ship = voyage.ship;
+        port.shipsArrived++;
+        EventJournal.record(JournalEvent.SHIP_ARRIVED, ship, port.port.getID(), port.port.getLocation(), 0);
+        ship.completeVoyage();
+        port.port.getAdmission().arrive(ship);
+        boolean sendOn = ship.arrive();
+        fleet.unhold(ship);
+        Metrics.VOYAGE_MS.record(now - voyage.departedAt);
+        if (sendOn && !fleet.retireIfDue(ship)) {
+            depart(port, ship);
+        }
+    }
+
+    private void sweep(TickPort port) {
+        for (Ship ship : port.storageCheck.undockShips()) {
+            PortUnloadShip portUnloadShip = new PortUnloadShip(port.port, ship, port.random, tunnel, launcher);
+            portUnloadShip.unload();
+            port.shipsUnloaded++;
+            if (!portUnloadShip.retireIfDue() && !ship.deferDeparture()) {
+                depart(port, ship);
+            }
+        }
+    }
+
+    /**
+     * Same cycle as EventWorld: build, sweep PortGenShip.SLEEP_DURATION_MS later, build again after the
+     * rest of the port's generation period.
+     */
+    private void generate(TickPort port) {
+        port.nextSweepAt = port.nextGenerationAt + PortGenShip.SLEEP_DURATION_MS;
+        port.nextGenerationAt = port.nextSweepAt + ActivePort.idleMs(port.port);
+        PortGenShip portGenShip = new PortGenShip(port.port, port.random, tunnel, launcher);
+        if (portGenShip.reserveShip()) {
+            port.shipsBuilt++;
+            depart(port, portGenShip.buildShip());
+        }
+    }
+
+    /**
+     * Picks the next port with the origin's stream; berthing at the target waits for the merge.
+     */
+    private void depart(TickPort port, Ship ship) {
+        Port target = portDataBase.getDestinationSelector().select(port.port, port.random);
+        port.departures.add(new TickVoyage(ship, port.port, target, now));
+    }
+
+    /**
+     * Sends the held ships that are due. Berths change only in phases 3 and 5, so a target that is
+     * full now can be swapped for a nearby port with room without racing anything.
+     */
+    private void retryHeld(TickPort port) {
+        ShipHolding holding = portDataBase.getShipHolding();
+        int kept = 0;
+        for (TickVoyage voyage : port.held) {
+            if (voyage.retryAt > now) {
+                port.held.set(kept++, voyage);
+                continue;
+            }
+            holding.leave();
+            Ship ship = voyage.ship;
+            Port target = portDataBase.getDestinationSelector().select(port.port, port.random);
+            PortAdmission admission = target.getAdmission();
+            if (!admission.hasRoom(ship.getShipCapacity())) {
+                Port redirect = admission.redirect(port.port, ship.getShipCapacity());
+                if (redirect != null) {
+                    Metrics.SHIPS_REDIRECTED.increment();
+                    target = redirect;
+                }
+            }
+            port.departures.add(new TickVoyage(ship, port.port, target, now));
+        }
+        port.held.subList(kept, port.held.size()).clear();
+    }
+
+    private void mergeDepartures() {
+        for (TickPort port : ports) {
+            for (TickVoyage voyage : port.departures) {
+                portOf.get(voyage.target).incoming.add(voyage);
+            }
+            port.departures.clear();
+        }
+    }
+
+    private void berthDepartures(int from, int to) {
+        for (int i = from; i < to; i++) {
+            TickPort port = ports.get(i);
+            if (port.incoming.isEmpty()) {
+                continue;
+            }
+            port.effects.enter();
+            try {
+                berthIncoming(port);
+            } finally {
+                TickEffects.exit();
+            }
+        }
+    }
+
+    private void berthIncoming(TickPort port) {
+        for (TickVoyage voyage : port.incoming) {
+            Ship ship = voyage.ship;
+            EventJournal.record(JournalEvent.SHIP_SENT, ship, voyage.from.getID(), port.port.getID());
+            AppendShip appendShip = new AppendShip(ship.getShipCapacity(), ship, voyage.from, port.port,
+                    port.random, tunnel, launcher);
+            ship.depart();
+            // Only this port's berths are touched here; redirecting waits for the next phase 4
+            if (!appendShip.dock()) {
+                long backoffMs = appendShip.refuse();
+                if (backoffMs >= 0) {
+                    portDataBase.getShipHolding().enter();
+                    voyage.retryAt = now + backoffMs;
+                    port.refused.add(voyage);
+                }
+                continue;
+            }
+            voyage.plan = appendShip.planRoute();
+            startLeg(voyage, RoutePlan.LEG_TO_TUNNEL);
+            port.launched.add(voyage);
+        }
+        port.incoming.clear();
+    }
+
+    /**
+     * Continues a world restored from a WorldSnapshot, like EventWorld.resume.
+     */
+    public void resume(long virtualTimeMs, List<Ship> underway) {
+        now = virtualTimeMs;
+        for (TickPort port : ports) {
+            port.nextGenerationAt = now + ActivePort.SLEEP_DURATION_MS;
+        }
+        for (Ship ship : underway) {
+            RoutePlan plan = ship.getVoyagePlan();
+            TickVoyage voyage = new TickVoyage(ship, plan.getFrom(), plan.getTo(), now);
+            voyage.plan = plan;
+            if (ship.getVoyageLeg() == RoutePlan.LEG_IN_TUNNEL) {
+                tunnelOf.get(plan.getTunnel()).requests.add(voyage);
+            } else {
+                startLeg(voyage, ship.getVoyageLeg());
+                sailing.add(voyage);
+            }
+        }
+    }
+}
+
+/**
+ * EVENT LOG
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * LogLevel
+ */
+enum LogLevel {
+    DEBUG,
+    INFO,
+    WARN,
+    OFF;
+
+    public static LogLevel fromName(String name) {
+        return valueOf(name.toUpperCase());
+    }
+}
+
+/**
+ * LogEvent
+ * Every kind of record the simulation can log. The ordinal is the event type stored in a record.
+ */
+enum LogEvent {
+    PORT_SLEEPING(LogLevel.DEBUG, "port is sleeping"),
+    PORT_INTERRUPTED(LogLevel.WARN, "port is interrupted"),
+    PORT_GENERATING(LogLevel.DEBUG, "port is generating a new ship"),
+    PORT_CHECKING_PRODUCT(LogLevel.DEBUG, "port checks if it has enough product to build a ship"),
+    PORT_LOW_PRODUCT(LogLevel.DEBUG, "port does not have enough product"),
+    PORT_CHECKING_STORAGE(LogLevel.DEBUG, "port is checking ships in storage"),
+    SHIP_BUILT(LogLevel.INFO, "new ship created"),
+    STORAGE_FOUND_SHIP(LogLevel.DEBUG, "port found ship to unload"),
+    STORAGE_CLEANED(LogLevel.DEBUG, "port cleans the storage"),
+    UNLOAD_START(LogLevel.INFO, "port starts unloading the ship"),
+    UNLOAD_DONE(LogLevel.DEBUG, "port sends the unloaded ship to a new port"),
+    SHIP_SENT(LogLevel.INFO, "ship is sent to port"),
+    BERTH_CHECK(LogLevel.DEBUG, "port checks if it has place for the ship"),
+    SHIP_DOCKED(LogLevel.INFO, "berth reserved for the ship in port storage"),
+    NO_BERTH(LogLevel.WARN, "port has no place for the ship"),
+    SHIP_REDIRECTED(LogLevel.INFO, "ship sent to a nearby port with a free berth"),
+    ROAD_PREPARED(LogLevel.DEBUG, "road prepared for ship to port"),
+    ROAD_INTERRUPTED(LogLevel.WARN, "ship road interrupted"),
+    TUNNEL_WAIT(LogLevel.DEBUG, "ship waits to enter the tunnel"),
+    TUNNEL_ENTER(LogLevel.INFO, "ship is entering the tunnel"),
+    TUNNEL_EXIT(LogLevel.INFO, "ship has exited the tunnel"),
+    TUNNEL_INTERRUPTED(LogLevel.WARN, "ship was interrupted while entering or inside the tunnel"),
+    TUNNEL_NULL_SHIP(LogLevel.WARN, "attempted to enter the tunnel with a null ship reference"),
+    JOURNEY_START(LogLevel.INFO, "ship begins the journey to destination"),
+    JOURNEY_END(LogLevel.INFO, "ship reached the point of the route"),
+    MOVEMENT_INTERRUPTED(LogLevel.WARN, "ship movement interrupted"),
+    FLEET_FULL(LogLevel.DEBUG, "port skips building: the fleet is at its maximum size"),
+    SHIP_RETIRED(LogLevel.INFO, "ship retired and returned to the fleet pool");
+
+    private static final LogEvent[] VALUES = values();
+
+    private final LogLevel level;
+    private final String message;
+
+    LogEvent(LogLevel level, String message) {
+        this.level = level;
+        this.message = message;
+    }
+
+    public LogLevel getLevel() {
+        return level;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public static LogEvent fromOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+}
+
+/**
+ * EventRingBuffer
+ * Preallocated multi-producer, single-consumer ring of fixed-layout log records, stored as parallel
+ * primitive arrays. Producers claim a slot with a CAS and publish it with an ordered write; when the
+ * consumer falls a full ring behind, new records are dropped and counted rather than blocking.
+ */
+class EventRingBuffer {
+    private final int capacity;
+    private final int mask;
+    private final long[] times;
+    private final int[] types;
+    private final long[] shipIds;
+    private final int[] portIds;
+    private final int[] xs;
+    private final int[] ys;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+
+    public EventRingBuffer(int requestedCapacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1) << 1);
+        this.mask = capacity - 1;
+        this.times = new long[capacity];
+        this.types = new int[capacity];
+        this.shipIds = new long[capacity];
+        this.portIds = new int[capacity];
+        this.xs = new int[capacity];
+        this.ys = new int[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, i - capacity);
+        }
+    }
+
+    public boolean offer(long time, int type, long shipId, int portId, int x, int y) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed.get() >= capacity) {
+                dropped.increment();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & mask);
+        times[slot] = time;
+        types[slot] = type;
+        shipIds[slot] = shipId;
+        portIds[slot] = portId;
+        xs[slot] = x;
+        ys[slot] = y;
+        published.lazySet(slot, sequence);
+        return true;
+    }
+
+    public int drain(EventLogSink sink, int maxRecords) throws IOException {
+        long next = consumed.get();
+        int drained = 0;
+        while (drained < maxRecords) {
+            int slot = (int) (next & mask);
+            if (published.get(slot) != next) {
+                break;
+            }
+            sink.write(times[slot], types[slot], shipIds[slot], portIds[slot], xs[slot], ys[slot]);
+            next++;
+            drained++;
+            consumed.lazySet(next);
+        }
+        return drained;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getSize() {
+        return claimed.get() - consumed.get();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
+
+/**
+ * EventLogSink
+ * Destination of drained log records. Only the consumer thread calls it.
+ */
+interface EventLogSink {
+    void write(long time, int type, long shipId, int portId, int x, int y) throws IOException;
+
+    void flush() throws IOException;
+
+    void close() throws IOException;
+}
+
+/**
+ * TextEventLogSink
+ * One line per record, formatted into a reused buffer.
+ */
+class TextEventLogSink implements EventLogSink {
+    private final Writer writer;
+    private final boolean closeWriter;
+    private final StringBuilder line = new StringBuilder(160);
+    private char[] chars = new char[160];
+
+    public TextEventLogSink(Writer writer, boolean closeWriter) {
+        this.writer = writer;
+        this.closeWriter = closeWriter;
+    }
+
+    @Override
+    public void write(long time, int type, long shipId, int portId, int x, int y) throws IOException {
+        LogEvent event = LogEvent.fromOrdinal(type);
+        line.setLength(0);
+        line.append(time).append(' ').append(event.getLevel().name()).append(' ').append(event.name());
+        if (shipId >= 0) {
+            line.append(" ship=").append(shipId);
+        }
+        if (portId >= 0) {
+            line.append(" port=").append(portId);
+        }
+        line.append(" x=").append(x).append(" y=").append(y).append(" - ").append(event.getMessage()).append('\n');
+
+        int length = line.length();
+        if (chars.length < length) {
+            chars = new char[length * 2];
+        }
+        line.getChars(0, length, chars, 0);
+        writer.write(chars, 0, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.flush();
+        if (closeWriter) {
+            writer.close();
+        }
+    }
+}
+
+/**
+ * BinaryEventLogSink
+ * Fixed 32-byte records: time (long), type (int), ship id (long), port id, x, y (int).
+ */
+class BinaryEventLogSink implements EventLogSink {
+    static final int RECORD_SIZE = 32;
+    private static final int RECORDS_PER_BUFFER = 2048;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * RECORDS_PER_BUFFER);
+
+    public BinaryEventLogSink(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(long time, int type, long shipId, int portId, int x, int y) throws IOException {
+        if (buffer.remaining() < RECORD_SIZE) {
+            flush();
+        }
+        buffer.putLong(time).putInt(type).putLong(shipId).putInt(portId).putInt(x).putInt(y);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
+
+/**
+ * EventLog
+ * Asynchronous logging facade. Callers pass primitives only; a disabled level returns before
+ * touching the ring buffer, and an enabled one costs a slot claim and six array writes.
+ * A daemon consumer thread drains the ring into the configured sink.
+ */
+class EventLog {
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    private static final int DRAIN_BATCH = 1024;
+    private static final long IDLE_PARK_NS = 200_000;
+
+    private static volatile int threshold = LogLevel.OFF.ordinal();
+    private static volatile LongSupplier clock = System::currentTimeMillis;
+    private static volatile EventRingBuffer ring;
+    private static volatile Thread consumer;
+    private static volatile boolean running;
+    private static EventLogSink sink;
+    private static boolean hooked;
+
+    public static boolean isEnabled(LogEvent event) {
+        return event.getLevel().ordinal() >= threshold;
+    }
+
+    /**
+     * Where event times come from: wall-clock milliseconds, or the virtual clock of an EventWorld or
+     * TickWorld.
+     */
+    public static void setClock(LongSupplier newClock) {
+        clock = newClock;
+    }
+
+    public static void log(LogEvent event, long shipId, int portId, Location location) {
+        if (event.getLevel().ordinal() < threshold) {
+            return;
+        }
+        ring.offer(clock.getAsLong(), event.ordinal(), shipId, portId, location.getX(), location.getY());
+    }
+
+    /**
+     * Logs event at the ship's current position, worked out only if the event is logged.
+     */
+    public static void log(LogEvent event, Ship ship, int portId) {
+        if (event.getLevel().ordinal() < threshold) {
+            return;
+        }
+        Location at = ship.locate(new Location(0, 0));
+        ring.offer(clock.getAsLong(), event.ordinal(), ship.getID(), portId, at.getX(), at.getY());
+    }
+
+    public static void logAt(long time, LogEvent event, long shipId, int portId, int x, int y) {
+        if (event.getLevel().ordinal() < threshold) {
+            return;
+        }
+        ring.offer(time, event.ordinal(), shipId, portId, x, y);
+    }
+
+    public static synchronized void start(WorldConfig config) throws IOException {
+        String mode = config.getString("log", "text");
+        LogLevel level = LogLevel.fromName(config.getString("log.level", "info"));
+        if (mode.equals("off") || level == LogLevel.OFF) {
+            return;
+        }
+        String file = config.getString("log.file", mode.equals("binary") ? "events.bin" : null);
+        EventLogSink newSink;
+        if (mode.equals("binary")) {
+            newSink = new BinaryEventLogSink(FileChannel.open(Paths.get(file),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        } else if (mode.equals("text")) {
+            newSink = file == null
+                    ? new TextEventLogSink(new BufferedWriter(new OutputStreamWriter(System.out)), false)
+                    : new TextEventLogSink(Files.newBufferedWriter(Paths.get(file)), true);
+        } else {
+            throw new IllegalArgumentException("Unknown log mode: " + mode);
+        }
+        start(newSink, level, config.getInt("log.buffer", DEFAULT_BUFFER_SIZE));
+    }
+
+    public static synchronized void start(EventLogSink newSink, LogLevel level, int bufferSize) {
+        stop();
+        sink = newSink;
+        ring = new EventRingBuffer(bufferSize);
+        running = true;
+        Thread thread = new Thread(EventLog::drainLoop, "event-log");
+        thread.setDaemon(true);
+        consumer = thread;
+        thread.start();
+        threshold = level.ordinal();
+        // stop() ends whichever log is running at exit, so one hook serves every restart
+        if (!hooked) {
+            Runtime.getRuntime().addShutdownHook(new Thread(EventLog::stop, "event-log-shutdown"));
+            hooked = true;
+        }
+    }
+
+    public static synchronized void stop() {
+        Thread thread = consumer;
+        if (thread == null) {
+            return;
+        }
+        threshold = LogLevel.OFF.ordinal();
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        consumer = null;
+        if (ring.getDropped() > 0) {
+            System.out.println("Event log dropped " + ring.getDropped() + " records");
+        }
+    }
+
+    public static long getDropped() {
+        EventRingBuffer current = ring;
+        return current == null ? 0 : current.getDropped();
+    }
+
+    private static void drainLoop() {
+        try {
+            while (running) {
+                if (ring.drain(sink, DRAIN_BATCH) == 0) {
+                    sink.flush();
+                    LockSupport.parkNanos(IDLE_PARK_NS);
+                }
+            }
+            while (ring.drain(sink, DRAIN_BATCH) > 0) {
+                // flush whatever producers published before logging was switched off
+            }
+            sink.close();
+        } catch (IOException e) {
+            threshold = LogLevel.OFF.ordinal();
+            System.err.println("Event log stopped: " + e.getMessage());
+        }
+    }
+}
+
+/**
+ * FLEET STORE
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * ShipState
+ * Where a ship is in its lifecycle, as tracked by the FleetStore.
+ */
+enum ShipState {
+    IDLE,
+    DOCKED,
+    WAITING_TUNNEL,
+    IN_TUNNEL,
+    SAILING,
+    RETIRED;
+
+    private static final ShipState[] VALUES = values();
+
+    public static ShipState fromOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+}
+
+/**
+ * FleetStore
+ * Optional struct-of-arrays storage for very large fleets. Every ship is one index into parallel
+ * primitive arrays (about 27 bytes per ship), so iterating a million ships is a linear scan with no
+ * pointer chasing. The capacity is fixed at creation; adding ships is thread-safe, and each field is
+ * written by whoever owns the ship at that moment. FleetShipView exposes an index as a regular Ship.
+ * With fleet.store=<capacity> the simulation builds its ships here until the store is full.
+ */
+class FleetStore {
+    static final int NO_ORIGIN = -1;
+    private static final String CREATOR_PREFIX = "Port: ";
+    private static final ShipCapacity[] CAPACITIES = ShipCapacity.values();
+
+    private final int capacity;
+    // Indexes handed out to adders, and the prefix of them whose fields are fully written
+    private final AtomicInteger claimed = new AtomicInteger();
+    private final AtomicInteger size = new AtomicInteger();
+    private final long[] ids;
+    private final int[] xs;
+    private final int[] ys;
+    private final byte[] capacityOrdinals;
+    private final byte[] productOrdinals;
+    private final AtomicIntegerArray cargo;
+    private final int[] originPorts;
+    private final byte[] states;
+
+    public FleetStore(int capacity) {
+        this.capacity = capacity;
+        this.ids = new long[capacity];
+        this.xs = new int[capacity];
+        this.ys = new int[capacity];
+        this.capacityOrdinals = new byte[capacity];
+        this.productOrdinals = new byte[capacity];
+        this.cargo = new AtomicIntegerArray(capacity);
+        this.originPorts = new int[capacity];
+        this.states = new byte[capacity];
+    }
+
+    public int add(long id, int x, int y, ShipCapacity shipCapacity, int productOrdinal, int cargoValue,
+            int originPort) {
+        int index = tryAdd(id, x, y, shipCapacity, productOrdinal, cargoValue, originPort);
+        if (index < 0) {
+            throw new IllegalStateException("Fleet store is full: " + capacity + " ships");
+        }
+        return index;
+    }
+
+    /**
+     * Adds a ship, or returns -1 if the store is full. The ship's fields are written before size()
+     * covers its index, so a reader that sees the new size also sees the whole ship.
+     */
+    public int tryAdd(long id, int x, int y, ShipCapacity shipCapacity, int productOrdinal, int cargoValue,
+            int originPort) {
+        int index = claimed.getAndUpdate(n -> n < capacity ? n + 1 : n);
+        if (index >= capacity) {
+            return -1;
+        }
+        ids[index] = id;
+        xs[index] = x;
+        ys[index] = y;
+        capacityOrdinals[index] = (byte) shipCapacity.ordinal();
+        productOrdinals[index] = (byte) productOrdinal;
+        cargo.set(index, cargoValue);
+        originPorts[index] = originPort;
+        states[index] = (byte) ShipState.IDLE.ordinal();
+        // Publish in index order; an adder that claimed an earlier index is a few stores from done, but
+        // may have been descheduled, so give it the CPU rather than spin
+        while (!size.compareAndSet(index, index + 1)) {
+            Thread.yield();
+        }
+        return index;
+    }
+
+    /**
+     * The origin port of a creator name such as "Port: 3", or NO_ORIGIN for a ship without creator.
+     */
+    static int originPortOf(String nameOfCreator) {
+        if (nameOfCreator == null) {
+            return NO_ORIGIN;
+        }
+        if (!nameOfCreator.startsWith(CREATOR_PREFIX)) {
+            throw new IllegalArgumentException("Not a port creator name: " + nameOfCreator);
+        }
+        return Integer.parseInt(nameOfCreator.substring(CREATOR_PREFIX.length()));
+    }
+
+    public int add(Ship ship, int originPort) {
+        Product<Integer> product = ship.getProduct();
+        return add(ship.getID(), ship.getLocation().getX(), ship.getLocation().getY(), ship.getShipCapacity(),
+                product.getProductOrdinal(), product.get(), originPort);
+    }
+
+    public Ship view(int index) {
+        checkIndex(index);
+        return new FleetShipView(this, index);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size.get()) {
+            throw new IndexOutOfBoundsException("Ship index " + index + " out of " + size.get());
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getId(int index) {
+        return ids[index];
+    }
+
+    public void setId(int index, long id) {
+        ids[index] = id;
+    }
+
+    public int getX(int index) {
+        return xs[index];
+    }
+
+    public void setX(int index, int x) {
+        xs[index] = x;
+    }
+
+    public int getY(int index) {
+        return ys[index];
+    }
+
+    public void setY(int index, int y) {
+        ys[index] = y;
+    }
+
+    public ShipCapacity getShipCapacity(int index) {
+        return CAPACITIES[capacityOrdinals[index]];
+    }
+
+    public int getProductOrdinal(int index) {
+        return productOrdinals[index];
+    }
+
+    public int getCargo(int index) {
+        return cargo.get(index);
+    }
+
+    public void setCargo(int index, int value) {
+        cargo.set(index, value);
+    }
+
+    /**
+     * Empties the ship's cargo atomically, so two concurrent unloads cannot both deliver it.
+     */
+    public int takeCargo(int index) {
+        return cargo.getAndSet(index, 0);
+    }
+
+    public int getOriginPort(int index) {
+        return originPorts[index];
+    }
+
+    public void setOriginPort(int index, int originPort) {
+        originPorts[index] = originPort;
+    }
+
+    public ShipState getState(int index) {
+        return ShipState.fromOrdinal(states[index]);
+    }
+
+    public void setState(int index, ShipState state) {
+        states[index] = (byte) state.ordinal();
+    }
+}
+
+/**
+ * FleetShipView
+ * A Ship backed by one FleetStore index. Location and cargo reads and writes go to the arrays.
+ */
+class FleetShipView extends Ship {
+    private final FleetStore store;
+    private final int index;
+
+    private final FleetCargo cargo;
+
+    public FleetShipView(FleetStore store, int index) {
+        super(store.getId(index), null, new FleetLocation(store, index));
+        this.store = store;
+        this.index = index;
+        this.cargo = new FleetCargo(store, index);
+    }
+
+    @Override
+    public List<ShipElement<?>> getElements() {
+        List<ShipElement<?>> elements = new ArrayList<>(2);
+        elements.add(cargo);
+        elements.add(store.getShipCapacity(index));
+        return elements;
+    }
+
+    @Override
+    public Product<Integer> getProduct() {
+        return cargo;
+    }
+
+    @Override
+    public ShipCapacity getShipCapacity() {
+        return store.getShipCapacity(index);
+    }
+
+    @Override
+    public String getNameOfCreator() {
+        int originPort = store.getOriginPort(index);
+        return originPort == FleetStore.NO_ORIGIN ? null : "Port: " + originPort;
+    }
+
+    @Override
+    public void setNameOfCreator(String nameOfCreator) {
+        store.setOriginPort(index, FleetStore.originPortOf(nameOfCreator));
+    }
+
+    @Override
+    public void depart() {
+        super.depart();
+        store.setState(index, ShipState.SAILING);
+    }
+
+    @Override
+    public void setVoyage(RoutePlan plan, int leg) {
+        super.setVoyage(plan, leg);
+        store.setState(index, leg == RoutePlan.LEG_IN_TUNNEL ? ShipState.IN_TUNNEL : ShipState.SAILING);
+    }
+
+    @Override
+    public boolean arrive() {
+        boolean sendOn = super.arrive();
+        store.setState(index, ShipState.IDLE);
+        return sendOn;
+    }
+
+    @Override
+    boolean tryRetire() {
+        if (!super.tryRetire()) {
+            return false;
+        }
+        store.setState(index, ShipState.RETIRED);
+        return true;
+    }
+
+    @Override
+    void recommission(long id, int x, int y, String nameOfCreator) {
+        super.recommission(id, x, y, nameOfCreator);
+        store.setId(index, id);
+        store.setOriginPort(index, FleetStore.originPortOf(nameOfCreator));
+        store.setState(index, ShipState.IDLE);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public FleetStore getStore() {
+        return store;
+    }
+}
+
+/**
+ * FleetLocation
+ * A Location backed by the x/y arrays of a FleetStore.
+ */
+class FleetLocation extends Location {
+    private final FleetStore store;
+    private final int index;
+
+    public FleetLocation(FleetStore store, int index) {
+        super(0, 0);
+        this.store = store;
+        this.index = index;
+    }
+
+    @Override
+    public int getX() {
+        return store.getX(index);
+    }
+
+    @Override
+    public int getY() {
+        return store.getY(index);
+    }
+
+    @Override
+    public void setX(int x) {
+        store.setX(index, x);
+    }
+
+    @Override
+    public void setY(int y) {
+        store.setY(index, y);
+    }
+}
+
+/**
+ * FleetCargo
+ * A ship's product backed by the cargo array of a FleetStore.
+ */
+class FleetCargo implements Product<Integer> {
+    private final FleetStore store;
+    private final int index;
+
+    public FleetCargo(FleetStore store, int index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    @Override
+    public int getProductOrdinal() {
+        return store.getProductOrdinal(index);
+    }
+
+    @Override
+    public Integer get() {
+        return store.getCargo(index);
+    }
+
+    @Override
+    public void set(Integer nValue) {
+        WorldEpoch.begin();
+        try {
+            store.setCargo(index, nValue);
+        } finally {
+            WorldEpoch.end();
+        }
+    }
+
+    /**
+     * Moves all of the ship's cargo into a port's ledger, as one change for WorldView readers.
+     *
+     * @return the amount moved.
+     */
+    public long unloadInto(CargoLedger to) {
+        WorldEpoch.begin();
+        try {
+            int amount = store.takeCargo(index);
+            if (amount != 0) {
+                to.add(getProductOrdinal(), amount);
+            }
+            return amount;
+        } finally {
+            WorldEpoch.end();
+        }
+    }
+}
+
+/**
+ * SPATIAL INDEX
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * SpatialIndex
+ * Uniform grid over ObjLocation coordinates. update() puts an object in the cell it lies in or, given its
+ * Course, in every cell the rest of the course passes through, so a sailing ship is indexed once per leg
+ * and not once per cell it crosses. Queries read each object's current position with locate() and count
+ * it only from the cell it is in now. Radius and nearest-k queries only visit the cells around the query
+ * point, so their cost depends on local density, not on the total number of objects.
+ * Safe for concurrent updates and queries.
+ */
+class SpatialIndex<T extends ObjLocation> {
+    private final int cellSize;
+    private final ConcurrentHashMap<Long, Set<T>> cells = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<T, long[]> cellsOf = new ConcurrentHashMap<>();
+    private final AtomicInteger minCellX = new AtomicInteger(Integer.MAX_VALUE);
+    private final AtomicInteger maxCellX = new AtomicInteger(Integer.MIN_VALUE);
+    private final AtomicInteger minCellY = new AtomicInteger(Integer.MAX_VALUE);
+    private final AtomicInteger maxCellY = new AtomicInteger(Integer.MIN_VALUE);
+
+    public SpatialIndex(int cellSize) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+        }
+        this.cellSize = cellSize;
+    }
+
+    private static long key(int cellX, int cellY) {
+        return ((long) cellX << 32) | (cellY & 0xffffffffL);
+    }
+
+    private int cell(int coordinate) {
+        return Math.floorDiv(coordinate, cellSize);
+    }
+
+    public void update(T obj) {
+        update(obj, null);
+    }
+
+    /**
+     * Indexes obj where it is now and, if course is not null, along the rest of the course: X first on
+     * the current row, then Y on the target column, as Course moves. Called by the thread that moves obj.
+     */
+    public void update(T obj, Course course) {
+        Location location = obj.locate(new Location(0, 0));
+        int cellX = cell(location.getX());
+        int cellY = cell(location.getY());
+        long[] newKeys;
+        if (course == null) {
+            newKeys = new long[] {key(cellX, cellY)};
+            include(cellX, cellY);
+        } else {
+            int targetCellX = cell(course.getTargetX());
+            int targetCellY = cell(course.getTargetY());
+            newKeys = new long[Math.abs(targetCellX - cellX) + Math.abs(targetCellY - cellY) + 1];
+            int count = 0;
+            for (int x = cellX; ; x += Integer.signum(targetCellX - cellX)) {
+                newKeys[count++] = key(x, cellY);
+                if (x == targetCellX) {
+                    break;
+                }
+            }
+            for (int y = cellY; y != targetCellY; ) {
+                y += Integer.signum(targetCellY - cellY);
+                newKeys[count++] = key(targetCellX, y);
+            }
+            include(cellX, cellY);
+            include(targetCellX, targetCellY);
+        }
+        long[] oldKeys = cellsOf.put(obj, newKeys);
+        // Enter the new cells before leaving the old ones, so a query never misses the object
+        for (long newKey : newKeys) {
+            cells.computeIfAbsent(newKey, k -> ConcurrentHashMap.newKeySet()).add(obj);
+        }
+        if (oldKeys != null) {
+            long[] sortedKeys = newKeys.clone();
+            Arrays.sort(sortedKeys);
+            for (long oldKey : oldKeys) {
+                if (Arrays.binarySearch(sortedKeys, oldKey) < 0) {
+                    leave(oldKey, obj);
+                }
+            }
+        }
+    }
+
+    private void include(int cellX, int cellY) {
+        minCellX.accumulateAndGet(cellX, Math::min);
+        maxCellX.accumulateAndGet(cellX, Math::max);
+        minCellY.accumulateAndGet(cellY, Math::min);
+        maxCellY.accumulateAndGet(cellY, Math::max);
+    }
+
+    private void leave(long oldKey, T obj) {
+        Set<T> oldCell = cells.get(oldKey);
+        if (oldCell != null) {
+            oldCell.remove(obj);
+        }
+    }
+
+    public void remove(T obj) {
+        long[] oldKeys = cellsOf.remove(obj);
+        if (oldKeys != null) {
+            for (long oldKey : oldKeys) {
+                leave(oldKey, obj);
+            }
+        }
+    }
+
+    public int size() {
+        return cellsOf.size();
+    }
+
+    /**
+     * Whether position, where obj is now, lies in the cell being visited. An object indexed along its
+     * course sits in several cells and is only counted from this one.
+     */
+    private boolean isIn(Location position, int cellX, int cellY) {
+        return cell(position.getX()) == cellX && cell(position.getY()) == cellY;
+    }
+
+    public List<T> withinRadius(Location center, int radius) {
+        List<T> found = new ArrayList<>();
+        Location position = new Location(0, 0);
+        long radiusSquared = (long) radius * radius;
+        int fromX = cell(center.getX() - radius);
+        int toX = cell(center.getX() + radius);
+        int fromY = cell(center.getY() - radius);
+        int toY = cell(center.getY() + radius);
+        for (int cellX = fromX; cellX <= toX; cellX++) {
+            for (int cellY = fromY; cellY <= toY; cellY++) {
+                Set<T> cellObjects = cells.get(key(cellX, cellY));
+                if (cellObjects == null) {
+                    continue;
+                }
+                for (T obj : cellObjects) {
+                    obj.locate(position);
+                    if (isIn(position, cellX, cellY) && distanceSquared(center, position) <= radiusSquared) {
+                        found.add(obj);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    public List<T> nearest(Location center, int k) {
+        return nearest(center, k, null);
+    }
+
+    /**
+     * The k objects closest to center that pass the filter (null accepts all), closest first.
+     * Searches rings of cells outwards and stops once no unvisited cell can hold a closer object.
+     */
+    public List<T> nearest(Location center, int k, Predicate<T> filter) {
+        List<T> result = new ArrayList<>(k);
+        if (k <= 0 || cellsOf.isEmpty()) {
+            return result;
+        }
+        // Each candidate is ranked by the distance it had when it was found, so a moving one keeps its place
+        PriorityQueue<Ranked<T>> best = new PriorityQueue<>(k + 1,
+                Comparator.comparingLong((Ranked<T> ranked) -> ranked.distance).reversed());
+        Location position = new Location(0, 0);
+        int centerX = cell(center.getX());
+        int centerY = cell(center.getY());
+        int maxRing = Math.max(Math.max(centerX - minCellX.get(), maxCellX.get() - centerX),
+                Math.max(centerY - minCellY.get(), maxCellY.get() - centerY));
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            for (int cellX = centerX - ring; cellX <= centerX + ring; cellX++) {
+                boolean edgeColumn = cellX == centerX - ring || cellX == centerX + ring;
+                int step = edgeColumn ? 1 : 2 * ring;
+                for (int cellY = centerY - ring; cellY <= centerY + ring; cellY += Math.max(step, 1)) {
+                    Set<T> cellObjects = cells.get(key(cellX, cellY));
+                    if (cellObjects == null) {
+                        continue;
+                    }
+                    for (T obj : cellObjects) {
+                        if (!isIn(obj.locate(position), cellX, cellY) || (filter != null && !filter.test(obj))) {
+                            continue;
+                        }
+                        best.add(new Ranked<>(obj, distanceSquared(center, position)));
+                        if (best.size() > k) {
+                            best.poll();
+                        }
+                    }
+                }
+            }
+            long reach = (long) ring * cellSize;
+            if (best.size() == k && best.peek().distance <= reach * reach) {
+                break;
+            }
+        }
+
+        while (!best.isEmpty()) {
+            result.add(best.poll().obj);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private static final class Ranked<T> {
+        final T obj;
+        final long distance;
+
+        Ranked(T obj, long distance) {
+            this.obj = obj;
+            this.distance = distance;
+        }
+    }
+
+    static long distanceSquared(Location a, Location b) {
+        long dx = (long) a.getX() - b.getX();
+        long dy = (long) a.getY() - b.getY();
+        return dx * dx + dy * dy;
+    }
+}
+
+/**
+ * DestinationSelector
+ * Picks the port a ship is sent to next.
+ */
+interface DestinationSelector {
+    Port select(Port from, Random random);
+}
+
+/**
+ * RandomDestinationSelector
+ * Any port, uniformly at random (the original behaviour).
+ */
+class RandomDestinationSelector implements DestinationSelector {
+    @Override
+    public Port select(Port from, Random random) {
+        List<Port> ports = from.getPortDataBase().getPorts();
+        return ports.get(random.nextInt(ports.size()));
+    }
+}
+
+/**
+ * NearestDestinationSelector
+ * A random port among the k ports closest to the sender, found through the port spatial index.
+ */
+class NearestDestinationSelector implements DestinationSelector {
+    private final int k;
+
+    public NearestDestinationSelector(int k) {
+        this.k = k;
+    }
+
+    @Override
+    public Port select(Port from, Random random) {
+        List<Port> candidates = from.getPortDataBase().getPortIndex().nearest(from.getLocation(), k,
+                port -> port != from);
+        if (candidates.isEmpty()) {
+            return from;
+        }
+        return candidates.get(random.nextInt(candidates.size()));
+    }
+}
+
+/**
+ * DestinationSelectors
+ * Picks the selector for the "destination" startup option.
+ */
+class DestinationSelectors {
+    public static DestinationSelector create(WorldConfig config) {
+        String mode = config.getString("destination", "random");
+        switch (mode) {
+            case "random":
+                return new RandomDestinationSelector();
+            case "nearest":
+                return new NearestDestinationSelector(config.getInt("destination.k", 3));
+            default:
+                throw new IllegalArgumentException("Unknown destination mode: " + mode);
+        }
+    }
+}
+
+/**
+ * ROUTE PLANNING
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * RoutePlan
+ * A port-to-port route: sail to the tunnel entrance, pass the tunnel, sail to the target port.
+ * Distances are in grid steps, moving one axis at a time.
+ */
+class RoutePlan {
+    static final int LEG_TO_TUNNEL = 0;
+    static final int LEG_TO_PORT = 1;
+    // Waiting for or passing the tunnel; a voyage stage, not a waypoint
+    static final int LEG_IN_TUNNEL = 2;
+
+    private final Port from;
+    private final Port to;
+    private final Tunnel tunnel;
+    private final ObjLocation[] waypoints;
+    private final int distance;
+    private final long travelTimeMs;
+
+    public RoutePlan(Port from, Port to, Tunnel tunnel) {
+        this.from = from;
+        this.to = to;
+        this.tunnel = tunnel;
+        this.waypoints = new ObjLocation[] { tunnel, to };
+        this.distance = RoutePlanner.distanceVia(from.getLocation(), tunnel.getLocation(), to.getLocation());
+        this.travelTimeMs = RoutePlanner.travelTimeMs(distance);
+    }
+
+    public static RoutePlan through(Port from, Port to, Tunnel tunnel) {
+        return new RoutePlan(from, to, tunnel);
+    }
+
+    public Port getFrom() {
+        return from;
+    }
+
+    public Port getTo() {
+        return to;
+    }
+
+    public Tunnel getTunnel() {
+        return tunnel;
+    }
+
+    public ObjLocation getWaypoint(int leg) {
+        return waypoints[leg];
+    }
+
+    public int getWaypointCount() {
+        return waypoints.length;
+    }
+
+    public int getDistance() {
+        return distance;
+    }
+
+    public long getTravelTimeMs() {
+        return travelTimeMs;
+    }
+}
+
+/**
+ * RoutePlanner
+ * Built once at world generation. For worlds up to DENSE_MATRIX_LIMIT ports it precomputes the full
+ * port-to-port matrix of best tunnel, distance and travel time; larger worlds compute a pair on first
+ * use. RoutePlan objects are cached per port pair, so a ship repeating a voyage costs a table lookup.
+ * plan(from, to, random) lets the TunnelNetwork move a voyage off the shortest tunnel when it is busy;
+ * those detours are cached too, per port pair and tunnel, in a table made on the pair's first detour.
+ */
+class RoutePlanner {
+    static final int DENSE_MATRIX_LIMIT = 1024;
+
+    private final TunnelNetwork network;
+    private final List<Tunnel> tunnels;
+    private final Map<Port, Integer> indexOf = new IdentityHashMap<>();
+    private final int portCount;
+    private final int[] tunnelMatrix;
+    private final int[] distanceMatrix;
+    private final AtomicReferenceArray<RoutePlan> densePlans;
+    private final ConcurrentHashMap<Long, RoutePlan> sparsePlans = new ConcurrentHashMap<>();
+    private final Map<Tunnel, Integer> tunnelIndexOf = new IdentityHashMap<>();
+    private final AtomicReferenceArray<AtomicReferenceArray<RoutePlan>> denseDetours;
+    private final ConcurrentHashMap<Long, AtomicReferenceArray<RoutePlan>> sparseDetours = new ConcurrentHashMap<>();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    public RoutePlanner(List<Port> ports, List<Tunnel> tunnels) {
+        this(ports, new TunnelNetwork(tunnels, TunnelSelection.NEAREST, 1));
+    }
+
+    public RoutePlanner(List<Port> ports, TunnelNetwork network) {
+        this.network = network;
+        this.tunnels = network.getTunnels();
+        this.portCount = ports.size();
+        for (int t = 0; t < tunnels.size(); t++) {
+            tunnelIndexOf.put(tunnels.get(t), t);
+        }
+
+        if (portCount <= DENSE_MATRIX_LIMIT) {
+            for (int i = 0; i < portCount; i++) {
+                indexOf.put(ports.get(i), i);
+            }
+            tunnelMatrix = new int[portCount * portCount];
+            distanceMatrix = new int[portCount * portCount];
+            densePlans = new AtomicReferenceArray<>(portCount * portCount);
+            denseDetours = new AtomicReferenceArray<>(portCount * portCount);
+            for (int i = 0; i < portCount; i++) {
+                Location from = ports.get(i).getLocation();
+                for (int j = 0; j < portCount; j++) {
+                    Location to = ports.get(j).getLocation();
+                    int best = bestTunnel(from, to);
+                    tunnelMatrix[i * portCount + j] = best;
+                    distanceMatrix[i * portCount + j] = distanceVia(from, this.tunnels.get(best).getLocation(), to);
+                }
+            }
+        } else {
+            tunnelMatrix = null;
+            distanceMatrix = null;
+            densePlans = null;
+            denseDetours = null;
+        }
+    }
+
+    static int manhattan(Location a, Location b) {
+        return Math.abs(a.getX() - b.getX()) + Math.abs(a.getY() - b.getY());
+    }
+
+    static int distanceVia(Location from, Location via, Location to) {
+        return manhattan(from, via) + manhattan(via, to);
+    }
+
+    static long travelTimeMs(int distance) {
+        return distance * ShipMovement.STEP_DURATION_MS + ShipEnterTunnel.MEAN_TIME_IN_TUNNEL_MS;
+    }
+
+    private int bestTunnel(Location from, Location to) {
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int t = 0; t < tunnels.size(); t++) {
+            int distance = distanceVia(from, tunnels.get(t).getLocation(), to);
+            if (distance < bestDistance) {
+                best = t;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    private int tunnelFor(Port from, Port to, Integer i, Integer j) {
+        if (tunnelMatrix != null && i != null && j != null) {
+            return tunnelMatrix[i * portCount + j];
+        }
+        return bestTunnel(from.getLocation(), to.getLocation());
+    }
+
+    public RoutePlan plan(Port from, Port to) {
+        if (densePlans == null) {
+            return sparsePlan(from, to);
+        }
+        Integer i = indexOf.get(from);
+        Integer j = indexOf.get(to);
+        if (i == null || j == null) {
+            // A port added after planning: plan it every time rather than grow the tables
+            cacheMisses.increment();
+            return new RoutePlan(from, to, tunnels.get(tunnelFor(from, to, i, j)));
+        }
+        int cell = i * portCount + j;
+        RoutePlan plan = densePlans.get(cell);
+        if (plan != null) {
+            cacheHits.increment();
+            return plan;
+        }
+        cacheMisses.increment();
+        plan = new RoutePlan(from, to, tunnels.get(tunnelMatrix[cell]));
+        return densePlans.compareAndSet(cell, null, plan) ? plan : densePlans.get(cell);
+    }
+
+    /**
+     * Past DENSE_MATRIX_LIMIT plans are cached by port ID pair as they are asked for, so a large
+     * world costs nothing to plan up front, not even a table of its ports.
+     */
+    private RoutePlan sparsePlan(Port from, Port to) {
+        Long key = ((long) from.getID() << 32) | (to.getID() & 0xffffffffL);
+        RoutePlan plan = sparsePlans.get(key);
+        if (plan != null) {
+            cacheHits.increment();
+            return plan;
+        }
+        cacheMisses.increment();
+        return sparsePlans.computeIfAbsent(key,
+                k -> new RoutePlan(from, to, tunnels.get(bestTunnel(from.getLocation(), to.getLocation()))));
+    }
+
+    public RoutePlan plan(Port from, Port to, Random random) {
+        RoutePlan plan = plan(from, to);
+        if (network.getSelection() == TunnelSelection.NEAREST) {
+            return plan;
+        }
+        Tunnel tunnel = network.select(from.getLocation(), to.getLocation(), plan.getTunnel(), random);
+        return tunnel == plan.getTunnel() ? plan : detour(from, to, tunnel);
+    }
+
+    private RoutePlan detour(Port from, Port to, Tunnel tunnel) {
+        Integer t = tunnelIndexOf.get(tunnel);
+        AtomicReferenceArray<RoutePlan> plans = detoursOf(from, to);
+        if (t == null || plans == null) {
+            cacheMisses.increment();
+            return RoutePlan.through(from, to, tunnel);
+        }
+        RoutePlan plan = plans.get(t);
+        if (plan != null) {
+            cacheHits.increment();
+            return plan;
+        }
+        cacheMisses.increment();
+        plan = RoutePlan.through(from, to, tunnel);
+        return plans.compareAndSet(t, null, plan) ? plan : plans.get(t);
+    }
+
+    /**
+     * The pair's detour plans, one slot per tunnel, or null for a port added after planning.
+     */
+    private AtomicReferenceArray<RoutePlan> detoursOf(Port from, Port to) {
+        if (denseDetours == null) {
+            Long key = ((long) from.getID() << 32) | (to.getID() & 0xffffffffL);
+            AtomicReferenceArray<RoutePlan> plans = sparseDetours.get(key);
+            return plans != null ? plans : sparseDetours.computeIfAbsent(key,
+                    k -> new AtomicReferenceArray<>(tunnels.size()));
+        }
+        Integer i = indexOf.get(from);
+        Integer j = indexOf.get(to);
+        if (i == null || j == null) {
+            return null;
+        }
+        int cell = i * portCount + j;
+        AtomicReferenceArray<RoutePlan> plans = denseDetours.get(cell);
+        if (plans == null) {
+            denseDetours.compareAndSet(cell, null, new AtomicReferenceArray<>(tunnels.size()));
+            plans = denseDetours.get(cell);
+        }
+        return plans;
+    }
+
+    public int getDistance(Port from, Port to) {
+        Integer i = indexOf.get(from);
+        Integer j = indexOf.get(to);
+        if (distanceMatrix != null && i != null && j != null) {
+            return distanceMatrix[i * portCount + j];
+        }
+        return plan(from, to).getDistance();
+    }
+
+    public long getTravelTimeMs(Port from, Port to) {
+        return travelTimeMs(getDistance(from, to));
+    }
+
+    public List<Tunnel> getTunnels() {
+        return tunnels;
+    }
+
+    public TunnelNetwork getTunnelNetwork() {
+        return network;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+}
+
+/**
+ * TUNNEL ADMISSION
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * TunnelPolicy
+ * Order in which waiting ships get a free tunnel lane.
+ */
+enum TunnelPolicy {
+    FIFO("fifo"),
+    PRIORITY("priority"),
+    FAIR("fair");
+
+    private final String name;
+
+    TunnelPolicy(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public AdmissionQueue createQueue() {
+        switch (this) {
+            case PRIORITY:
+                return new PriorityAdmissionQueue();
+            case FAIR:
+                return new WeightedFairAdmissionQueue();
+            case FIFO:
+            default:
+                return new FifoAdmissionQueue();
+        }
+    }
+
+    public static TunnelPolicy fromName(String name) {
+        for (TunnelPolicy policy : values()) {
+            if (policy.name.equals(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown tunnel policy: " + name);
+    }
+}
+
+/**
+ * AdmissionTicket
+ * A ship waiting for, or holding, a tunnel lane. The payload is whatever the caller needs back when
+ * the ticket is admitted later (the event engine stores its TunnelEnterEvent there).
+ */
+class AdmissionTicket {
+    private final Ship ship;
+    private final ShipCapacity shipCapacity;
+    private final Object payload;
+    private final long requestedAt;
+    private long sequence;
+    private Condition admittedSignal;
+    private boolean admitted;
+
+    public AdmissionTicket(Ship ship, Object payload, long requestedAt) {
+        this.ship = ship;
+        ShipCapacity capacity = ship == null ? null : ship.getShipCapacity();
+        this.shipCapacity = capacity != null ? capacity : ShipCapacity.SMALL;
+        this.payload = payload;
+        this.requestedAt = requestedAt;
+    }
+
+    public Ship getShip() {
+        return ship;
+    }
+
+    public ShipCapacity getShipCapacity() {
+        return shipCapacity;
+    }
+
+    public Object getPayload() {
+        return payload;
+    }
+
+    public long getRequestedAt() {
+        return requestedAt;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    Condition getAdmittedSignal() {
+        return admittedSignal;
+    }
+
+    void setAdmittedSignal(Condition admittedSignal) {
+        this.admittedSignal = admittedSignal;
+    }
+
+    boolean isAdmitted() {
+        return admitted;
+    }
+
+    void setAdmitted(boolean admitted) {
+        this.admitted = admitted;
+    }
+}
+
+/**
+ * AdmissionQueue
+ * Waiting tickets of one tunnel. Only called while the tunnel's admission lock is held.
+ */
+interface AdmissionQueue {
+    void add(AdmissionTicket ticket);
+
+    AdmissionTicket poll();
+
+    boolean remove(AdmissionTicket ticket);
+
+    int size();
+}
+
+/**
+ * FifoAdmissionQueue
+ * First come, first served.
+ */
+class FifoAdmissionQueue implements AdmissionQueue {
+    private final ArrayDeque<AdmissionTicket> tickets = new ArrayDeque<>();
+
+    @Override
+    public void add(AdmissionTicket ticket) {
+        tickets.add(ticket);
+    }
+
+    @Override
+    public AdmissionTicket poll() {
+        return tickets.poll();
+    }
+
+    @Override
+    public boolean remove(AdmissionTicket ticket) {
+        return tickets.remove(ticket);
+    }
+
+    @Override
+    public int size() {
+        return tickets.size();
+    }
+}
+
+/**
+ * PriorityAdmissionQueue
+ * Bigger ships first, FIFO among ships of the same capacity. Small ships can starve under load.
+ */
+class PriorityAdmissionQueue implements AdmissionQueue {
+    private final PriorityQueue<AdmissionTicket> tickets = new PriorityQueue<>(
+            Comparator.comparingInt((AdmissionTicket ticket) -> -ticket.getShipCapacity().ordinal())
+                    .thenComparingLong(AdmissionTicket::getSequence));
+
+    @Override
+    public void add(AdmissionTicket ticket) {
+        tickets.add(ticket);
+    }
+
+    @Override
+    public AdmissionTicket poll() {
+        return tickets.poll();
+    }
+
+    @Override
+    public boolean remove(AdmissionTicket ticket) {
+        return tickets.remove(ticket);
+    }
+
+    @Override
+    public int size() {
+        return tickets.size();
+    }
+}
+
+/**
+ * WeightedFairAdmissionQueue
+ * Stride scheduling across capacity classes, weighted by tonnage (SMALL 1, MIDDLE 2, BIG 4): under
+ * load each class gets lanes in proportion to its weight, and no class starves. A class that was
+ * idle rejoins at the current pass so it cannot bank credit while empty.
+ */
+class WeightedFairAdmissionQueue implements AdmissionQueue {
+    private static final long STRIDE = 1L << 20;
+    private static final ShipCapacity[] CLASSES = ShipCapacity.values();
+
+    private final List<ArrayDeque<AdmissionTicket>> queues = new ArrayList<>(CLASSES.length);
+    private final long[] pass = new long[CLASSES.length];
+    private final long[] stride = new long[CLASSES.length];
+    private int size;
+
+    public WeightedFairAdmissionQueue() {
+        for (ShipCapacity capacity : CLASSES) {
+            queues.add(new ArrayDeque<>());
+            stride[capacity.ordinal()] = STRIDE / (capacity.get() / ShipCapacity.SMALL.get());
+        }
+    }
+
+    @Override
+    public void add(AdmissionTicket ticket) {
+        int c = ticket.getShipCapacity().ordinal();
+        if (queues.get(c).isEmpty()) {
+            pass[c] = Math.max(pass[c], minActivePass());
+        }
+        queues.get(c).add(ticket);
+        size++;
+    }
+
+    private long minActivePass() {
+        long min = Long.MAX_VALUE;
+        for (int c = 0; c < queues.size(); c++) {
+            if (!queues.get(c).isEmpty()) {
+                min = Math.min(min, pass[c]);
+            }
+        }
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    @Override
+    public AdmissionTicket poll() {
+        int next = -1;
+        for (int c = 0; c < queues.size(); c++) {
+            if (!queues.get(c).isEmpty() && (next < 0 || pass[c] < pass[next])) {
+                next = c;
+            }
+        }
+        if (next < 0) {
+            return null;
+        }
+        pass[next] += stride[next];
+        size--;
+        return queues.get(next).poll();
+    }
+
+    @Override
+    public boolean remove(AdmissionTicket ticket) {
+        boolean removed = queues.get(ticket.getShipCapacity().ordinal()).remove(ticket);
+        if (removed) {
+            size--;
+        }
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
+
+/**
+ * TunnelAdmission
+ * Admission scheduler for a tunnel with a fixed number of lanes. A ship gets a lane at once when
+ * one is free and nobody is waiting; otherwise it waits in the policy's queue and is handed a lane
+ * directly by the ship that leaves. Blocking callers use acquire/release; the event engine uses
+ * offer/release(now) and gets the admitted ticket back instead of being woken up.
+ * Also records queue length, wait time, throughput and tonnage.
+ */
+class TunnelAdmission {
+    private final int lanes;
+    private final TunnelPolicy policy;
+    private final AdmissionQueue waiting;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long createdAt = System.currentTimeMillis();
+    private int lanesInUse;
+    private long sequence;
+    private volatile int queueLength;
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder admittedTonnage = new LongAdder();
+    private final LongAdder totalWaitMs = new LongAdder();
+    private final AtomicLong maxWaitMs = new AtomicLong();
+
+    public TunnelAdmission(int lanes, TunnelPolicy policy) {
+        if (lanes <= 0) {
+            throw new IllegalArgumentException("A tunnel needs at least one lane: " + lanes);
+        }
+        this.lanes = lanes;
+        this.policy = policy;
+        this.waiting = policy.createQueue();
+    }
+
+    public void acquire(Ship ship) throws InterruptedException {
+        AdmissionTicket ticket = new AdmissionTicket(ship, null, System.currentTimeMillis());
+        lock.lock();
+        try {
+            if (tryAdmit(ticket, ticket.getRequestedAt())) {
+                return;
+            }
+            ticket.setAdmittedSignal(lock.newCondition());
+            enqueue(ticket);
+            try {
+                while (!ticket.isAdmitted()) {
+                    ticket.getAdmittedSignal().await();
+                }
+            } catch (InterruptedException e) {
+                if (ticket.isAdmitted()) {
+                    // Handed a lane while being interrupted: pass it on
+                    releaseLocked(System.currentTimeMillis());
+                } else {
+                    waiting.remove(ticket);
+                    queueLength = waiting.size();
+                }
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        release(System.currentTimeMillis());
+    }
+
+    /**
+     * Queues the ticket, or admits it at once if a lane is free.
+     *
+     * @return true if the ticket was admitted immediately.
+     */
+    public boolean offer(AdmissionTicket ticket, long now) {
+        lock.lock();
+        try {
+            if (tryAdmit(ticket, now)) {
+                return true;
+            }
+            enqueue(ticket);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees a lane and hands it to the next waiting ticket.
+     *
+     * @return the ticket admitted into the freed lane, or null if nobody was waiting.
+     */
+    public AdmissionTicket release(long now) {
+        lock.lock();
+        try {
+            return releaseLocked(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean tryAdmit(AdmissionTicket ticket, long now) {
+        if (lanesInUse < lanes && waiting.size() == 0) {
+            lanesInUse++;
+            recordAdmission(ticket, now);
+            return true;
+        }
+        return false;
+    }
+
+    private void enqueue(AdmissionTicket ticket) {
+        ticket.setSequence(sequence++);
+        waiting.add(ticket);
+        queueLength = waiting.size();
+    }
+
+    private AdmissionTicket releaseLocked(long now) {
+        AdmissionTicket next = waiting.poll();
+        queueLength = waiting.size();
+        if (next == null) {
+            lanesInUse--;
+            return null;
+        }
+        // The lane goes straight to the next ship, so lanesInUse stays the same
+        next.setAdmitted(true);
+        recordAdmission(next, now);
+        if (next.getAdmittedSignal() != null) {
+            next.getAdmittedSignal().signal();
+        }
+        return next;
+    }
+
+    private void recordAdmission(AdmissionTicket ticket, long now) {
+        long waitMs = Math.max(0, now - ticket.getRequestedAt());
+        admitted.increment();
+        admittedTonnage.add(ticket.getShipCapacity().get());
+        totalWaitMs.add(waitMs);
+        maxWaitMs.accumulateAndGet(waitMs, Math::max);
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    public TunnelPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getQueueLength() {
+        return queueLength;
+    }
+
+    public int getLanesInUse() {
+        lock.lock();
+        try {
+            return lanesInUse;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rough wait a ship arriving now would see: the queue ahead of it drains lanes ships at a time.
+     */
+    public long getExpectedWaitMs() {
+        return (long) queueLength * ShipEnterTunnel.MEAN_TIME_IN_TUNNEL_MS / lanes;
+    }
+
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    public long getAdmittedTonnage() {
+        return admittedTonnage.sum();
+    }
+
+    public double getMeanWaitMs() {
+        long count = admitted.sum();
+        return count == 0 ? 0 : (double) totalWaitMs.sum() / count;
+    }
+
+    public long getMaxWaitMs() {
+        return maxWaitMs.get();
+    }
+
+    public String getStats() {
+        return getStats(System.currentTimeMillis() - createdAt);
+    }
+
+    public String getStats(long elapsedMs) {
+        double hours = Math.max(elapsedMs, 1) / 3_600_000.0;
+        return String.format("Tunnel (%d lanes, %s): queue=%d, admitted=%d, wait mean=%.0f ms max=%d ms, "
+                + "throughput=%.1f ships/h, %.0f tonnage/h",
+                lanes, policy.getName(), getQueueLength(), getAdmitted(), getMeanWaitMs(), getMaxWaitMs(),
+                getAdmitted() / hours, getAdmittedTonnage() / hours);
+    }
+}
+
+/**
+ * TunnelAdmissions
+ * Builds the admission scheduler for the "tunnel.lanes" and "tunnel.policy" startup options.
+ */
+class TunnelAdmissions {
+    public static TunnelAdmission create(WorldConfig config) {
+        return new TunnelAdmission(config.getInt("tunnel.lanes", Tunnel.MAX_CONNECTIONS),
+                TunnelPolicy.fromName(config.getString("tunnel.policy", "fifo")));
+    }
+}
+
+/**
+ * TUNNEL NETWORK
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * TunnelSelection
+ * How a voyage picks its tunnel among the candidates of a TunnelNetwork.
+ */
+enum TunnelSelection {
+    NEAREST("nearest"),
+    LEAST_LOADED("least-loaded"),
+    TWO_CHOICES("two-choices");
+
+    private final String name;
+
+    TunnelSelection(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static TunnelSelection fromName(String name) {
+        for (TunnelSelection selection : values()) {
+            if (selection.name.equals(name)) {
+                return selection;
+            }
+        }
+        throw new IllegalArgumentException("Unknown tunnel selection: " + name);
+    }
+}
+
+/**
+ * TunnelNetwork
+ * All tunnels of the world. A voyage costs its sailing time through a tunnel plus the wait that
+ * tunnel's queue currently predicts. Candidates are the shortest-route tunnel plus the tunnels
+ * nearest to the origin; NEAREST always takes the shortest route, LEAST_LOADED the cheapest
+ * candidate, and TWO_CHOICES the cheaper of two random candidates, which spreads load almost as
+ * well without every ship herding to the same momentarily empty tunnel.
+ */
+class TunnelNetwork {
+    static final int INDEX_CELL_SIZE = 10;
+
+    private final List<Tunnel> tunnels;
+    private final TunnelSelection selection;
+    private final int candidates;
+    private final SpatialIndex<Tunnel> index;
+    private final long createdAt = System.currentTimeMillis();
+
+    public TunnelNetwork(List<Tunnel> tunnels, TunnelSelection selection, int candidates) {
+        if (tunnels.isEmpty()) {
+            throw new IllegalArgumentException("A tunnel network needs at least one tunnel");
+        }
+        if (candidates <= 0) {
+            throw new IllegalArgumentException("Candidate count must be positive: " + candidates);
+        }
+        this.tunnels = Collections.unmodifiableList(new ArrayList<>(tunnels));
+        this.selection = selection;
+        this.candidates = candidates;
+        this.index = new SpatialIndex<>(cellSize(this.tunnels));
+        for (Tunnel tunnel : this.tunnels) {
+            index.update(tunnel);
+        }
+    }
+
+    /**
+     * About one tunnel per cell: scenario worlds can be far larger than the generated 100x100 one,
+     * and a nearest search over fixed small cells would walk thousands of empty rings.
+     */
+    private static int cellSize(List<Tunnel> tunnels) {
+        int minX = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (Tunnel tunnel : tunnels) {
+            Location location = tunnel.getLocation();
+            minX = Math.min(minX, location.getX());
+            maxX = Math.max(maxX, location.getX());
+            minY = Math.min(minY, location.getY());
+            maxY = Math.max(maxY, location.getY());
+        }
+        long span = Math.max((long) maxX - minX, (long) maxY - minY);
+        long perSide = (long) Math.ceil(Math.sqrt(tunnels.size()));
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(INDEX_CELL_SIZE, span / perSide));
+    }
+
+    public long costMs(Location from, Tunnel tunnel, Location to) {
+        return RoutePlanner.distanceVia(from, tunnel.getLocation(), to) * ShipMovement.STEP_DURATION_MS
+                + tunnel.getAdmission().getExpectedWaitMs();
+    }
+
+    /**
+     * Picks the tunnel for a voyage.
+     *
+     * @param shortest: The tunnel on the shortest route, always a candidate.
+     */
+    public Tunnel select(Location from, Location to, Tunnel shortest, Random random) {
+        if (selection == TunnelSelection.NEAREST || tunnels.size() == 1) {
+            return shortest;
+        }
+        List<Tunnel> pool = candidates >= tunnels.size() ? tunnels : index.nearest(from, candidates);
+        if (!pool.contains(shortest)) {
+            pool.add(shortest);
+        }
+        if (selection == TunnelSelection.TWO_CHOICES) {
+            if (pool.size() == 1) {
+                return shortest;
+            }
+            // Two distinct candidates: the second draw skips over the first
+            int a = random.nextInt(pool.size());
+            int b = random.nextInt(pool.size() - 1);
+            if (b >= a) {
+                b++;
+            }
+            Tunnel first = pool.get(a);
+            Tunnel second = pool.get(b);
+            return costMs(from, second, to) < costMs(from, first, to) ? second : first;
+        }
+        Tunnel best = shortest;
+        long bestCost = costMs(from, shortest, to);
+        for (Tunnel tunnel : pool) {
+            long cost = costMs(from, tunnel, to);
+            if (cost < bestCost) {
+                best = tunnel;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    public List<Tunnel> getTunnels() {
+        return tunnels;
+    }
+
+    public TunnelSelection getSelection() {
+        return selection;
+    }
+
+    public int getCandidates() {
+        return candidates;
+    }
+
+    public int getTotalQueueLength() {
+        int total = 0;
+        for (Tunnel tunnel : tunnels) {
+            total += tunnel.getAdmission().getQueueLength();
+        }
+        return total;
+    }
+
+    public long getTotalAdmitted() {
+        long total = 0;
+        for (Tunnel tunnel : tunnels) {
+            total += tunnel.getAdmission().getAdmitted();
+        }
+        return total;
+    }
+
+    public String getStats() {
+        return getStats(System.currentTimeMillis() - createdAt);
+    }
+
+    public String getStats(long elapsedMs) {
+        StringBuilder stats = new StringBuilder();
+        stats.append(String.format("Tunnel network (%d tunnels, %s): queue=%d, admitted=%d, throughput=%.1f ships/h",
+                tunnels.size(), selection.getName(), getTotalQueueLength(), getTotalAdmitted(),
+                getTotalAdmitted() / (Math.max(elapsedMs, 1) / 3_600_000.0)));
+        for (Tunnel tunnel : tunnels) {
+            Location location = tunnel.getLocation();
+            stats.append(System.lineSeparator()).append("  at (").append(location.getX()).append(", ")
+                    .append(location.getY()).append(") ").append(tunnel.getAdmission().getStats(elapsedMs));
+        }
+        return stats.toString();
+    }
+}
+
+/**
+ * TunnelNetworks
+ * Builds the tunnel network for the "tunnels", "tunnel.select" and "tunnel.candidates" startup
+ * options. The first tunnel keeps the original location; the others are placed by FabricTunel.
+ */
+class TunnelNetworks {
+    public static TunnelNetwork create(WorldConfig config, Location firstLocation, FabricTunel fabricTunel) {
+        int count = config.getInt("tunnels", 1);
+        if (count <= 0) {
+            throw new IllegalArgumentException("The world needs at least one tunnel: " + count);
+        }
+        List<Tunnel> tunnels = new ArrayList<>(count);
+        tunnels.add(fabricTunel.create(firstLocation));
+        for (int i = 1; i < count; i++) {
+            tunnels.add(fabricTunel.create());
+        }
+        return new TunnelNetwork(tunnels,
+                TunnelSelection.fromName(config.getString("tunnel.select", "two-choices")),
+                config.getInt("tunnel.candidates", 4));
+    }
+}
+
+/**
+ * RANDOM STREAMS
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * RandomStream
+ * A java.util.Random backed by a SplittableRandom, so it can be passed wherever the simulation takes
+ * a Random. It has no shared atomic seed: a stream belongs to one port or task at a time, and a task
+ * that starts another hands it split() instead of sharing its own stream. setSeed(seed) restarts it
+ * as new RandomStream(seed).
+ */
+class RandomStream extends Random {
+    private static final long serialVersionUID = 1L;
+
+    private SplittableRandom source;
+
+    public RandomStream(long seed) {
+        this(new SplittableRandom(seed));
+    }
+
+    private RandomStream(SplittableRandom source) {
+        super(0L);
+        this.source = source;
+    }
+
+    public RandomStream split() {
+        return new RandomStream(source.split());
+    }
+
+    @Override
+    public synchronized void setSeed(long seed) {
+        // Random's constructor seeds itself before source is assigned; the constructor sets source then
+        if (source != null) {
+            source = new SplittableRandom(seed);
+        }
+    }
+
+    @Override
+    protected int next(int bits) {
+        return (int) (source.nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public int nextInt() {
+        return source.nextInt();
+    }
+
+    @Override
+    public int nextInt(int bound) {
+        return source.nextInt(bound);
+    }
+
+    @Override
+    public long nextLong() {
+        return source.nextLong();
+    }
+
+    @Override
+    public double nextDouble() {
+        return source.nextDouble();
+    }
+
+    @Override
+    public boolean nextBoolean() {
+        return source.nextBoolean();
+    }
+}
+
+/**
+ * RandomStreams
+ * Hands out independent RandomStreams derived from one master seed: the "seed" startup option, or
+ * a fresh seed that is printed so the run can be repeated. The stream for a given purpose and id is
+ * the same on every run with the same seed, whatever order the streams are asked for in.
+ */
+class RandomStreams {
+    static final int WORLD = 0;
+    static final int PORT = 1;
+    static final int EVENTS = 2;
+    static final int SHIPYARD = 3;
+
+    private final long masterSeed;
+
+    public RandomStreams(long masterSeed) {
+        this.masterSeed = masterSeed;
+    }
+
+    public static RandomStreams create(WorldConfig config) {
+        return new RandomStreams(config.has("seed") ? config.getLong("seed", 0L) : new SplittableRandom().nextLong());
+    }
+
+    /**
+     * Stafford's variant 13 of the SplitMix64 finalizer: spreads nearby inputs over all 64 bits.
+     */
+    static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public RandomStream stream(int purpose, long id) {
+        return new RandomStream(mix64(masterSeed ^ mix64(((long) purpose << 56) ^ id)));
+    }
+
+    public RandomStream forPort(int portId) {
+        return stream(PORT, portId);
+    }
+
+    public long getMasterSeed() {
+        return masterSeed;
+    }
+
+    /**
+     * A stream for a task started by the owner of random: a split when random is a RandomStream,
+     * otherwise the same Random, shared as before.
+     */
+    static Random split(Random random) {
+        return random instanceof RandomStream ? ((RandomStream) random).split() : random;
+    }
+}
+
+/**
+ * METRICS
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * Metric
+ * A named measurement. getValues() lists its current attributes, e.g. Count or P99, which is what
+ * both the snapshot and the JMX MBean publish.
+ */
+interface Metric {
+    String getName();
+
+    Map<String, Number> getValues();
+}
+
+/**
+ * MetricCounter
+ * Monotonic count, striped over a LongAdder so hot paths never contend on one cache line.
+ */
+class MetricCounter implements Metric {
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    private long lastSnapshotCount;
+
+    public MetricCounter(String name) {
+        this.name = name;
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long delta) {
+        count.add(delta);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Events since the previous call. Only the snapshot thread calls this.
+     */
+    long takeDelta() {
+        long current = count.sum();
+        long delta = current - lastSnapshotCount;
+        lastSnapshotCount = current;
+        return delta;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Map<String, Number> getValues() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        values.put("Count", getCount());
+        return values;
+    }
+}
+
+/**
+ * MetricGauge
+ * A value read on demand, e.g. occupied berths or live threads.
+ */
+class MetricGauge implements Metric {
+    private final String name;
+    private final LongSupplier supplier;
+
+    public MetricGauge(String name, LongSupplier supplier) {
+        this.name = name;
+        this.supplier = supplier;
+    }
+
+    public long getValue() {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Map<String, Number> getValues() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        values.put("Value", getValue());
+        return values;
+    }
+}
+
+/**
+ * MetricHistogram
+ * Lock-free log-linear histogram of non-negative longs. Values below SUB_BUCKETS get their own
+ * bucket; above that every power of two is split into SUB_BUCKETS buckets, so a percentile is
+ * within 1/SUB_BUCKETS (12.5%) of the true value. Recording is one array increment plus two adders.
+ */
+class MetricHistogram implements Metric {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public MetricHistogram(String name) {
+        this.name = name;
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * The value below which the given fraction of recordings fall, e.g. 0.99 for p99. Reports the
+     * upper edge of the bucket, capped at the largest value seen.
+     */
+    public long getPercentile(double fraction) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= rank) {
+                long upper = bucket + 1 < BUCKETS ? lowerBoundOf(bucket + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Map<String, Number> getValues() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        values.put("Count", getCount());
+        values.put("Mean", getMean());
+        values.put("P50", getPercentile(0.50));
+        values.put("P90", getPercentile(0.90));
+        values.put("P99", getPercentile(0.99));
+        values.put("Max", getMax());
+        return values;
+    }
+}
+
+/**
+ * MetricMBean
+ * Publishes one Metric over JMX as com.example:type=Metrics,name=<metric name>. Dynamic so the
+ * package-private metric classes need no public MBean interfaces; all attributes are read-only.
+ */
+class MetricMBean implements DynamicMBean {
+    private final Metric metric;
+    private final MBeanInfo info;
+
+    public MetricMBean(Metric metric) {
+        this.metric = metric;
+        Map<String, Number> values = metric.getValues();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> value : values.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                    value.getKey() + " of " + metric.getName(), true, false, false);
+        }
+        this.info = new MBeanInfo(MetricMBean.class.getName(), metric.getName(), attributes, null, null, null);
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = metric.getValues().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = metric.getValues();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("Metrics have no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+}
+
+/**
+ * MetricsRegistry
+ * Metrics by name. Asking for an existing name returns the same metric, so call sites can look
+ * metrics up lazily (per-port counters). Once JMX is enabled every metric, including those
+ * created later, is registered as an MBean.
+ */
+class MetricsRegistry {
+    static final String JMX_DOMAIN = "com.example";
+
+    private final ConcurrentHashMap<String, Metric> metrics = new ConcurrentHashMap<>();
+    private volatile MBeanServer mbeanServer;
+    private long lastSnapshotAt = System.currentTimeMillis();
+
+    public MetricCounter counter(String name) {
+        return (MetricCounter) register(name, () -> new MetricCounter(name));
+    }
+
+    public MetricHistogram histogram(String name) {
+        return (MetricHistogram) register(name, () -> new MetricHistogram(name));
+    }
+
+    public MetricGauge gauge(String name, LongSupplier supplier) {
+        return (MetricGauge) register(name, () -> new MetricGauge(name, supplier));
+    }
+
+    private Metric register(String name, Supplier<Metric> factory) {
+        Metric metric = metrics.get(name);
+        if (metric != null) {
+            return metric;
+        }
+        boolean[] created = new boolean[1];
+        metric = metrics.computeIfAbsent(name, key -> {
+            created[0] = true;
+            return factory.get();
+        });
+        if (created[0] && mbeanServer != null) {
+            publish(mbeanServer, metric);
+        }
+        return metric;
+    }
+
+    public synchronized void enableJmx(MBeanServer server) {
+        if (mbeanServer != null) {
+            return;
+        }
+        mbeanServer = server;
+        for (Metric metric : metrics.values()) {
+            publish(server, metric);
+        }
+    }
+
+    private static void publish(MBeanServer server, Metric metric) {
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(metric.getName()));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new MetricMBean(metric), objectName);
+            }
+        } catch (JMException e) {
+            System.err.println("Metric " + metric.getName() + " not published over JMX: " + e.getMessage());
+        }
+    }
+
+    public Metric get(String name) {
+        return metrics.get(name);
+    }
+
+    /**
+     * Snapshot over the wall-clock interval since the previous snapshot.
+     */
+    public synchronized String snapshot() {
+        long now = System.currentTimeMillis();
+        long interval = now - lastSnapshotAt;
+        lastSnapshotAt = now;
+        return snapshot(interval);
+    }
+
+    /**
+     * All metrics sorted by name; counters also show their rate over intervalMs.
+     */
+    public synchronized String snapshot(long intervalMs) {
+        double seconds = Math.max(intervalMs, 1) / 1000.0;
+        StringBuilder snapshot = new StringBuilder("Metrics:");
+        for (Metric metric : new TreeMap<>(metrics).values()) {
+            snapshot.append(System.lineSeparator()).append("  ").append(metric.getName());
+            if (metric instanceof MetricHistogram) {
+                MetricHistogram histogram = (MetricHistogram) metric;
+                snapshot.append(String.format(" count=%d mean=%.1f p50=%d p99=%d max=%d", histogram.getCount(),
+                        histogram.getMean(), histogram.getPercentile(0.50), histogram.getPercentile(0.99),
+                        histogram.getMax()));
+            } else if (metric instanceof MetricCounter) {
+                MetricCounter counter = (MetricCounter) metric;
+                snapshot.append(String.format(" count=%d rate=%.2f/s", counter.getCount(),
+                        counter.takeDelta() / seconds));
+            } else if (metric instanceof MetricGauge) {
+                snapshot.append(" value=").append(((MetricGauge) metric).getValue());
+            }
+        }
+        return snapshot.toString();
+    }
+}
+
+/**
+ * Metrics
+ * The simulation's metrics. Recording is always on and costs an adder increment; the
+ * "metrics" startup options only control publishing:
+ * metrics=on|off, metrics.jmx=on|off and metrics.period=<ms> for the periodic snapshot (0 = none).
+ */
+class Metrics {
+    static final long DEFAULT_PERIOD_MS = 10_000;
+
+    static final MetricsRegistry REGISTRY = new MetricsRegistry();
+    static final MetricHistogram TUNNEL_WAIT_MS = REGISTRY.histogram("tunnel.wait.ms");
+    static final MetricHistogram TUNNEL_TRANSIT_MS = REGISTRY.histogram("tunnel.transit.ms");
+    static final MetricHistogram MOVEMENT_MS = REGISTRY.histogram("ship.movement.ms");
+    static final MetricHistogram VOYAGE_MS = REGISTRY.histogram("ship.voyage.ms");
+    static final MetricCounter SHIPS_GENERATED = REGISTRY.counter("ships.generated");
+    static final MetricCounter SHIPS_UNLOADED = REGISTRY.counter("ships.unloaded");
+    static final MetricCounter CARGO_UNLOADED = REGISTRY.counter("cargo.unloaded");
+    static final MetricCounter SHIPS_RETIRED = REGISTRY.counter("ships.retired");
+    static final MetricCounter SHIPS_RECYCLED = REGISTRY.counter("ships.recycled");
+    static final MetricCounter BERTHS_REJECTED = REGISTRY.counter("berths.rejected");
+    static final MetricCounter SHIPS_REDIRECTED = REGISTRY.counter("ships.redirected");
+    static final MetricCounter SHIPS_HELD = REGISTRY.counter("ships.held");
+    static final MetricCounter TELEMETRY_FRAMES = REGISTRY.counter("telemetry.frames");
+    static final MetricCounter TELEMETRY_BYTES = REGISTRY.counter("telemetry.bytes");
+    static final MetricCounter TELEMETRY_DROPPED = REGISTRY.counter("telemetry.dropped");
+
+    private static final ConcurrentHashMap<Integer, MetricCounter> SHIPS_GENERATED_BY_PORT = new ConcurrentHashMap<>();
+
+    public static MetricCounter shipsGenerated(int portId) {
+        MetricCounter counter = SHIPS_GENERATED_BY_PORT.get(portId);
+        if (counter == null) {
+            counter = SHIPS_GENERATED_BY_PORT.computeIfAbsent(portId,
+                    id -> REGISTRY.counter("port." + id + ".ships.generated"));
+        }
+        return counter;
+    }
+
+    private static volatile boolean enabled;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void start(WorldConfig config, PortDataBase portDataBase) {
+        if (config.getString("metrics", "on").equals("off")) {
+            return;
+        }
+        enabled = true;
+        REGISTRY.gauge("berths.occupied", () -> {
+            long occupied = 0;
+            for (Port port : portDataBase.getPorts()) {
+                if (port.hasShipStorage()) {
+                    occupied += port.getShipStorage().getOccupancy();
+                }
+            }
+            return occupied;
+        });
+        REGISTRY.gauge("berths.reserved", () -> {
+            long reserved = 0;
+            for (Port port : portDataBase.getPorts()) {
+                if (port.hasShipStorage()) {
+                    reserved += port.getShipStorage().getReserved();
+                }
+            }
+            return reserved;
+        });
+        REGISTRY.gauge("berths.capacity", portDataBase::getBerthCapacity);
+        REGISTRY.gauge("fleet.active", () -> portDataBase.getFleetManager().getActive());
+        REGISTRY.gauge("ships.holding", () -> portDataBase.getShipHolding().getHolding());
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        REGISTRY.gauge("threads.live", threads::getThreadCount);
+        REGISTRY.gauge("threads.peak", threads::getPeakThreadCount);
+        REGISTRY.gauge("threads.daemon", threads::getDaemonThreadCount);
+
+        if (!config.getString("metrics.jmx", "on").equals("off")) {
+            REGISTRY.enableJmx(ManagementFactory.getPlatformMBeanServer());
+        }
+
+        long period = config.getLong("metrics.period", DEFAULT_PERIOD_MS);
+        if (period > 0 && config.getString("engine", "threads").equals("threads")) {
+            Thread snapshots = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(period);
+                        System.out.println(REGISTRY.snapshot());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "metrics-snapshot");
+            snapshots.setDaemon(true);
+            snapshots.start();
+        }
+    }
+}
+
+/**
+ * CARGO LEDGER
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * CargoLedger
+ * Cargo amounts as primitive longs, one slot per FabricProduct ordinal. Every update is a single
+ * atomic instruction on its slot (add is a fetch-and-add, never a retry loop), so concurrent
+ * unloads into one port cannot lose each other's cargo. A port owns a ledger with every slot; a
+ * ship's product only needs its own, so forProduct() holds that single slot.
+ */
+class CargoLedger {
+    static final int PRODUCT_COUNT = FabricProduct.values().length;
+
+    private final int first;
+    private final AtomicLongArray slots;
+
+    public CargoLedger() {
+        this(0, PRODUCT_COUNT);
+    }
+
+    private CargoLedger(int first, int count) {
+        this.first = first;
+        this.slots = new AtomicLongArray(count);
+    }
+
+    /**
+     * A ledger holding only the given product's slot. Other products read as zero and cannot be written.
+     */
+    static CargoLedger forProduct(int ordinal) {
+        return new CargoLedger(ordinal, 1);
+    }
+
+    public long get(int ordinal) {
+        int slot = ordinal - first;
+        return slot >= 0 && slot < slots.length() ? slots.get(slot) : 0;
+    }
+
+    public void set(int ordinal, long amount) {
+        int slot = slotOf(ordinal);
+        WorldEpoch.begin();
+        try {
+            slots.set(slot, amount);
+        } finally {
+            WorldEpoch.end();
+        }
+    }
+
+    public long add(int ordinal, long amount) {
+        int slot = slotOf(ordinal);
+        WorldEpoch.begin();
+        try {
+            return slots.addAndGet(slot, amount);
+        } finally {
+            WorldEpoch.end();
+        }
+    }
+
+    public long takeAll(int ordinal) {
+        int slot = slotOf(ordinal);
+        WorldEpoch.begin();
+        try {
+            return slots.getAndSet(slot, 0);
+        } finally {
+            WorldEpoch.end();
+        }
+    }
+
+    private int slotOf(int ordinal) {
+        int slot = ordinal - first;
+        if (slot < 0 || slot >= slots.length()) {
+            throw new IllegalArgumentException("No cargo slot for product " + ordinal);
+        }
+        return slot;
+    }
+
+    /**
+     * Moves everything in one ledger's slot to another's. The source slot is emptied atomically, so
+     * two concurrent transfers of the same cargo cannot both deliver it.
+     *
+     * @return the amount moved.
+     */
+    public static long transfer(CargoLedger from, CargoLedger to, int ordinal) {
+        // One change for WorldView readers: they never see the cargo in neither ledger
+        WorldEpoch.begin();
+        try {
+            long amount = from.takeAll(ordinal);
+            if (amount != 0) {
+                to.add(ordinal, amount);
+            }
+            return amount;
+        } finally {
+            WorldEpoch.end();
+        }
+    }
+}
+
+/**
+ * FLEET LIFECYCLE
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * ObjectPool
+ * Bounded pool of reusable objects. acquire() returns null when the pool is empty so the caller
+ * decides how to build a fresh object; release() drops the object when the pool is full.
+ */
+class ObjectPool<T> {
+    private final ArrayBlockingQueue<T> free;
+
+    public ObjectPool(int capacity) {
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public T acquire() {
+        return free.poll();
+    }
+
+    public boolean release(T obj) {
+        return free.offer(obj);
+    }
+
+    public int size() {
+        return free.size();
+    }
+}
+
+/**
+ * FleetManager
+ * Lifecycle of ships: at most maxFleetSize ships sail at once (0 = no limit), and a ship retires
+ * after maxVoyages completed voyages (0 = never). A ship joins the ship index when it is registered.
+ * A retiring ship is not sent again; when its last
+ * berth or voyage hold is released it leaves the ship index and goes to the pool of its product and
+ * capacity, and FabricShip recommissions it with its own Location and cargo instead of allocating.
+ * Options: fleet.max, fleet.maxVoyages, fleet.pool (retired ships kept per type), fleet.store (ships
+ * built into a FleetStore of that capacity; 0, the default, builds every ship as an object).
+ */
+class FleetManager {
+    static final int DEFAULT_POOL_CAPACITY = 1024;
+
+    private final SpatialIndex<Ship> shipIndex;
+    private final int maxFleetSize;
+    private final int maxVoyages;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder retired = new LongAdder();
+    private final LongAdder recycled = new LongAdder();
+    private final List<ObjectPool<Ship>> pools;
+    // Every ship built for this fleet, active or pooled; pooled ships are recommissioned, never rebuilt
+    private final Set<Ship> ships = ConcurrentHashMap.newKeySet();
+    private final ShipRegistry registry = new ShipRegistry();
+    private FleetStore store;
+
+    public FleetManager(SpatialIndex<Ship> shipIndex, int maxFleetSize, int maxVoyages, int poolCapacity) {
+        this.shipIndex = shipIndex;
+        this.maxFleetSize = maxFleetSize;
+        this.maxVoyages = maxVoyages;
+        int poolCount = CargoLedger.PRODUCT_COUNT * ShipCapacity.values().length;
+        this.pools = new ArrayList<>(poolCount);
+        for (int i = 0; i < poolCount; i++) {
+            pools.add(new ObjectPool<>(poolCapacity));
+        }
+    }
+
+    /**
+     * The fleet of a world whose ports are all added. fleet.max defaults to the world's berth capacity,
+     * so every active ship could be docked at once; fleet.max=0 lifts the cap.
+     */
+    public static FleetManager create(WorldConfig config, PortDataBase portDataBase) {
+        FleetManager fleet = new FleetManager(portDataBase.getShipIndex(),
+                config.getInt("fleet.max", (int) Math.min(Integer.MAX_VALUE, portDataBase.getBerthCapacity())),
+                config.getInt("fleet.maxVoyages", 0), config.getInt("fleet.pool", DEFAULT_POOL_CAPACITY));
+        int storeCapacity = config.getInt("fleet.store", 0);
+        if (storeCapacity > 0) {
+            fleet.setStore(new FleetStore(storeCapacity));
+        }
+        return fleet;
+    }
+
+    /**
+     * Builds new ships into the given store while it has room. Set before the first ship is built.
+     */
+    public void setStore(FleetStore store) {
+        this.store = store;
+    }
+
+    /**
+     * The store new ships are built into, or null if every ship is an object.
+     */
+    public FleetStore getStore() {
+        return store;
+    }
+
+    private ObjectPool<Ship> poolOf(int productOrdinal, int capacityOrdinal) {
+        return pools.get(productOrdinal * ShipCapacity.values().length + capacityOrdinal);
+    }
+
+    /**
+     * Takes a place in the fleet for a new ship.
+     *
+     * @return false if the fleet is at its maximum size.
+     */
+    public boolean tryCommission() {
+        if (maxFleetSize <= 0) {
+            active.incrementAndGet();
+            return true;
+        }
+        int current = active.get();
+        while (current < maxFleetSize) {
+            if (active.compareAndSet(current, current + 1)) {
+                return true;
+            }
+            current = active.get();
+        }
+        return false;
+    }
+
+    public void cancelCommission() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * Adds a new or recommissioned ship to the fleet under its current ID.
+     */
+    public void register(Ship ship) {
+        WorldEpoch.begin();
+        try {
+            ships.add(ship);
+            registry.put(ship);
+        } finally {
+            WorldEpoch.end();
+        }
+        shipIndex.update(ship);
+    }
+
+    /**
+     * Adds a ship restored from a snapshot as an active member of the fleet, even above maxFleetSize.
+     */
+    public void restore(Ship ship) {
+        active.incrementAndGet();
+        register(ship);
+    }
+
+    /**
+     * The active ship with the given ID, or null if no ship has it or the ship retired.
+     */
+    public Ship find(long id) {
+        return registry.get(id);
+    }
+
+    public ShipRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Every ship of the fleet; retired ones report isRetired().
+     */
+    public Set<Ship> getShips() {
+        return Collections.unmodifiableSet(ships);
+    }
+
+    /**
+     * A retired ship of the given type, or null if none is waiting in the pool.
+     */
+    public Ship reuse(int productOrdinal, int capacityOrdinal) {
+        Ship ship = poolOf(productOrdinal, capacityOrdinal).acquire();
+        if (ship != null) {
+            recycled.increment();
+            Metrics.SHIPS_RECYCLED.increment();
+        }
+        return ship;
+    }
+
+    /**
+     * Marks the ship as retiring once it has completed maxVoyages voyages, and retires it at once
+     * if nothing holds it.
+     *
+     * @return true if the ship is retiring; the caller must not send it again.
+     */
+    public boolean retireIfDue(Ship ship) {
+        if (ship.isRetiring()) {
+            return true;
+        }
+        if (maxVoyages <= 0 || ship.getVoyages() < maxVoyages) {
+            return false;
+        }
+        ship.markRetiring();
+        retire(ship);
+        return true;
+    }
+
+    /**
+     * Drops a berth or voyage hold on the ship; the last hold on a retiring ship retires it.
+     */
+    public void unhold(Ship ship) {
+        if (ship.unhold() && ship.isRetiring()) {
+            retire(ship);
+        }
+    }
+
+    private void retire(Ship ship) {
+        WorldEpoch.begin();
+        try {
+            if (!ship.tryRetire()) {
+                return;
+            }
+            registry.remove(ship);
+        } finally {
+            WorldEpoch.end();
+        }
+        shipIndex.remove(ship);
+        active.decrementAndGet();
+        retired.increment();
+        Metrics.SHIPS_RETIRED.increment();
+        EventLog.log(LogEvent.SHIP_RETIRED, ship, -1);
+        EventJournal.record(JournalEvent.SHIP_RETIRED, ship, -1, 0);
+        // In a TickWorld phase the pools are filled in port order by the merge, not in retirement order
+        TickEffects effects = TickEffects.current();
+        if (effects != null) {
+            effects.pool(ship);
+        } else {
+            pool(ship);
+        }
+    }
+
+    /**
+     * Puts a retired ship in the pool of its product and capacity.
+     */
+    void pool(Ship ship) {
+        poolOf(ship.getProductOrdinal(), ship.getCapacityOrdinal()).release(ship);
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    public int getMaxFleetSize() {
+        return maxFleetSize;
+    }
+
+    public int getMaxVoyages() {
+        return maxVoyages;
+    }
+
+    public long getRetired() {
+        return retired.sum();
+    }
+
+    public long getRecycled() {
+        return recycled.sum();
+    }
+
+    public int getPooled() {
+        int pooled = 0;
+        for (ObjectPool<Ship> pool : pools) {
+            pooled += pool.size();
+        }
+        return pooled;
+    }
+}
+
+/**
+ * WORLD SNAPSHOT
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * WorldSnapshot
+ * Binary image of a world: tunnels with their lanes and policy, ports with their cargo and berths, and
+ * every active ship with its position, cargo and voyage stage. Tunnel occupancy is not stored: ships that
+ * were in a tunnel queue for it again on restore. Each port record carries its own period and berth
+ * counts, followed by its berths only if its storage was built; every other record has a fixed size.
+ * The file is written and read through one memory-mapped buffer with absolute puts and gets, and
+ * restoring is one pass over the records with no parsing. Ships are referred to by ID; an empty berth
+ * stores 0.
+ * Options: snapshot=<path> (written at the end of an engine=events run, and every snapshot.period ms
+ * in threads mode), restore=<path>.
+ */
+class WorldSnapshot {
+    static final int MAGIC = 0x53484950;
+    static final int VERSION = 4;
+    static final long DEFAULT_PERIOD_MS = 60_000;
+    static final int HEADER_SIZE = 56;
+    static final int TUNNEL_RECORD_SIZE = 16;
+    static final int SHIP_RECORD_SIZE = 48;
+    private static final int PORT_FIXED_SIZE = 40 + 8 * CargoLedger.PRODUCT_COUNT;
+    private static final ShipCapacity[] BERTH_ORDER = { ShipCapacity.BIG, ShipCapacity.MIDDLE, ShipCapacity.SMALL };
+    private static final int FLAG_UNDERWAY = 1;
+    private static final int FLAG_UNLOADED_UNDERWAY = 2;
+    private static final int FLAG_RETIRING = 4;
+    private static final int NO_PORT = -1;
+    private static final int SPINS_BEFORE_YIELD = 16;
+
+    private final PortDataBase portDataBase;
+    private final TunnelNetwork tunnelNetwork;
+    private final long masterSeed;
+    private final long virtualTimeMs;
+    private final int shipCount;
+    private final List<Ship> underway;
+
+    private WorldSnapshot(PortDataBase portDataBase, TunnelNetwork tunnelNetwork, long masterSeed,
+            long virtualTimeMs, int shipCount, List<Ship> underway) {
+        this.portDataBase = portDataBase;
+        this.tunnelNetwork = tunnelNetwork;
+        this.masterSeed = masterSeed;
+        this.virtualTimeMs = virtualTimeMs;
+        this.shipCount = shipCount;
+        this.underway = underway;
+    }
+
+    static int portRecordSize(int berths) {
+        return PORT_FIXED_SIZE + 8 * berths;
+    }
+
+    /**
+     * Writes the world to a temporary file next to path and moves it over path, so a crash while
+     * writing never leaves a torn snapshot behind. The world may be running: the image is first
+     * copied to the heap, retried until WorldEpoch shows that no change overlapped the copy, as
+     * WorldView does, and only then written out.
+     */
+    public static void write(Path path, PortDataBase portDataBase, long masterSeed, long virtualTimeMs)
+            throws IOException {
+        ByteBuffer image = capture(portDataBase, masterSeed, virtualTimeMs);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, image.capacity());
+            buffer.put(image);
+            buffer.force();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static ByteBuffer capture(PortDataBase portDataBase, long masterSeed, long virtualTimeMs)
+            throws IOException {
+        for (int attempt = 1; attempt <= WorldView.MAX_ATTEMPTS; attempt++) {
+            long version = WorldEpoch.stable();
+            if (version >= 0) {
+                ByteBuffer image = encode(portDataBase, masterSeed, virtualTimeMs);
+                if (WorldEpoch.unchanged(version)) {
+                    return image;
+                }
+            }
+            if (attempt % SPINS_BEFORE_YIELD == 0) {
+                Thread.yield();
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+        throw new IOException("The world kept changing for " + WorldView.MAX_ATTEMPTS + " attempts");
+    }
+
+    private static ByteBuffer encode(PortDataBase portDataBase, long masterSeed, long virtualTimeMs)
+            throws IOException {
+        List<Port> ports = portDataBase.getPorts();
+        List<Tunnel> tunnels = portDataBase.getRoutePlanner().getTunnelNetwork().getTunnels();
+        TunnelNetwork network = portDataBase.getRoutePlanner().getTunnelNetwork();
+        List<Ship> ships = new ArrayList<>();
+        for (Ship ship : portDataBase.getFleetManager().getShips()) {
+            if (!ship.isRetired()) {
+                ships.add(ship);
+            }
+        }
+        long portsSize = 0;
+        ShipStorage[] storages = new ShipStorage[ports.size()];
+        Map<String, Integer> creators = new HashMap<>();
+        for (int i = 0; i < storages.length; i++) {
+            Port port = ports.get(i);
+            // A port whose storage was never built has no berths to store, and must not build them
+            storages[i] = port.hasShipStorage() ? port.getShipStorage() : null;
+            portsSize += portRecordSize(storages[i] != null ? storages[i].getCapacity() : 0);
+            creators.put("Port: " + port.getID(), port.getID());
+        }
+        Map<Tunnel, Integer> tunnelIndex = new IdentityHashMap<>();
+        for (int i = 0; i < tunnels.size(); i++) {
+            tunnelIndex.put(tunnels.get(i), i);
+        }
+
+        long size = HEADER_SIZE + (long) tunnels.size() * TUNNEL_RECORD_SIZE + portsSize
+                + (long) ships.size() * SHIP_RECORD_SIZE;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("World too large for one snapshot: " + size + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, masterSeed).putLong(16, virtualTimeMs)
+                .putLong(24, FabricShip.getLastId()).putInt(32, ports.size()).putInt(36, tunnels.size())
+                .putInt(40, ships.size()).putInt(44, network.getSelection().ordinal())
+                .putInt(48, network.getCandidates());
+
+        int offset = HEADER_SIZE;
+        for (Tunnel tunnel : tunnels) {
+            TunnelAdmission admission = tunnel.getAdmission();
+            buffer.putInt(offset, tunnel.getLocation().getX()).putInt(offset + 4, tunnel.getLocation().getY())
+                    .putInt(offset + 8, admission.getLanes()).putInt(offset + 12, admission.getPolicy().ordinal());
+            offset += TUNNEL_RECORD_SIZE;
+        }
+
+        for (int i = 0; i < storages.length; i++) {
+            Port port = ports.get(i);
+            ShipStorage storage = storages[i];
+            buffer.putInt(offset, port.getID()).putInt(offset + 4, port.getLocation().getX())
+                    .putInt(offset + 8, port.getLocation().getY()).putInt(offset + 12, port.getProductOrdinal())
+                    .putLong(offset + 16, port.getGenerationPeriodMs())
+                    .putInt(offset + 24, port.getBerthCount(ShipCapacity.BIG))
+                    .putInt(offset + 28, port.getBerthCount(ShipCapacity.MIDDLE))
+                    .putInt(offset + 32, port.getBerthCount(ShipCapacity.SMALL))
+                    .putInt(offset + 36, storage != null ? storage.getCapacity() : 0);
+            for (int p = 0; p < CargoLedger.PRODUCT_COUNT; p++) {
+                buffer.putLong(offset + 40 + 8 * p, port.getCargo().get(p));
+            }
+            offset += PORT_FIXED_SIZE;
+            if (storage != null) {
+                for (ShipCapacity capacity : BERTH_ORDER) {
+                    offset = putBerths(buffer, offset, storage.getBerths(capacity));
+                }
+            }
+        }
+
+        Location location = new Location(0, 0);
+        for (Ship ship : ships) {
+            RoutePlan plan = ship.getVoyagePlan();
+            int flags = (plan != null ? FLAG_UNDERWAY : 0)
+                    | (ship.isUnloadedUnderway() ? FLAG_UNLOADED_UNDERWAY : 0)
+                    | (ship.isRetiring() ? FLAG_RETIRING : 0);
+            ship.locate(location);
+            buffer.putLong(offset, ship.getID()).putInt(offset + 8, location.getX())
+                    .putInt(offset + 12, location.getY())
+                    .put(offset + 16, (byte) ship.getProductOrdinal())
+                    .put(offset + 17, (byte) ship.getCapacityOrdinal())
+                    .put(offset + 18, (byte) flags)
+                    .put(offset + 19, (byte) (plan != null ? ship.getVoyageLeg() : 0))
+                    .putLong(offset + 20, ship.getProduct().get().longValue())
+                    .putInt(offset + 28, ship.getVoyages())
+                    .putInt(offset + 32, creators.getOrDefault(ship.getNameOfCreator(), NO_PORT))
+                    .putInt(offset + 36, plan != null ? plan.getFrom().getID() : NO_PORT)
+                    .putInt(offset + 40, plan != null ? plan.getTo().getID() : NO_PORT)
+                    .putInt(offset + 44, plan != null ? tunnelIndex.getOrDefault(plan.getTunnel(), 0) : 0);
+            offset += SHIP_RECORD_SIZE;
+        }
+        return buffer;
+    }
+
+    private static int putBerths(ByteBuffer buffer, int offset, BerthAllocator berths) {
+        for (int slot = 0; slot < berths.getCapacity(); slot++) {
+            Ship ship = berths.get(slot);
+            buffer.putLong(offset, ship == null ? 0 : ship.getID());
+            offset += 8;
+        }
+        return offset;
+    }
+
+    /**
+     * Rebuilds the world of a snapshot. Ports get the fleet, destination and route options of config;
+     * ships that were sailing are listed by getUnderway() so the engine can resume their voyages.
+     */
+    public static WorldSnapshot read(Path path, WorldConfig config) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a world snapshot: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a world snapshot (version " + VERSION + "): " + path);
+            }
+            long masterSeed = buffer.getLong(8);
+            long virtualTimeMs = buffer.getLong(16);
+            long lastShipId = buffer.getLong(24);
+            int portCount = buffer.getInt(32);
+            int tunnelCount = buffer.getInt(36);
+            int shipCount = buffer.getInt(40);
+            long portsAt = HEADER_SIZE + (long) tunnelCount * TUNNEL_RECORD_SIZE;
+            long shipsAt = portsAt;
+            for (int i = 0; i < portCount && shipsAt + PORT_FIXED_SIZE <= channel.size(); i++) {
+                shipsAt += portRecordSize(buffer.getInt((int) shipsAt + 36));
+            }
+            long expected = shipsAt + (long) shipCount * SHIP_RECORD_SIZE;
+            if (channel.size() != expected) {
+                throw new IOException("Truncated world snapshot: " + channel.size() + " of " + expected + " bytes");
+            }
+            RandomStreams randomStreams = new RandomStreams(masterSeed);
+            FabricProduct[] products = FabricProduct.values();
+            ShipCapacity[] capacities = ShipCapacity.values();
+
+            int offset = HEADER_SIZE;
+            List<Tunnel> tunnels = new ArrayList<>(tunnelCount);
+            for (int i = 0; i < tunnelCount; i++) {
+                TunnelAdmission admission = new TunnelAdmission(buffer.getInt(offset + 8),
+                        TunnelPolicy.values()[buffer.getInt(offset + 12)]);
+                tunnels.add(new Tunnel(new Location(buffer.getInt(offset), buffer.getInt(offset + 4)), admission));
+                offset += TUNNEL_RECORD_SIZE;
+            }
+            TunnelNetwork network = new TunnelNetwork(tunnels, TunnelSelection.values()[buffer.getInt(44)],
+                    buffer.getInt(48));
+
+            PortDataBase portDataBase = new FabricPortDataBase().create();
+            Map<Integer, Port> portsById = new HashMap<>(portCount * 2);
+            // Ports with the same berths and period share one spec, as ScenarioLoader builds them
+            Map<String, PortSpec> specs = new HashMap<>();
+            for (int i = 0; i < portCount; i++) {
+                int id = buffer.getInt(offset);
+                Product<?> product = products[buffer.getInt(offset + 12)].create();
+                long period = buffer.getLong(offset + 16);
+                int big = buffer.getInt(offset + 24);
+                int middle = buffer.getInt(offset + 28);
+                int small = buffer.getInt(offset + 32);
+                PortSpec spec = specs.computeIfAbsent(big + "," + middle + "," + small + "/" + period,
+                        key -> new PortSpec(big, middle, small, period, randomStreams));
+                Port port = new Port(portDataBase, id,
+                        new Location(buffer.getInt(offset + 4), buffer.getInt(offset + 8)), product, spec);
+                for (int p = 0; p < CargoLedger.PRODUCT_COUNT; p++) {
+                    port.getCargo().set(p, buffer.getLong(offset + 40 + 8 * p));
+                }
+                portDataBase.addPort(port);
+                portsById.put(id, port);
+                offset += portRecordSize(buffer.getInt(offset + 36));
+            }
+            FabricShip.resumeIds(lastShipId);
+            portDataBase.setDestinationSelector(DestinationSelectors.create(config));
+            portDataBase.setRoutePlanner(new RoutePlanner(portDataBase.getPorts(), network));
+            FleetManager fleet = FleetManager.create(config, portDataBase);
+            portDataBase.setFleetManager(fleet);
+
+            List<Ship> underway = new ArrayList<>();
+            for (int i = 0; i < shipCount; i++) {
+                List<ShipElement<?>> elements = new ArrayList<>(2);
+                Product<?> product = products[buffer.get(offset + 16)].create();
+                ((CargoProduct) product).getLedger().set(product.getProductOrdinal(), buffer.getLong(offset + 20));
+                elements.add(product);
+                elements.add(capacities[buffer.get(offset + 17)]);
+                Ship ship = new Ship(buffer.getLong(offset), elements,
+                        new Location(buffer.getInt(offset + 8), buffer.getInt(offset + 12)));
+                int creator = buffer.getInt(offset + 32);
+                ship.setNameOfCreator(creator == NO_PORT ? null : "Port: " + creator);
+                ship.restoreVoyages(buffer.getInt(offset + 28));
+                fleet.restore(ship);
+                int flags = buffer.get(offset + 18);
+                if ((flags & FLAG_RETIRING) != 0) {
+                    ship.markRetiring();
+                }
+                if ((flags & FLAG_UNDERWAY) != 0) {
+                    RoutePlan plan = new RoutePlan(portsById.get(buffer.getInt(offset + 36)),
+                            portsById.get(buffer.getInt(offset + 40)), tunnels.get(buffer.getInt(offset + 44)));
+                    ship.depart();
+                    if ((flags & FLAG_UNLOADED_UNDERWAY) != 0) {
+                        ship.deferDeparture();
+                    }
+                    ship.setVoyage(plan, buffer.get(offset + 19));
+                    portDataBase.getShipIndex().update(ship);
+                    underway.add(ship);
+                }
+                offset += SHIP_RECORD_SIZE;
+            }
+
+            offset = (int) portsAt;
+            for (Port port : portDataBase.getPorts()) {
+                int stored = buffer.getInt(offset + 36);
+                int berth = offset + PORT_FIXED_SIZE;
+                offset += portRecordSize(stored);
+                if (stored == 0) {
+                    // The storage was never built; the port's spec builds it when it is first needed
+                    continue;
+                }
+                if (stored != port.getBerthCapacity()) {
+                    throw new IOException("Port " + port.getID() + " stores " + stored + " berths of "
+                            + port.getBerthCapacity());
+                }
+                List<Ship[]> berths = new ArrayList<>(3);
+                for (ShipCapacity capacity : BERTH_ORDER) {
+                    Ship[] docked = new Ship[port.getBerthCount(capacity)];
+                    for (int slot = 0; slot < docked.length; slot++) {
+                        long id = buffer.getLong(berth);
+                        Ship ship = id != 0 ? fleet.find(id) : null;
+                        if (ship != null) {
+                            ship.hold();
+                            docked[slot] = ship;
+                        }
+                        berth += 8;
+                    }
+                    berths.add(docked);
+                }
+                ShipStorage storage = new ShipStorage(berths);
+                for (Ship[] reserved : berths) {
+                    for (Ship ship : reserved) {
+                        // A ship sailing to its berth keeps the reservation; the others are in port
+                        if (ship != null && ship.getVoyagePlan() == null) {
+                            storage.occupy(ship.getShipCapacity(), ship);
+                        }
+                    }
+                }
+                port.setShipStorage(storage);
+            }
+            return new WorldSnapshot(portDataBase, network, masterSeed, virtualTimeMs, shipCount, underway);
+        }
+    }
+
+    public PortDataBase getPortDataBase() {
+        return portDataBase;
+    }
+
+    public TunnelNetwork getTunnelNetwork() {
+        return tunnelNetwork;
+    }
+
+    public long getMasterSeed() {
+        return masterSeed;
+    }
+
+    public long getVirtualTimeMs() {
+        return virtualTimeMs;
+    }
+
+    public int getShipCount() {
+        return shipCount;
+    }
+
+    public List<Ship> getUnderway() {
+        return underway;
+    }
+}
+
+/**
+ * EVENT JOURNAL
+ * ========================================================================================================
+ * ========================================================================================================
  */
-interface Product<T> extends ShipElement<T> {
-    T get();
 
-    void set(T nValue);
+/**
+ * JournalEvent
+ * State transitions recorded by the EventJournal. The stored type code is ordinal() + 1, so a record
+ * that was claimed but never written (type 0) is recognised and skipped.
+ */
+enum JournalEvent {
+    PORT_CREATED,
+    SHIP_CREATED,
+    SHIP_SENT,
+    SHIP_BERTHED,
+    SHIP_UNDOCKED,
+    TUNNEL_ENTER,
+    TUNNEL_EXIT,
+    SHIP_ARRIVED,
+    SHIP_UNLOADED,
+    SHIP_RETIRED,
+    SHIP_HELD,
+    SHIP_RESERVED;
+
+    private static final JournalEvent[] VALUES = values();
+
+    public int getCode() {
+        return ordinal() + 1;
+    }
+
+    public static JournalEvent fromCode(int code) {
+        return VALUES[code - 1];
+    }
+}
+
+/**
+ * EventJournal
+ * Append-only record of every state transition, for audits and replay. Unlike the EventLog it never
+ * drops a record: a writer claims the next record index with one atomic increment and writes its
+ * 40 bytes straight into a memory-mapped segment file, with the type code written last. Segments
+ * hold journal.segment records each and are mapped on first use; the operating system writes them
+ * back. Record layout: time (8), ship (8), port (4), x (4), y (4), value (4), aux (2), reserved (2),
+ * type (2) at TYPE_OFFSET.
+ * Options: journal=<directory>, journal.segment=<records>.
+ */
+class EventJournal {
+    static final int RECORD_SIZE = 40;
+    static final int TYPE_OFFSET = 38;
+    static final int DEFAULT_SEGMENT_RECORDS = 1 << 20;
+
+    private static volatile EventJournal current;
+    private static volatile LongSupplier clock = System::currentTimeMillis;
+    private static boolean hooked;
+
+    private final Path directory;
+    private final int segmentRecords;
+    private final AtomicLong nextRecord = new AtomicLong();
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    EventJournal(Path directory, int segmentRecords) throws IOException {
+        if (segmentRecords <= 0 || (long) segmentRecords * RECORD_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid journal segment size: " + segmentRecords + " records");
+        }
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        Files.createDirectories(directory);
+        // A journal describes one run: segments of an earlier run in the same directory are replaced
+        for (int index = 0; Files.deleteIfExists(segmentPath(directory, index)); index++) {
+            // keep deleting until the first missing segment
+        }
+    }
+
+    static Path segmentPath(Path directory, int index) {
+        return directory.resolve(String.format("journal-%06d.seg", index));
+    }
+
+    public static synchronized void start(WorldConfig config) throws IOException {
+        if (!config.has("journal")) {
+            return;
+        }
+        stop();
+        current = new EventJournal(Paths.get(config.getString("journal", null)),
+                config.getInt("journal.segment", DEFAULT_SEGMENT_RECORDS));
+        if (!hooked) {
+            Runtime.getRuntime().addShutdownHook(new Thread(EventJournal::stop, "event-journal-shutdown"));
+            hooked = true;
+        }
+    }
+
+    public static synchronized void stop() {
+        EventJournal journal = current;
+        if (journal == null) {
+            return;
+        }
+        current = null;
+        journal.force();
+        System.out.println("Event journal: " + journal.nextRecord.get() + " records in " + journal.directory);
+    }
+
+    public static boolean isEnabled() {
+        return current != null;
+    }
+
+    /**
+     * Where record times come from: wall-clock milliseconds, or the virtual clock of an EventWorld.
+     */
+    public static void setClock(LongSupplier newClock) {
+        clock = newClock;
+    }
+
+    public static void record(JournalEvent event, long shipId, int portId, int x, int y, int value, int aux) {
+        EventJournal journal = current;
+        if (journal == null) {
+            return;
+        }
+        // A TickWorld port or tunnel task holds its records until the merge puts them in port order
+        TickEffects effects = TickEffects.current();
+        if (effects != null) {
+            effects.record(clock.getAsLong(), event.getCode(), shipId, portId, x, y, value, aux);
+            return;
+        }
+        journal.append(clock.getAsLong(), event.getCode(), shipId, portId, x, y, value, aux);
+    }
+
+    /**
+     * Appends a record made earlier, with the time it was made at.
+     */
+    static void recordAt(long time, int type, long shipId, int portId, int x, int y, int value, int aux) {
+        EventJournal journal = current;
+        if (journal != null) {
+            journal.append(time, type, shipId, portId, x, y, value, aux);
+        }
+    }
+
+    public static void record(JournalEvent event, Ship ship, int portId, Location location, int value) {
+        if (current == null) {
+            return;
+        }
+        record(event, ship.getID(), portId, location.getX(), location.getY(), value, 0);
+    }
+
+    /**
+     * Records event at the ship's current position, worked out only if a journal is open.
+     */
+    public static void record(JournalEvent event, Ship ship, int portId, int value) {
+        if (current == null) {
+            return;
+        }
+        Location at = ship.locate(new Location(0, 0));
+        record(event, ship.getID(), portId, at.getX(), at.getY(), value, 0);
+    }
+
+    public static void recordCreated(Ship ship, int portId) {
+        if (current == null) {
+            return;
+        }
+        Location at = ship.locate(new Location(0, 0));
+        record(JournalEvent.SHIP_CREATED, ship.getID(), portId, at.getX(), at.getY(),
+                ship.getProduct().get(), ship.getProductOrdinal() << 8 | ship.getCapacityOrdinal());
+    }
+
+    /**
+     * Journals the world as it is when the simulation starts: every port, and for a restored world
+     * every ship with its berth or voyage, so a replay does not need the snapshot.
+     */
+    public static void recordWorld(PortDataBase portDataBase) {
+        if (current == null) {
+            return;
+        }
+        for (Port port : portDataBase.getPorts()) {
+            record(JournalEvent.PORT_CREATED, -1, port.getID(), port.getLocation().getX(), port.getLocation().getY(),
+                    (int) port.getCargo().get(port.getProductOrdinal()), port.getProductOrdinal());
+        }
+        for (Ship ship : portDataBase.getFleetManager().getShips()) {
+            if (!ship.isRetired()) {
+                recordCreated(ship, -1);
+            }
+        }
+        for (Port port : portDataBase.getPorts()) {
+            if (!port.hasShipStorage()) {
+                continue;
+            }
+            for (ShipCapacity capacity : ShipCapacity.values()) {
+                BerthAllocator berths = port.getShipStorage().getBerths(capacity);
+                for (int slot = 0; slot < berths.getCapacity(); slot++) {
+                    Ship ship = berths.get(slot);
+                    if (ship != null) {
+                        record(JournalEvent.SHIP_RESERVED, ship, port.getID(), port.getLocation(), slot);
+                        if (berths.isDocked(slot)) {
+                            record(JournalEvent.SHIP_ARRIVED, ship, port.getID(), port.getLocation(), 0);
+                            record(JournalEvent.SHIP_BERTHED, ship, port.getID(), port.getLocation(), slot);
+                        }
+                    }
+                }
+            }
+        }
+        for (Ship ship : portDataBase.getFleetManager().getShips()) {
+            RoutePlan plan = ship.getVoyagePlan();
+            if (plan != null && !ship.isRetired()) {
+                record(JournalEvent.SHIP_SENT, ship, plan.getFrom().getID(), plan.getTo().getID());
+                if (ship.getVoyageLeg() == RoutePlan.LEG_IN_TUNNEL) {
+                    record(JournalEvent.TUNNEL_ENTER, ship, plan.getTo().getID(), plan.getTunnel().getLocation(), 0);
+                }
+            }
+        }
+    }
+
+    void append(long time, int type, long shipId, int portId, int x, int y, int value, int aux) {
+        long record = nextRecord.getAndIncrement();
+        MappedByteBuffer buffer = segment((int) (record / segmentRecords));
+        if (buffer == null) {
+            return;
+        }
+        int offset = (int) (record % segmentRecords) * RECORD_SIZE;
+        buffer.putLong(offset, time).putLong(offset + 8, shipId).putInt(offset + 16, portId)
+                .putInt(offset + 20, x).putInt(offset + 24, y).putInt(offset + 28, value)
+                .putShort(offset + 32, (short) aux);
+        buffer.putShort(offset + TYPE_OFFSET, (short) type);
+    }
+
+    private MappedByteBuffer segment(int index) {
+        MappedByteBuffer[] mapped = segments;
+        if (index < mapped.length && mapped[index] != null) {
+            return mapped[index];
+        }
+        return map(index);
+    }
+
+    private synchronized MappedByteBuffer map(int index) {
+        MappedByteBuffer[] mapped = segments;
+        if (index < mapped.length && mapped[index] != null) {
+            return mapped[index];
+        }
+        MappedByteBuffer[] grown = Arrays.copyOf(mapped, Math.max(index + 1, mapped.length * 2));
+        try (FileChannel channel = FileChannel.open(segmentPath(directory, index), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            grown[index] = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * RECORD_SIZE);
+        } catch (IOException e) {
+            current = null;
+            System.err.println("Event journal stopped: " + e.getMessage());
+            return null;
+        }
+        // Segments two behind the new one are complete: flush them and let the mapping be collected
+        for (int old = 0; old < index - 1; old++) {
+            if (grown[old] != null) {
+                grown[old].force();
+                grown[old] = null;
+            }
+        }
+        segments = grown;
+        return grown[index];
+    }
+
+    private synchronized void force() {
+        for (MappedByteBuffer buffer : segments) {
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+    }
+}
+
+/**
+ * JournalReplay
+ * Rebuilds the final state of a run from its EventJournal: port positions, cargo and berth occupancy,
+ * and every ship in a FleetStore with its position, cargo and state. A berth counts as occupied from the
+ * ship's SHIP_BERTHED on arrival, not from its SHIP_RESERVED at departure. Segments are mapped read-only
+ * and scanned twice, once to size the fleet and once to apply the records, without any parsing.
+ */
+class JournalReplay {
+    private static final ShipCapacity[] CAPACITIES = ShipCapacity.values();
+    private static final int SUMMARY_PORTS = 10;
+
+    private int[] portX = new int[16];
+    private int[] portY = new int[16];
+    private int[] portProduct = new int[16];
+    private int[] portDocked = new int[16];
+    private CargoLedger[] portCargo = new CargoLedger[16];
+    private int portCount;
+    private FleetStore fleet;
+    private LongShipMap shipsById;
+    private long records;
+    private long orphans;
+    private long bytes;
+    private int segmentCount;
+    private long firstTime = Long.MAX_VALUE;
+    private long lastTime = Long.MIN_VALUE;
+    private long elapsedNs;
+
+    public static JournalReplay replay(Path directory) throws IOException {
+        JournalReplay replay = new JournalReplay();
+        long started = System.nanoTime();
+        List<MappedByteBuffer> segments = new ArrayList<>();
+        for (int index = 0; Files.exists(EventJournal.segmentPath(directory, index)); index++) {
+            try (FileChannel channel = FileChannel.open(EventJournal.segmentPath(directory, index),
+                    StandardOpenOption.READ)) {
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+        if (segments.isEmpty()) {
+            throw new IOException("No journal segments in " + directory);
+        }
+        int ships = 0;
+        for (MappedByteBuffer segment : segments) {
+            for (int offset = 0; offset + EventJournal.RECORD_SIZE <= segment.capacity();
+                    offset += EventJournal.RECORD_SIZE) {
+                if (segment.getShort(offset + EventJournal.TYPE_OFFSET) == JournalEvent.SHIP_CREATED.getCode()) {
+                    ships++;
+                }
+            }
+        }
+        replay.fleet = new FleetStore(Math.max(ships, 1));
+        replay.shipsById = new LongShipMap(ships);
+        for (MappedByteBuffer segment : segments) {
+            replay.segmentCount++;
+            replay.bytes += segment.capacity();
+            for (int offset = 0; offset + EventJournal.RECORD_SIZE <= segment.capacity();
+                    offset += EventJournal.RECORD_SIZE) {
+                int type = segment.getShort(offset + EventJournal.TYPE_OFFSET);
+                if (type != 0) {
+                    replay.apply(segment, offset, JournalEvent.fromCode(type));
+                }
+            }
+        }
+        replay.elapsedNs = System.nanoTime() - started;
+        return replay;
+    }
+
+    private void apply(MappedByteBuffer record, int offset, JournalEvent event) {
+        long time = record.getLong(offset);
+        long shipId = record.getLong(offset + 8);
+        int portId = record.getInt(offset + 16);
+        int x = record.getInt(offset + 20);
+        int y = record.getInt(offset + 24);
+        int value = record.getInt(offset + 28);
+        int aux = record.getShort(offset + 32);
+        records++;
+        firstTime = Math.min(firstTime, time);
+        lastTime = Math.max(lastTime, time);
+        FleetShipView view = (FleetShipView) shipsById.get(shipId);
+        int ship = view != null ? view.getIndex() : -1;
+        if (ship < 0 && shipId >= 0 && event != JournalEvent.SHIP_CREATED) {
+            // A ship the journal never saw created, e.g. one built before journaling started
+            orphans++;
+            return;
+        }
+        switch (event) {
+            case PORT_CREATED:
+                ensurePort(portId);
+                portX[portId] = x;
+                portY[portId] = y;
+                portProduct[portId] = aux;
+                portCargo[portId].set(aux, value);
+                break;
+            case SHIP_CREATED:
+                shipsById.put(shipId, fleet.view(fleet.add(shipId, x, y, CAPACITIES[aux & 0xFF], aux >>> 8, value,
+                        portId)));
+                break;
+            case SHIP_SENT:
+                fleet.setState(ship, ShipState.SAILING);
+                break;
+            case SHIP_RESERVED:
+                // A reserved berth is held for a ship at sea; it is occupied from SHIP_BERTHED on
+                break;
+            case SHIP_BERTHED:
+                portDocked[portId]++;
+                move(ship, x, y, ShipState.DOCKED);
+                break;
+            case SHIP_UNDOCKED:
+                portDocked[portId]--;
+                fleet.setState(ship, ShipState.IDLE);
+                break;
+            case TUNNEL_ENTER:
+                move(ship, x, y, ShipState.IN_TUNNEL);
+                break;
+            case TUNNEL_EXIT:
+                move(ship, x, y, ShipState.SAILING);
+                break;
+            case SHIP_ARRIVED:
+                move(ship, x, y, ShipState.IDLE);
+                break;
+            case SHIP_UNLOADED:
+                portCargo[portId].add(aux, value);
+                fleet.setCargo(ship, fleet.getCargo(ship) - value);
+                break;
+            case SHIP_RETIRED:
+                move(ship, x, y, ShipState.RETIRED);
+                break;
+            case SHIP_HELD:
+                move(ship, x, y, ShipState.IDLE);
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal event: " + event);
+        }
+    }
+
+    private void move(int ship, int x, int y, ShipState state) {
+        fleet.setX(ship, x);
+        fleet.setY(ship, y);
+        fleet.setState(ship, state);
+    }
+
+    private void ensurePort(int portId) {
+        if (portId >= portX.length) {
+            int length = Math.max(portId + 1, portX.length * 2);
+            portX = Arrays.copyOf(portX, length);
+            portY = Arrays.copyOf(portY, length);
+            portProduct = Arrays.copyOf(portProduct, length);
+            portDocked = Arrays.copyOf(portDocked, length);
+            portCargo = Arrays.copyOf(portCargo, length);
+        }
+        if (portCargo[portId] == null) {
+            portCargo[portId] = new CargoLedger();
+            portCount++;
+        }
+    }
+
+    public FleetStore getFleet() {
+        return fleet;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public int getPortCount() {
+        return portCount;
+    }
+
+    public long getPortCargo(int portId, int productOrdinal) {
+        return portCargo[portId].get(productOrdinal);
+    }
+
+    public int getPortDocked(int portId) {
+        return portDocked[portId];
+    }
+
+    public String getSummary() {
+        double seconds = Math.max(elapsedNs, 1) / 1e9;
+        StringBuilder summary = new StringBuilder(String.format(
+                "Replayed %d records from %d segments in %.0f ms (%.0f MB/s), journal time %d..%d ms",
+                records, segmentCount, seconds * 1000, bytes / seconds / (1 << 20),
+                records == 0 ? 0 : firstTime, records == 0 ? 0 : lastTime));
+        summary.append(System.lineSeparator()).append("Ports: ").append(portCount);
+        int shown = 0;
+        for (int portId = 0; portId < portCargo.length && shown < SUMMARY_PORTS; portId++) {
+            if (portCargo[portId] != null) {
+                summary.append(System.lineSeparator()).append(String.format(
+                        "  port %d at (%d, %d): %s=%d, docked=%d", portId, portX[portId], portY[portId],
+                        FabricProduct.values()[portProduct[portId]], portCargo[portId].get(portProduct[portId]),
+                        portDocked[portId]));
+                shown++;
+            }
+        }
+        int[] byState = new int[ShipState.values().length];
+        long cargo = 0;
+        for (int i = 0; i < fleet.size(); i++) {
+            byState[fleet.getState(i).ordinal()]++;
+            cargo += fleet.getCargo(i);
+        }
+        summary.append(System.lineSeparator()).append("Ships: ").append(fleet.size()).append(" built");
+        for (ShipState state : ShipState.values()) {
+            summary.append(", ").append(state.name().toLowerCase()).append('=').append(byState[state.ordinal()]);
+        }
+        summary.append(", cargo on board=").append(cargo);
+        if (orphans > 0) {
+            summary.append(System.lineSeparator()).append("Skipped ").append(orphans)
+                    .append(" records of ships created before the journal started");
+        }
+        return summary.toString();
+    }
+}
+
+/**
+ * SCENARIO
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * PortSpec
+ * The berths and generation period shared by the ports of one scenario line. A port built from a
+ * spec creates its FabricShip and ShipStorage the first time it needs them, so ports that never
+ * build or dock a ship cost only their location, product and cargo.
+ */
+class PortSpec {
+    private final int bigBerths;
+    private final int middleBerths;
+    private final int smallBerths;
+    private final long generationPeriodMs;
+    private final RandomStreams randomStreams;
+
+    public PortSpec(int bigBerths, int middleBerths, int smallBerths, long generationPeriodMs,
+            RandomStreams randomStreams) {
+        if (bigBerths < 0 || middleBerths < 0 || smallBerths < 0) {
+            throw new IllegalArgumentException("Berth counts must not be negative: "
+                    + bigBerths + "," + middleBerths + "," + smallBerths);
+        }
+        if (generationPeriodMs <= 0) {
+            throw new IllegalArgumentException("Generation period must be positive: " + generationPeriodMs);
+        }
+        this.bigBerths = bigBerths;
+        this.middleBerths = middleBerths;
+        this.smallBerths = smallBerths;
+        this.generationPeriodMs = generationPeriodMs;
+        this.randomStreams = randomStreams;
+    }
+
+    /**
+     * The shipyard draws from the port's own stream, so ships come out the same whichever port
+     * happens to be built first.
+     */
+    public FabricShip createFabricShip(int portId) {
+        return new FabricShip(portId, "Port: " + portId, randomStreams.stream(RandomStreams.SHIPYARD, portId));
+    }
+
+    public ShipStorage createShipStorage() {
+        return new ShipStorage(bigBerths, middleBerths, smallBerths);
+    }
+
+    public int getBerthCapacity() {
+        return bigBerths + middleBerths + smallBerths;
+    }
+
+    public int getBerthCount(ShipCapacity capacity) {
+        switch (capacity) {
+            case BIG:
+                return bigBerths;
+            case MIDDLE:
+                return middleBerths;
+            default:
+                return smallBerths;
+        }
+    }
+
+    public long getGenerationPeriodMs() {
+        return generationPeriodMs;
+    }
 }
 
-/**
- * Wood
- */
-class Wood implements Product<Integer> {
-    private Integer value;
+/**
+ * ScenarioLoader
+ * Builds a world from a scenario file, read one line at a time. Text after '#' is ignored and
+ * every other line is a directive followed by key=value options:
+ *
+ *   tunnel x=50 y=50 lanes=4 policy=fifo
+ *   port x=10 y=20 product=gold cargo=150 berths=2,4,8 period=7000
+ *   ports count=100000 width=1000 height=1000 product=random cargo=150 berths=2,4,8 period=7000 seed=1
+ *
+ * "ports" generates count ports at random locations as it goes. Ports are numbered from 1 in file
+ * order. Missing tunnel options come from the startup options, and a scenario without tunnels gets
+ * one at (0, 0).
+ */
+class ScenarioLoader {
+    static final int DEFAULT_CARGO = 150;
+    // The berths GenWorld has always given its ports: FabricShipStorage(SMALL, MIDDLE, BIG)
+    static final String DEFAULT_BERTHS = ShipStorageCapacity.SMALL.get() + "," + ShipStorageCapacity.MIDDLE.get()
+            + "," + ShipStorageCapacity.BIG.get();
+    private static final FabricProduct[] PRODUCTS = FabricProduct.values();
+
+    private final WorldConfig config;
+    private final RandomStreams randomStreams;
+    private final Random random;
+    private final PortDataBase portDataBase = new FabricPortDataBase().create();
+    private final List<Tunnel> tunnels = new ArrayList<>();
+    private final Map<String, PortSpec> specs = new HashMap<>();
+    private int lastPortId;
+
+    public ScenarioLoader(WorldConfig config, RandomStreams randomStreams) {
+        this.config = config;
+        this.randomStreams = randomStreams;
+        this.random = randomStreams.stream(RandomStreams.WORLD, 1);
+    }
+
+    public PortDataBase load(Path path) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                try {
+                    apply(line);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(path + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        if (portDataBase.getPorts().isEmpty()) {
+            throw new IOException(path + ": the scenario has no ports");
+        }
+        if (tunnels.isEmpty()) {
+            tunnels.add(new Tunnel(new Location(0, 0), TunnelAdmissions.create(config)));
+        }
+        TunnelNetwork network = new TunnelNetwork(tunnels,
+                TunnelSelection.fromName(config.getString("tunnel.select", "two-choices")),
+                config.getInt("tunnel.candidates", 4));
+        portDataBase.setDestinationSelector(DestinationSelectors.create(config));
+        portDataBase.setRoutePlanner(new RoutePlanner(portDataBase.getPorts(), network));
+        portDataBase.setFleetManager(FleetManager.create(config, portDataBase));
+        return portDataBase;
+    }
+
+    private void apply(String line) {
+        int comment = line.indexOf('#');
+        String text = (comment >= 0 ? line.substring(0, comment) : line).trim();
+        if (text.isEmpty()) {
+            return;
+        }
+        String[] tokens = text.split("\\s+");
+        WorldConfig options = new WorldConfig(Arrays.copyOfRange(tokens, 1, tokens.length));
+        switch (tokens[0]) {
+            case "tunnel":
+                addTunnel(options);
+                break;
+            case "port":
+                addPort(product(options), options.getInt("cargo", DEFAULT_CARGO), spec(options), random,
+                        required(options, "x"), required(options, "y"));
+                break;
+            case "ports":
+                addPorts(options);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown directive: " + tokens[0]);
+        }
+    }
+
+    private void addTunnel(WorldConfig options) {
+        TunnelAdmission admission = new TunnelAdmission(
+                options.getInt("lanes", config.getInt("tunnel.lanes", Tunnel.MAX_CONNECTIONS)),
+                TunnelPolicy.fromName(options.getString("policy", config.getString("tunnel.policy", "fifo"))));
+        tunnels.add(new Tunnel(new Location(required(options, "x"), required(options, "y")), admission));
+    }
+
+    private void addPorts(WorldConfig options) {
+        int count = required(options, "count");
+        if (count <= 0) {
+            throw new IllegalArgumentException("Port count must be positive: " + count);
+        }
+        int width = options.getInt("width", FabricTunel.WORLD_SIZE);
+        int height = options.getInt("height", FabricTunel.WORLD_SIZE);
+        Random blockRandom = options.has("seed") ? new RandomStream(options.getLong("seed", 0L)) : random;
+        FabricProduct product = product(options);
+        int cargo = options.getInt("cargo", DEFAULT_CARGO);
+        PortSpec spec = spec(options);
+        for (int i = 0; i < count; i++) {
+            addPort(product, cargo, spec, blockRandom, blockRandom.nextInt(width), blockRandom.nextInt(height));
+        }
+    }
 
-    public Wood(int value) {
-        this.value = value;
+    /**
+     * @param product: The port's product, or null to pick one with source.
+     */
+    private void addPort(FabricProduct product, int cargo, PortSpec spec, Random source, int x, int y) {
+        FabricProduct portProduct = product != null ? product : PRODUCTS[source.nextInt(PRODUCTS.length)];
+        portDataBase.addPort(new Port(portDataBase, ++lastPortId, new Location(x, y), portProduct.create(cargo), spec));
     }
 
-    @Override
-    public Integer get() {
-        return this.value;
+    private static FabricProduct product(WorldConfig options) {
+        String name = options.getString("product", "random");
+        return name.equals("random") ? null : FabricProduct.fromName(name);
     }
 
-    @Override
-    public void set(Integer nValue) {
-        this.value = nValue;
+    /**
+     * Ports with the same berths and period share one spec.
+     */
+    private PortSpec spec(WorldConfig options) {
+        String berths = options.getString("berths", DEFAULT_BERTHS);
+        long period = options.getLong("period", ActivePort.PERIOD_MS);
+        return specs.computeIfAbsent(berths + "/" + period, key -> {
+            String[] counts = berths.split(",");
+            if (counts.length != 3) {
+                throw new IllegalArgumentException("berths needs big,middle,small counts: " + berths);
+            }
+            return new PortSpec(Integer.parseInt(counts[0].trim()), Integer.parseInt(counts[1].trim()),
+                    Integer.parseInt(counts[2].trim()), period, randomStreams);
+        });
+    }
 
+    private static int required(WorldConfig options, String key) {
+        if (!options.has(key)) {
+            throw new IllegalArgumentException("Missing " + key + "=");
+        }
+        return options.getInt(key, 0);
     }
 }
 
 /**
- * Meat
+ * BERTH ADMISSION
+ * ========================================================================================================
+ * ========================================================================================================
  */
-class Meat implements Product<Integer> {
-    private Integer value;
 
-    public Meat(int value) {
-        this.value = value;
-    }
+/**
+ * PortAdmission
+ * Hands out a port's berths to ships before they leave for it. A ship sails only with a berth
+ * reserved, so a full port turns ships away at their origin instead of at the end of a voyage. The
+ * reservation becomes an occupied berth when the ship arrives; the port's sweep only takes those.
+ */
+class PortAdmission {
+    static final int REDIRECT_CANDIDATES = 8;
 
-    @Override
-    public Integer get() {
-        return this.value;
-    }
+    private final Port port;
+    private final LongAdder reserved = new LongAdder();
+    private final LongAdder refused = new LongAdder();
 
-    @Override
-    public void set(Integer nValue) {
-        this.value = nValue;
+    public PortAdmission(Port port) {
+        this.port = port;
+    }
 
+    /**
+     * Reserves a berth of the ship's class. Returns the berth index, or -1 if the class is full.
+     */
+    public int reserve(ShipCapacity capacity, Ship ship) {
+        int berth = port.getShipStorage().dock(capacity, ship);
+        if (berth >= 0) {
+            reserved.increment();
+        } else {
+            refused.increment();
+        }
+        return berth;
     }
-}
 
-/**
- * Gold
- */
-class Gold implements Product<Integer> {
-    private Integer value;
+    /**
+     * Docks a ship that reached this port in the berth reserved for it. Returns the berth index, or -1
+     * if it had none here.
+     */
+    public int arrive(Ship ship) {
+        if (!port.hasShipStorage()) {
+            return -1;
+        }
+        int berth = port.getShipStorage().occupy(ship.getShipCapacity(), ship);
+        if (berth >= 0) {
+            EventJournal.record(JournalEvent.SHIP_BERTHED, ship, port.getID(), port.getLocation(), berth);
+        }
+        return berth;
+    }
 
-    public Gold(int value) {
-        this.value = value;
+    /**
+     * Whether a berth of the class is free now. A storage that was never built is empty.
+     */
+    public boolean hasRoom(ShipCapacity capacity) {
+        return !port.hasShipStorage() || !port.getShipStorage().getBerths(capacity).isFull();
     }
 
-    @Override
-    public Integer get() {
-        return this.value;
+    /**
+     * The closest of the REDIRECT_CANDIDATES ports nearest to this one that has a free berth of
+     * the class, other than this port and the ship's origin; null if none has. Looking only at
+     * the nearest few keeps a refusal cheap when the whole world is full. Ties go to the lower
+     * port ID, so the choice does not depend on the index's iteration order.
+     */
+    public Port redirect(Port origin, ShipCapacity capacity) {
+        Location from = port.getLocation();
+        Port best = null;
+        long bestDistance = Long.MAX_VALUE;
+        for (Port candidate : port.getPortDataBase().getPortIndex().nearest(from, REDIRECT_CANDIDATES + 2)) {
+            if (candidate == port || candidate == origin || !candidate.getAdmission().hasRoom(capacity)) {
+                continue;
+            }
+            long distance = SpatialIndex.distanceSquared(from, candidate.getLocation());
+            if (distance < bestDistance || distance == bestDistance && candidate.getID() < best.getID()) {
+                best = candidate;
+                bestDistance = distance;
+            }
+        }
+        return best;
     }
 
-    @Override
-    public void set(Integer nValue) {
-        this.value = nValue;
+    public long getReserved() {
+        return reserved.sum();
+    }
 
+    public long getRefused() {
+        return refused.sum();
     }
 }
 
 /**
- * FABRICS
- * ========================================================================================================
- * ========================================================================================================
+ * ShipHolding
+ * Ships that found no berth anywhere near their destination wait here, at their origin, and are
+ * sent again after an exponential backoff with jitter. The wait costs a timer entry rather than a
+ * thread, and ships refused together do not all come back together.
  */
+class ShipHolding {
+    static final long BASE_BACKOFF_MS = 2_000;
+    static final long MAX_BACKOFF_MS = 60_000;
 
-/**
- * Fabric
- */
-interface Fabric<T> {
-    T create();
+    private final AtomicInteger holding = new AtomicInteger();
+    private volatile ScheduledExecutorService timer;
 
-    T create(int val);
-}
+    /**
+     * The wait before a ship refused the given number of times in a row is sent again: between
+     * half and all of BASE_BACKOFF_MS doubled per refusal, capped at MAX_BACKOFF_MS.
+     */
+    static long backoffMs(int refusals, Random random) {
+        int doublings = Math.min(Math.max(refusals - 1, 0), 16);
+        long ceiling = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << doublings);
+        return ceiling / 2 + (long) (random.nextDouble() * (ceiling / 2));
+    }
 
-/**
- * FabricShipStorage
- */
-class FabricShipStorage implements Fabric<ShipStorage> {
-    private ShipStorageCapacity big;
-    private ShipStorageCapacity middle;
-    private ShipStorageCapacity small;
+    /**
+     * Runs retry after delayMs on the holding timer.
+     */
+    public void hold(long delayMs, Runnable retry) {
+        enter();
+        timer().schedule(() -> {
+            leave();
+            retry.run();
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
 
-    public FabricShipStorage(ShipStorageCapacity big, ShipStorageCapacity middle, ShipStorageCapacity small) {
-        this.big = big;
-        this.middle = middle;
-        this.small = small;
+    /**
+     * Counts a ship an engine holds on its own timeline.
+     */
+    public void enter() {
+        holding.incrementAndGet();
     }
 
-    @Override
-    public ShipStorage create() {
-        return new ShipStorage(this.big, this.middle, this.small);
+    public void leave() {
+        holding.decrementAndGet();
     }
 
-    @Override
-    public ShipStorage create(int val) {
-        // TODO Auto-generated method stub
-        return null;
+    public int getHolding() {
+        return holding.get();
     }
-}
 
-/**
- * FabricPortDataBase
- */
-class FabricPortDataBase implements Fabric<PortDataBase> {
-    @Override
-    public PortDataBase create() {
-        return new PortDataBase(new ArrayList<>());
+    private ScheduledExecutorService timer() {
+        ScheduledExecutorService current = timer;
+        return current != null ? current : buildTimer();
     }
 
-    @Override
-    public PortDataBase create(int val) {
-        // TODO Auto-generated method stub
-        return null;
+    // Only the threads engine holds ships on the wall clock, so the others never start the thread
+    private synchronized ScheduledExecutorService buildTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "ship-holding");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
     }
 }
 
 /**
- * FabricTunel
+ * SHIP REGISTRY
+ * ========================================================================================================
+ * ========================================================================================================
  */
-class FabricTunel implements Fabric<Tunnel> {
-    private Random random;
 
-    public FabricTunel(Random random) {
-        this.random = random;
+/**
+ * ShipIdAllocator
+ * Hands out 64-bit ship IDs, unique for the life of the process, without a shared hot counter. Ports
+ * are spread over stripes; a stripe hands out IDs from its current block of BLOCK_SIZE with one
+ * atomic increment, and only a used-up block goes back to the shared counter for the next one. IDs
+ * start at 1, so 0 can mean "no ship", and increase within a block but not across stripes.
+ */
+class ShipIdAllocator {
+    static final int DEFAULT_STRIPES = 64;
+    static final int BLOCK_SIZE = 256;
+    private static final Block EXHAUSTED = new Block(0, 0);
+
+    private final AtomicLong nextBlock = new AtomicLong(1);
+    private final AtomicReferenceArray<Block> stripes;
+    private final int mask;
+
+    private static final class Block {
+        final AtomicLong next;
+        final long end;
+
+        Block(long first, long end) {
+            this.next = new AtomicLong(first);
+            this.end = end;
+        }
     }
 
-    @Override
-    public Tunnel create() {
-        return new Tunnel(new Location(this.random.nextInt(10), this.random.nextInt(10)));
+    public ShipIdAllocator(int stripeCount) {
+        int count = Integer.highestOneBit(Math.max(1, stripeCount - 1) << 1);
+        this.stripes = new AtomicReferenceArray<>(count);
+        this.mask = count - 1;
+        for (int i = 0; i < count; i++) {
+            stripes.set(i, EXHAUSTED);
+        }
     }
 
-    public Tunnel create(Location location) {
-        return new Tunnel(location);
+    public long allocate(int portId) {
+        int stripe = portId & mask;
+        Block block = stripes.get(stripe);
+        long id = block.next.getAndIncrement();
+        if (id < block.end) {
+            return id;
+        }
+        // The first ID of a new block is ours whatever happens next. If another thread of the stripe
+        // installed a block first, the rest of this one is skipped: IDs stay unique, just not dense.
+        long first = nextBlock.getAndAdd(BLOCK_SIZE);
+        stripes.compareAndSet(stripe, block, new Block(first + 1, first + BLOCK_SIZE));
+        return first;
     }
 
-    @Override
-    public Tunnel create(int val) {
-        // TODO Auto-generated method stub
-        return null;
+    /**
+     * An upper bound of every ID handed out so far.
+     */
+    public long getHighWater() {
+        return nextBlock.get() - 1;
+    }
+
+    /**
+     * Hands out only IDs above lastId from now on, e.g. after ships restored from a snapshot.
+     * Not safe while other threads allocate.
+     */
+    public void resumeAfter(long lastId) {
+        nextBlock.accumulateAndGet(lastId + 1, Math::max);
+        for (int i = 0; i < stripes.length(); i++) {
+            stripes.set(i, EXHAUSTED);
+        }
     }
 }
 
 /**
- * FabricPort
- * Creates a new Port with random products and location.
+ * LongShipMap
+ * Open-addressing map from a ship ID to a Ship: parallel long[] and Ship[] arrays with linear
+ * probing, no boxing and no entry objects. An empty slot has a null ship, so every long is a valid
+ * key. Removal shifts the rest of the probe run back instead of leaving tombstones. Not thread-safe.
  */
-class FabricPort implements Fabric<Port> {
-    private int idCount;
-    private final Random random;
-    private final PortDataBase portDataBase;
-    private final MultiFabricProduct multiFabricProduct;
-    private final FabricShipStorage fabricShipStorage;
-
-    public FabricPort(Random random, PortDataBase portDataBase,
-            MultiFabricProduct multiFabricProduct, FabricShipStorage fabricShipStorage) {
-        this.random = random;
-        this.portDataBase = portDataBase;
-        this.multiFabricProduct = multiFabricProduct;
-        this.fabricShipStorage = fabricShipStorage;
-        this.idCount = 0;
+class LongShipMap {
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Ship[] values;
+    private int mask;
+    private int shift;
+    private int size;
+
+    public LongShipMap(int expected) {
+        allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expected) * 2 - 1) << 1));
     }
 
-    @Override
-    public Port create() {
-        this.idCount++;
-        List<Product> products = this.multiFabricProduct.create();
-        int prodLength = products.size();
-
-        return new Port(this.portDataBase, this.idCount,
-                new Location(this.random.nextInt(100), this.random.nextInt(100)),
-                new FabricShip("Port: " + this.idCount),
-                products.get(this.random.nextInt(prodLength)),
-                this.fabricShipStorage.create());
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Ship[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
     }
 
-    @Override
-    public Port create(int val) {
-        this.idCount++;
-        List<Product> products = this.multiFabricProduct.create(val);
-        int prodLength = products.size();
+    private int slot(long key) {
+        return (int) ((key * PHI) >>> shift);
+    }
 
-        return new Port(this.portDataBase, this.idCount,
-                new Location(this.random.nextInt(100), this.random.nextInt(100)),
-                new FabricShip("Port: " + this.idCount),
-                products.get(this.random.nextInt(prodLength)),
-                this.fabricShipStorage.create());
+    public Ship get(long key) {
+        for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return null;
     }
 
-    public Port create(Location location) {
-        this.idCount++;
-        List<Product> products = this.multiFabricProduct.create();
-        int prodLength = products.size();
+    public Ship put(long key, Ship ship) {
+        int i = slot(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                Ship previous = values[i];
+                values[i] = ship;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = ship;
+        // Keep the table at most half full so probe runs stay short
+        if (++size > (mask + 1) >>> 1) {
+            grow();
+        }
+        return null;
+    }
 
-        return new Port(this.portDataBase, this.idCount, location,
-                new FabricShip("Port: " + this.idCount),
-                products.get(this.random.nextInt(prodLength)),
-                this.fabricShipStorage.create());
+    public Ship remove(long key) {
+        int i = slot(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                Ship removed = values[i];
+                shiftBack(i);
+                size--;
+                return removed;
+            }
+        }
+        return null;
     }
 
-    public void setIdCount(int idCount) {
-        this.idCount = idCount;
+    /**
+     * Empties slot hole, moving back any later entry of the run that would no longer be found.
+     */
+    private void shiftBack(int hole) {
+        for (int i = (hole + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            int home = slot(keys[i]);
+            // The entry may fill the hole if its home slot is not inside (hole, i] on the ring
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        values[hole] = null;
     }
 
-    public int getIdCount() {
-        return idCount;
+    private void grow() {
+        long[] oldKeys = keys;
+        Ship[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != null) {
+                int i = slot(oldKeys[j]);
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
     }
 
+    public int size() {
+        return size;
+    }
 }
 
 /**
- * FabricShip
- * Creates a new ship with random products and capacities.
+ * ShipRegistry
+ * Every active ship by ID, for O(1) lookups of a ship's state and location from anywhere. IDs are
+ * spread over SEGMENTS LongShipMaps by their low bits, which run through a stripe's block in order,
+ * and each segment is locked only for its own few probes, so ports registering ships at the same
+ * time rarely meet.
  */
-class FabricShip implements Fabric<Ship> {
-    private static int shipIdCounter = 0;
-    private final Random random = new Random();
-    private final MultiFabricProduct multiFabricProduct = new MultiFabricProduct();
-    private final MultiFabricShipCapacity multiFabricShipCapacity = new MultiFabricShipCapacity();
-    private final ShipCapacityGetter shipCapacityGetter = new ShipCapacityGetter();
-    private final ShipProductGetter shipProductGetter = new ShipProductGetter();
-    private String nameOfCreator;
+class ShipRegistry {
+    static final int SEGMENTS = 64;
 
-    public FabricShip() {
-        this.genFabric();
-    }
+    private final LongShipMap[] segments = new LongShipMap[SEGMENTS];
+    private final AtomicInteger size = new AtomicInteger();
 
-    public FabricShip(String nameOfCreator) {
-        this.nameOfCreator = nameOfCreator;
-        this.genFabric();
+    public ShipRegistry() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new LongShipMap(0);
+        }
     }
 
-    private void genFabric() {
-        shipIdCounter = 0;
+    private LongShipMap segment(long id) {
+        return segments[(int) id & (SEGMENTS - 1)];
     }
 
-    private List<ShipElement> prepareElements() {
-        List<ShipElement> shipElements = new ArrayList<>(2);
-
-        List<Product> products = multiFabricProduct.create();
-        int randomProduct = random.nextInt(products.size());
-        shipElements.add(products.get(randomProduct));
+    public void put(Ship ship) {
+        LongShipMap segment = segment(ship.getID());
+        synchronized (segment) {
+            if (segment.put(ship.getID(), ship) == null) {
+                size.incrementAndGet();
+            }
+        }
+    }
 
-        List<ShipCapacity> shipCapacities = multiFabricShipCapacity.create();
-        int randomCapacity = random.nextInt(shipCapacities.size());
-        shipElements.add(shipCapacities.get(randomCapacity));
+    public Ship get(long id) {
+        LongShipMap segment = segment(id);
+        synchronized (segment) {
+            return segment.get(id);
+        }
+    }
 
-        return shipElements;
+    /**
+     * Removes the ship under its current ID, unless that ID already belongs to another ship.
+     */
+    public boolean remove(Ship ship) {
+        LongShipMap segment = segment(ship.getID());
+        synchronized (segment) {
+            Ship current = segment.get(ship.getID());
+            if (current != ship) {
+                return false;
+            }
+            segment.remove(ship.getID());
+        }
+        size.decrementAndGet();
+        return true;
     }
 
-    private void prepareShip(Ship ship) {
-        ShipCapacity shipCapacity = shipCapacityGetter.get(ship);
-        shipProductGetter.get(ship).set(shipCapacity.get());
+    public int size() {
+        return size.get();
     }
+}
+
+/**
+ * WORLD VIEW
+ * ========================================================================================================
+ * ========================================================================================================
+ */
+
+/**
+ * WorldEpoch
+ * Seqlock-style version of the live world, for readers that must never hold up the simulation. Every
+ * change to cargo, berths, fleet membership, ship IDs, voyages or positions (a new course, or a course
+ * written back into the ship's Location) is bracketed by begin() and end(): two striped counter
+ * increments, with no lock and no wait, so writers never meet each other or a reader. A reader takes stable()
+ * before copying and checks unchanged() after; if both pass, nothing changed in between and no change
+ * was half done when it started.
+ */
+final class WorldEpoch {
+    private static final LongAdder STARTED = new LongAdder();
+    private static final LongAdder FINISHED = new LongAdder();
 
-    private int addID() {
-        return ++shipIdCounter;
+    private WorldEpoch() {
     }
 
-    @Override
-    public Ship create() {
-        Location location = new Location(0, 0);
-        return create(location, nameOfCreator);
+    static void begin() {
+        STARTED.increment();
     }
 
-    @Override
-    public Ship create(int val) {
-        // TODO Auto-generated method stub
-        return null;
+    static void end() {
+        FINISHED.increment();
     }
 
-    public Ship create(Location location) {
-        return create(location, nameOfCreator);
+    /**
+     * The number of changes so far, or -1 while one is in progress. FINISHED is summed first: it
+     * never passes STARTED, so equal sums mean every change started by then has finished.
+     */
+    static long stable() {
+        long finished = FINISHED.sum();
+        long started = STARTED.sum();
+        return finished == started ? started : -1;
     }
 
-    public Ship create(Location location, String nameOfCreator) {
-        Ship ship = new Ship(addID(), prepareElements(), location);
-        prepareShip(ship);
-        ship.setNameOfCreator(nameOfCreator);
-        return ship;
+    static boolean unchanged(long version) {
+        // The copy is plain reads of Location fields and ship IDs; keep them from moving past the re-check
+        VarHandle.acquireFence();
+        return STARTED.sum() == version;
     }
 }
 
 /**
- * FabricProduct
+ * PortView
+ * A port's cargo and docked ships as of one WorldView.
  */
-enum FabricProduct implements Fabric<Product> {
-    MEAT_FABRIC((Fabric) new FabricMeat()),
-    GOLD_FABRIC((Fabric) new FabricGold()),
-    WOOD_FABRIC((Fabric) new FabricWood());
+class PortView {
+    private final int id;
+    private final int x;
+    private final int y;
+    private final long[] cargo;
+    private final int[] occupancy;
+    private final long[] dockedShipIds;
+
+    PortView(int id, int x, int y, long[] cargo, int[] occupancy, long[] dockedShipIds) {
+        this.id = id;
+        this.x = x;
+        this.y = y;
+        this.cargo = cargo;
+        this.occupancy = occupancy;
+        this.dockedShipIds = dockedShipIds;
+    }
 
-    private final Fabric<Product> fabric;
+    public int getId() {
+        return id;
+    }
 
-    FabricProduct(Fabric<Product> fabric) {
-        this.fabric = fabric;
+    public int getX() {
+        return x;
     }
 
-    @Override
-    public Product<Product> create() {
-        return fabric.create();
+    public int getY() {
+        return y;
     }
 
-    @Override
-    public Product<Product> create(int val) {
-        return fabric.create(val);
+    public long getCargo(int productOrdinal) {
+        return cargo[productOrdinal];
     }
-}
 
-/**
- * FabricMeat
- */
-class FabricMeat implements Fabric<Meat> {
-    @Override
-    public Meat create() {
-        return new Meat(0);
+    public int getOccupancy(ShipCapacity capacity) {
+        return occupancy[capacity.ordinal()];
     }
 
-    @Override
-    public Meat create(int val) {
-        return new Meat(val);
+    public int getDocked() {
+        return dockedShipIds.length;
+    }
+
+    public long[] getDockedShipIds() {
+        return dockedShipIds.clone();
     }
 }
 
 /**
- * FabricGold
+ * ShipView
+ * A ship's position and cargo as of one WorldView.
  */
-class FabricGold implements Fabric<Gold> {
-    @Override
-    public Gold create() {
-        return new Gold(0);
+class ShipView {
+    private final long id;
+    private final int x;
+    private final int y;
+    private final int productOrdinal;
+    private final int capacityOrdinal;
+    private final long cargo;
+    private final boolean underway;
+
+    ShipView(long id, int x, int y, int productOrdinal, int capacityOrdinal, long cargo, boolean underway) {
+        this.id = id;
+        this.x = x;
+        this.y = y;
+        this.productOrdinal = productOrdinal;
+        this.capacityOrdinal = capacityOrdinal;
+        this.cargo = cargo;
+        this.underway = underway;
     }
 
-    @Override
-    public Gold create(int val) {
-        return new Gold(val);
+    public long getId() {
+        return id;
     }
 
-}
+    public int getX() {
+        return x;
+    }
 
-/**
- * FabricWood
- */
-class FabricWood implements Fabric<Wood> {
-    @Override
-    public Wood create() {
-        return new Wood(0);
+    public int getY() {
+        return y;
     }
 
-    @Override
-    public Wood create(int val) {
-        return new Wood(val);
+    public int getProductOrdinal() {
+        return productOrdinal;
     }
-}
 
-/**
- * MULTI_FABRICS
- * ========================================================================================================
- * ========================================================================================================
- */
+    public int getCapacityOrdinal() {
+        return capacityOrdinal;
+    }
 
-/**
- * MultiFabric
- */
-interface MultiFabric<T> extends Fabric<List<T>> {
-    List<T> create();
+    public long getCargo() {
+        return cargo;
+    }
+
+    public boolean isUnderway() {
+        return underway;
+    }
 }
 
 /**
- * MultiFabricShipCapacity
+ * WorldView
+ * Point-in-time copy of port cargo, berth occupancy and ship positions, taken without stopping the
+ * simulation. The copy is retried until WorldEpoch shows that no change overlapped it. Ship positions
+ * need no retry: a sailing ship's position is worked out from its Course at the view's time, and a
+ * ship at rest does not move. A large world under constant change may not leave a quiet window
+ * within MAX_ATTEMPTS; the last copy is then returned with isConsistent() false.
  */
-class MultiFabricShipCapacity implements MultiFabric<ShipCapacity> {
-    @Override
-    public List<ShipCapacity> create() {
-        return Arrays.asList(ShipCapacity.values());
+class WorldView {
+    static final int MAX_ATTEMPTS = 1000;
+    private static final int SPINS_BEFORE_YIELD = 16;
+    private static final ShipCapacity[] CAPACITIES = ShipCapacity.values();
+
+    private final long time;
+    private final long version;
+    private final int attempts;
+    private final List<PortView> ports;
+    private final List<ShipView> ships;
+
+    private WorldView(long time, long version, int attempts, List<PortView> ports, List<ShipView> ships) {
+        this.time = time;
+        this.version = version;
+        this.attempts = attempts;
+        this.ports = ports;
+        this.ships = ships;
     }
 
-    @Override
-    public List<ShipCapacity> create(int val) {
-        // TODO Auto-generated method stub
-        return null;
+    /**
+     * Copies the world as of clock's current time, the clock the world's ships sail by.
+     */
+    public static WorldView capture(PortDataBase portDataBase, LongSupplier clock) {
+        return capture(portDataBase, clock, null, 0);
     }
-}
 
-/**
- * MultiFabricProduct
- */
-class MultiFabricProduct implements MultiFabric<Product> {
-    @Override
-    public List<Product> create() {
-        List<Product> products = new ArrayList<>(3);
+    /**
+     * Copies every port, but only the ships within radius of center. They are found through the
+     * ship index, so the cost depends on the ships near center, not on the size of the fleet.
+     */
+    public static WorldView captureNear(PortDataBase portDataBase, LongSupplier clock, Location center,
+            int radius) {
+        return capture(portDataBase, clock, center, radius);
+    }
 
-        for (FabricProduct fabrics : FabricProduct.values())
-            products.add(fabrics.create());
+    private static WorldView capture(PortDataBase portDataBase, LongSupplier clock, Location center, int radius) {
+        List<PortView> ports = new ArrayList<>(portDataBase.getPorts().size());
+        List<ShipView> ships = new ArrayList<>();
+        long time = clock.getAsLong();
+        for (int attempt = 1; ; attempt++) {
+            long version = WorldEpoch.stable();
+            if (version >= 0 || attempt == MAX_ATTEMPTS) {
+                ports.clear();
+                ships.clear();
+                copyPorts(portDataBase, ports);
+                Iterable<Ship> candidates = center == null
+                        ? portDataBase.getFleetManager().getShips()
+                        : portDataBase.shipsNear(center, radius);
+                copyShips(candidates, time, center, radius, ships);
+                if (version >= 0 && WorldEpoch.unchanged(version)) {
+                    return new WorldView(time, version, attempt, ports, ships);
+                }
+                if (attempt >= MAX_ATTEMPTS) {
+                    return new WorldView(time, -1, attempt, ports, ships);
+                }
+            }
+            if (attempt % SPINS_BEFORE_YIELD == 0) {
+                Thread.yield();
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
 
-        return products;
+    private static void copyPorts(PortDataBase portDataBase, List<PortView> into) {
+        for (Port port : portDataBase.getPorts()) {
+            long[] cargo = new long[CargoLedger.PRODUCT_COUNT];
+            for (int i = 0; i < cargo.length; i++) {
+                cargo[i] = port.getCargo().get(i);
+            }
+            int[] occupancy = new int[CAPACITIES.length];
+            long[] docked = new long[0];
+            // A storage that was never built is empty; copying it must not build it
+            if (port.hasShipStorage()) {
+                ShipStorage storage = port.getShipStorage();
+                docked = new long[storage.getCapacity()];
+                int count = 0;
+                for (ShipCapacity capacity : CAPACITIES) {
+                    BerthAllocator berths = storage.getBerths(capacity);
+                    for (int slot = 0; slot < berths.getCapacity(); slot++) {
+                        Ship ship = berths.get(slot);
+                        // A reserved berth's ship is still at sea; the view lists docked ships only
+                        if (ship != null && berths.isDocked(slot)) {
+                            occupancy[capacity.ordinal()]++;
+                            docked[count++] = ship.getID();
+                        }
+                    }
+                }
+                docked = Arrays.copyOf(docked, count);
+            }
+            Location location = port.getLocation();
+            into.add(new PortView(port.getID(), location.getX(), location.getY(), cargo, occupancy, docked));
+        }
     }
 
-    @Override
-    public List<Product> create(int val) {
-        List<Product> products = new ArrayList<>(3);
+    /**
+     * Copies the candidates that are active and, if center is not null, within radius of it at the
+     * view's time.
+     */
+    private static void copyShips(Iterable<Ship> candidates, long time, Location center, int radius,
+            List<ShipView> into) {
+        Location position = new Location(0, 0);
+        for (Ship ship : candidates) {
+            if (ship.isRetired()) {
+                continue;
+            }
+            Course course = ship.getCourse();
+            if (course != null) {
+                course.locate(time, position);
+            } else {
+                Location at = ship.getLocation();
+                position.setX(at.getX());
+                position.setY(at.getY());
+            }
+            if (center != null && SpatialIndex.distanceSquared(center, position) > (long) radius * radius) {
+                continue;
+            }
+            long cargo = ship.getProduct() instanceof CargoProduct
+                    ? ((CargoProduct) ship.getProduct()).getAmount()
+                    : ship.getProduct().get();
+            into.add(new ShipView(ship.getID(), position.getX(), position.getY(), ship.getProductOrdinal(),
+                    ship.getCapacityOrdinal(), cargo, ship.getVoyagePlan() != null));
+        }
+    }
 
-        for (FabricProduct fabrics : FabricProduct.values())
-            products.add(fabrics.create(val));
+    public long getTime() {
+        return time;
+    }
 
-        return products;
+    /**
+     * The WorldEpoch version the view was taken at, or -1 if it is not consistent.
+     */
+    public long getVersion() {
+        return version;
     }
-}
 
-/**
- * GETTERS
- * ========================================================================================================
- * ========================================================================================================
- */
+    public boolean isConsistent() {
+        return version >= 0;
+    }
 
-/**
- * Getter
- */
-interface Getter<T> {
-    T get(Ship ship);
-}
+    public int getAttempts() {
+        return attempts;
+    }
 
-/**
- * ShipCapacityGetter
- * Retrieves the ship capacity element from a ship.
- */
-class ShipCapacityGetter implements Getter<ShipCapacity> {
-    @Override
-    public ShipCapacity get(Ship ship) {
-        for (ShipElement element : ship.getElements()) {
-            if (element instanceof ShipCapacity) {
-                return (ShipCapacity) element;
-            }
-        }
-        return null;
+    public List<PortView> getPorts() {
+        return Collections.unmodifiableList(ports);
     }
-}
 
-/**
- * ShipProductGetter
- * Retrieves the product element from a ship.
- */
-class ShipProductGetter implements Getter<Product> {
-    @Override
-    public Product get(Ship ship) {
-        for (ShipElement element : ship.getElements()) {
-            if (element instanceof Product) {
-                return (Product) element;
+    public List<ShipView> getShips() {
+        return Collections.unmodifiableList(ships);
+    }
+
+    /**
+     * All cargo of one product, in ports and on board.
+     */
+    public long getCargo(int productOrdinal) {
+        long total = 0;
+        for (PortView port : ports) {
+            total += port.getCargo(productOrdinal);
+        }
+        for (ShipView ship : ships) {
+            if (ship.getProductOrdinal() == productOrdinal) {
+                total += ship.getCargo();
             }
         }
-        return null;
+        return total;
     }
 }
 
 /**
- * SHIP LOGIC
+ * TELEMETRY
  * ========================================================================================================
  * ========================================================================================================
  */
 
 /**
- * Convertor
+ * TunnelView
+ * A tunnel's lanes and queue as of one telemetry frame.
  */
-class Converter {
-    public static Ship objLocationToShip(ObjLocation objLocation) {
-        return (objLocation instanceof Ship) ? (Ship) objLocation : null;
+class TunnelView {
+    private final int index;
+    private final int lanes;
+    private final int lanesInUse;
+    private final int queueLength;
+
+    TunnelView(int index, int lanes, int lanesInUse, int queueLength) {
+        this.index = index;
+        this.lanes = lanes;
+        this.lanesInUse = lanesInUse;
+        this.queueLength = queueLength;
     }
-}
 
-/**
- * ShipRoad
- * Represents a road for ships to travel between two locations through a tunnel.
- */
-class ShipRoad implements Runnable {
-    private final Tunnel tunnel;
-    private final ObjLocation firstObj;
-    private final ObjLocation secondObj;
-    private final Random random;
+    public int getIndex() {
+        return index;
+    }
 
-    public ShipRoad(Tunnel tunnel, ObjLocation firstObj, ObjLocation secondObj, Random random) {
-        this.tunnel = tunnel;
-        this.firstObj = firstObj;
-        this.secondObj = secondObj;
-        this.random = random;
+    public int getLanes() {
+        return lanes;
     }
 
-    @Override
-    public void run() {
-        try {
-            ShipEnterTunnel shipEnterTunnel = new ShipEnterTunnel(this.tunnel, this.firstObj, this.random);
-            Thread tunnelThread = new Thread(shipEnterTunnel);
-            tunnelThread.start();
-            tunnelThread.join(); // Wait for the tunnel thread to finish
+    public int getLanesInUse() {
+        return lanesInUse;
+    }
 
-            ShipMovement shipMovement = new ShipMovement(firstObj, secondObj);
-            shipMovement.run();
-        } catch (InterruptedException e) {
-            System.out.println("ShipRoad interrupted...");
-            Thread.currentThread().interrupt();
-        }
+    public int getQueueLength() {
+        return queueLength;
     }
 }
 
 /**
- * ShipEnterTunnel
- * Represents a ship entering a tunnel.
+ * TelemetryFrame
+ * One interval of telemetry: the tunnels, ports and ships it carries, and the IDs of ships gone since
+ * the previous frame. A keyframe carries everything and replaces what the observer had; a delta carries
+ * only what changed. A frame is encoded at most once per format and the buffer shared by every client.
+ *
+ * Binary layout, big-endian, after an int length of the rest:
+ *
+ *   byte kind, long seq, long time, byte flags (1 = consistent)
+ *   int tunnels, then per tunnel: int index, int lanes, int lanesInUse, int queueLength
+ *   int ports, then per port:     int id, int x, int y, long cargo per product, int occupancy per capacity
+ *   int ships, then per ship:     long id, int x, int y, long cargo, byte product, byte capacity,
+ *                                 byte flags (1 = underway)
+ *   int removed, then per ship:   long id
+ *
+ * JSON is one object per line with the same fields, each tunnel, port and ship an array in that order.
  */
-class ShipEnterTunnel implements Runnable {
-    private final Tunnel tunnel;
-    private final Ship ship;
-    private final Random random;
-
-    public ShipEnterTunnel(Tunnel tunnel, ObjLocation objLocation, Random random) {
-        this.tunnel = tunnel;
-        this.ship = Converter.objLocationToShip(objLocation);
-        this.random = random;
+class TelemetryFrame {
+    static final byte KEYFRAME = 1;
+    static final byte DELTA = 2;
+    static final byte BINARY = 'B';
+    static final byte JSON = 'J';
+    private static final int HEADER_BYTES = 1 + 8 + 8 + 1;
+    private static final int TUNNEL_BYTES = 4 * 4;
+    private static final int PORT_BYTES = 3 * 4 + CargoLedger.PRODUCT_COUNT * 8 + ShipCapacity.values().length * 4;
+    private static final int SHIP_BYTES = 8 + 4 + 4 + 8 + 3;
+    private static final ShipCapacity[] CAPACITIES = ShipCapacity.values();
+
+    private final byte kind;
+    private final long seq;
+    private final long time;
+    private final boolean consistent;
+    private final List<TunnelView> tunnels;
+    private final List<PortView> ports;
+    private final List<ShipView> ships;
+    private final long[] removed;
+    private ByteBuffer binary;
+    private ByteBuffer json;
+
+    TelemetryFrame(byte kind, long seq, long time, boolean consistent, List<TunnelView> tunnels,
+            List<PortView> ports, List<ShipView> ships, long[] removed) {
+        this.kind = kind;
+        this.seq = seq;
+        this.time = time;
+        this.consistent = consistent;
+        this.tunnels = tunnels;
+        this.ports = ports;
+        this.ships = ships;
+        this.removed = removed;
     }
 
-    @Override
-    public void run() {
-        try {
-            System.out.println("Ship: " + ship.getID() + " start wait for enter the tunnel");
-            // Attempt to acquire a permit to enter the tunnel
-            this.tunnel.getSemaphore().acquire();
-
-            // Calculate the time the ship will spend in the tunnel
-            final int timeInTunnel = random.nextInt(8000) + 2000;
+    /**
+     * The frame in the given format, ready to write. Callers write from a duplicate().
+     */
+    public ByteBuffer encode(byte format) {
+        if (format == JSON) {
+            if (json == null) {
+                json = ByteBuffer.wrap(toJson().getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+            }
+            return json;
+        }
+        if (binary == null) {
+            binary = toBinary().asReadOnlyBuffer();
+        }
+        return binary;
+    }
 
-            // Check if the ship object is not null before accessing its methods
-            if (ship != null) {
-                // Log the entry of the ship into the tunnel
-                System.out.println(
-                        "Ship: " + ship.getID() + " is entering the tunnel for: " + timeInTunnel / 1000 + " seconds");
+    private ByteBuffer toBinary() {
+        int length = HEADER_BYTES + 4 + tunnels.size() * TUNNEL_BYTES + 4 + ports.size() * PORT_BYTES + 4
+                + ships.size() * SHIP_BYTES + 4 + removed.length * 8;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length).put(kind).putLong(seq).putLong(time).put((byte) (consistent ? 1 : 0));
+        buffer.putInt(tunnels.size());
+        for (TunnelView tunnel : tunnels) {
+            buffer.putInt(tunnel.getIndex()).putInt(tunnel.getLanes()).putInt(tunnel.getLanesInUse())
+                    .putInt(tunnel.getQueueLength());
+        }
+        buffer.putInt(ports.size());
+        for (PortView port : ports) {
+            buffer.putInt(port.getId()).putInt(port.getX()).putInt(port.getY());
+            for (int i = 0; i < CargoLedger.PRODUCT_COUNT; i++) {
+                buffer.putLong(port.getCargo(i));
+            }
+            for (ShipCapacity capacity : CAPACITIES) {
+                buffer.putInt(port.getOccupancy(capacity));
+            }
+        }
+        buffer.putInt(ships.size());
+        for (ShipView ship : ships) {
+            buffer.putLong(ship.getId()).putInt(ship.getX()).putInt(ship.getY()).putLong(ship.getCargo())
+                    .put((byte) ship.getProductOrdinal()).put((byte) ship.getCapacityOrdinal())
+                    .put((byte) (ship.isUnderway() ? 1 : 0));
+        }
+        buffer.putInt(removed.length);
+        for (long id : removed) {
+            buffer.putLong(id);
+        }
+        buffer.flip();
+        return buffer;
+    }
 
-                // Simulate the time spent in the tunnel
-                Thread.sleep(timeInTunnel);
+    private String toJson() {
+        StringBuilder out = new StringBuilder(64 + ships.size() * 40);
+        out.append("{\"kind\":\"").append(kind == KEYFRAME ? "key" : "delta").append("\",\"seq\":").append(seq)
+                .append(",\"time\":").append(time).append(",\"consistent\":").append(consistent);
+        out.append(",\"tunnels\":[");
+        for (int i = 0; i < tunnels.size(); i++) {
+            TunnelView tunnel = tunnels.get(i);
+            out.append(i == 0 ? "[" : ",[").append(tunnel.getIndex()).append(',').append(tunnel.getLanes())
+                    .append(',').append(tunnel.getLanesInUse()).append(',').append(tunnel.getQueueLength())
+                    .append(']');
+        }
+        out.append("],\"ports\":[");
+        for (int i = 0; i < ports.size(); i++) {
+            PortView port = ports.get(i);
+            out.append(i == 0 ? "[" : ",[").append(port.getId()).append(',').append(port.getX()).append(',')
+                    .append(port.getY());
+            for (int product = 0; product < CargoLedger.PRODUCT_COUNT; product++) {
+                out.append(',').append(port.getCargo(product));
+            }
+            for (ShipCapacity capacity : CAPACITIES) {
+                out.append(',').append(port.getOccupancy(capacity));
+            }
+            out.append(']');
+        }
+        out.append("],\"ships\":[");
+        for (int i = 0; i < ships.size(); i++) {
+            ShipView ship = ships.get(i);
+            out.append(i == 0 ? "[" : ",[").append(ship.getId()).append(',').append(ship.getX()).append(',')
+                    .append(ship.getY()).append(',').append(ship.getCargo()).append(',')
+                    .append(ship.getProductOrdinal()).append(',').append(ship.getCapacityOrdinal()).append(',')
+                    .append(ship.isUnderway() ? 1 : 0).append(']');
+        }
+        out.append("],\"removed\":[");
+        for (int i = 0; i < removed.length; i++) {
+            out.append(i == 0 ? "" : ",").append(removed[i]);
+        }
+        return out.append("]}\n").toString();
+    }
 
-                // Log the exit of the ship from the tunnel
-                System.out.println("Ship: " + ship.getID() + " has exited the tunnel.");
-            } else {
-                // Handle the case when ship is null
-                System.out.println("Attempted to enter the tunnel with a null ship reference.");
+    /**
+     * Reads a binary frame from the bytes after its length.
+     */
+    static TelemetryFrame decode(ByteBuffer buffer) {
+        byte kind = buffer.get();
+        long seq = buffer.getLong();
+        long time = buffer.getLong();
+        boolean consistent = (buffer.get() & 1) != 0;
+        List<TunnelView> tunnels = new ArrayList<>();
+        for (int i = buffer.getInt(); i > 0; i--) {
+            tunnels.add(new TunnelView(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt()));
+        }
+        List<PortView> ports = new ArrayList<>();
+        for (int i = buffer.getInt(); i > 0; i--) {
+            int id = buffer.getInt();
+            int x = buffer.getInt();
+            int y = buffer.getInt();
+            long[] cargo = new long[CargoLedger.PRODUCT_COUNT];
+            for (int product = 0; product < cargo.length; product++) {
+                cargo[product] = buffer.getLong();
             }
-        } catch (InterruptedException e) {
-            // Log interruption details and re-interrupt the thread
-            System.out.println("Ship: " + (ship != null ? ship.getID() : "unknown")
-                    + " was interrupted while entering or inside the tunnel.");
-            Thread.currentThread().interrupt();
-        } finally {
-            // Ensure that the semaphore permit is released
-            this.tunnel.getSemaphore().release();
+            int[] occupancy = new int[CAPACITIES.length];
+            for (int capacity = 0; capacity < occupancy.length; capacity++) {
+                occupancy[capacity] = buffer.getInt();
+            }
+            ports.add(new PortView(id, x, y, cargo, occupancy, new long[0]));
         }
+        List<ShipView> ships = new ArrayList<>();
+        for (int i = buffer.getInt(); i > 0; i--) {
+            long id = buffer.getLong();
+            int x = buffer.getInt();
+            int y = buffer.getInt();
+            long cargo = buffer.getLong();
+            int product = buffer.get();
+            int capacity = buffer.get();
+            boolean underway = (buffer.get() & 1) != 0;
+            ships.add(new ShipView(id, x, y, product, capacity, cargo, underway));
+        }
+        long[] removed = new long[buffer.getInt()];
+        for (int i = 0; i < removed.length; i++) {
+            removed[i] = buffer.getLong();
+        }
+        return new TelemetryFrame(kind, seq, time, consistent, tunnels, ports, ships, removed);
     }
-}
 
-/**
- * ShipMovement
- * Represents the movement of a ship from one location to another.
- */
-class ShipMovement implements Runnable {
+    /**
+     * Reads a JSON frame line. Only the layout toJson() writes is understood.
+     */
+    static TelemetryFrame decode(String line) {
+        byte kind = line.startsWith("{\"kind\":\"key\"") ? KEYFRAME : DELTA;
+        long seq = Long.parseLong(field(line, "seq"));
+        long time = Long.parseLong(field(line, "time"));
+        boolean consistent = Boolean.parseBoolean(field(line, "consistent"));
+        List<TunnelView> tunnels = new ArrayList<>();
+        for (long[] row : rows(line, "tunnels")) {
+            tunnels.add(new TunnelView((int) row[0], (int) row[1], (int) row[2], (int) row[3]));
+        }
+        List<PortView> ports = new ArrayList<>();
+        for (long[] row : rows(line, "ports")) {
+            long[] cargo = Arrays.copyOfRange(row, 3, 3 + CargoLedger.PRODUCT_COUNT);
+            int[] occupancy = new int[CAPACITIES.length];
+            for (int capacity = 0; capacity < occupancy.length; capacity++) {
+                occupancy[capacity] = (int) row[3 + CargoLedger.PRODUCT_COUNT + capacity];
+            }
+            ports.add(new PortView((int) row[0], (int) row[1], (int) row[2], cargo, occupancy, new long[0]));
+        }
+        List<ShipView> ships = new ArrayList<>();
+        for (long[] row : rows(line, "ships")) {
+            ships.add(new ShipView(row[0], (int) row[1], (int) row[2], (int) row[4], (int) row[5], row[3],
+                    row[6] != 0));
+        }
+        int start = line.indexOf("\"removed\":[") + "\"removed\":[".length();
+        long[] removed = numbers(line.substring(start, line.indexOf(']', start)));
+        return new TelemetryFrame(kind, seq, time, consistent, tunnels, ports, ships, removed);
+    }
 
-    private final ObjLocation firstObj;
-    private final ObjLocation secondObj;
+    private static String field(String line, String name) {
+        int start = line.indexOf("\"" + name + "\":") + name.length() + 3;
+        int end = line.indexOf(',', start);
+        return line.substring(start, end);
+    }
 
-    public ShipMovement(ObjLocation firstObj, ObjLocation secondObj) {
-        this.firstObj = firstObj;
-        this.secondObj = secondObj;
+    private static List<long[]> rows(String line, String name) {
+        List<long[]> rows = new ArrayList<>();
+        int at = line.indexOf("\"" + name + "\":[") + name.length() + 4;
+        while (line.charAt(at) == '[') {
+            int end = line.indexOf(']', at);
+            rows.add(numbers(line.substring(at + 1, end)));
+            at = line.charAt(end + 1) == ',' ? end + 2 : end + 1;
+        }
+        return rows;
     }
 
-    @Override
-    public void run() {
-        moveCoordinate("X", firstObj.getLocation().getX(), secondObj.getLocation().getX());
-        moveCoordinate("Y", firstObj.getLocation().getY(), secondObj.getLocation().getY());
+    private static long[] numbers(String list) {
+        if (list.isEmpty()) {
+            return new long[0];
+        }
+        String[] parts = list.split(",");
+        long[] numbers = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            numbers[i] = Long.parseLong(parts[i]);
+        }
+        return numbers;
+    }
+
+    public boolean isKeyframe() {
+        return kind == KEYFRAME;
     }
 
-    private void moveCoordinate(String axis, int current, int target) {
-        Ship ship = Converter.objLocationToShip(firstObj);
-        String shipName = "Ship: " + ship.getID();
-        String shipPositionX = "X:" + firstObj.getLocation().getX();
-        String shipPositionY = "Y:" + firstObj.getLocation().getY();
-        String destinationX = "X:" + secondObj.getLocation().getX();
-        String destinationY = "Y:" + secondObj.getLocation().getY();
+    public long getSeq() {
+        return seq;
+    }
 
-        System.out.println(shipName + " begins the journey!");
-        StringBuilder journeyInfo = new StringBuilder();
-        journeyInfo.append("\n== == == == == == == ==\n");
-        journeyInfo.append(shipName + " position: " + shipPositionX + " " + shipPositionY + "\n");
-        journeyInfo.append("Destination position: " + destinationX + " " + destinationY + "\n");
+    public long getTime() {
+        return time;
+    }
 
-        if (secondObj instanceof Port) {
-            Port port = (Port) secondObj;
-            journeyInfo.append(shipName + " begins the journey to Port: " + port.getID() + "!");
-        } else if (secondObj instanceof Ship) {
-            Ship ship2 = (Ship) secondObj;
-            journeyInfo.append(shipName + " begins the journey to ship: " + ship2.getID() + "!");
-        }
+    public boolean isConsistent() {
+        return consistent;
+    }
 
-        final int direction = Integer.compare(target, current);
-        int size = Math.abs(target - current);
+    public List<TunnelView> getTunnels() {
+        return Collections.unmodifiableList(tunnels);
+    }
 
-        while (size > 0) {
-            try {
-                if (axis.equals("X")) {
-                    firstObj.getLocation().setX(current + direction);
-                } else if (axis.equals("Y")) {
-                    firstObj.getLocation().setY(current + direction);
-                }
+    public List<PortView> getPorts() {
+        return Collections.unmodifiableList(ports);
+    }
 
-                size--;
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                System.out.println("Ship movement interrupted...");
-                Thread.currentThread().interrupt();
-            }
-        }
+    public List<ShipView> getShips() {
+        return Collections.unmodifiableList(ships);
+    }
 
-        journeyInfo.append("\n" + shipName + " reached the point of the route!");
-        journeyInfo.append("\n== == == == == == == ==\n");
-        System.out.println(journeyInfo.toString());
+    public long[] getRemoved() {
+        return removed.clone();
     }
 }
 
 /**
- * PORT LOGIC
- * ========================================================================================================
- * ========================================================================================================
- */
-/**
- * ActivePort
+ * TelemetryEncoder
+ * Turns successive WorldViews into frames. The previous frame's ships are indexed by ID in an
+ * open-addressing table over primitive arrays, so finding what moved, changed or left is one lookup per
+ * ship with no sorting and no boxing; ports and tunnels are compared by index. Each advance() makes both
+ * a keyframe and a delta of the same moment, so clients joining late and clients keeping up are served
+ * from one capture.
  */
-class ActivePort implements Runnable {
-    private static final int SLEEP_DURATION_MS = 2000;
-
-    private final Port port;
-    private final Random random;
-    private final Tunnel tunnel;
-
-    public ActivePort(Port port, Random random, Tunnel tunnel) {
-        this.port = port;
-        this.random = random;
-        this.tunnel = tunnel;
+class TelemetryEncoder {
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+    private static final int MIN_CAPACITY = 16;
+    private static final ShipCapacity[] CAPACITIES = ShipCapacity.values();
+
+    private long seq;
+    private ShipView[] ships = new ShipView[0];
+    // Previous frame's ship IDs and their places in ships; a slot is free when its place is -1
+    private long[] indexIds = new long[0];
+    private int[] indexPlaces;
+    private int shift;
+    private boolean[] seen = new boolean[0];
+    private List<PortView> ports = Collections.emptyList();
+    private List<TunnelView> tunnels = Collections.emptyList();
+    private TelemetryFrame keyframe;
+    private TelemetryFrame delta;
+
+    TelemetryEncoder() {
+        index(ships);
     }
 
-    @Override
-    public void run() {
-        final String portName = "Port: " + port.getID();
+    public void advance(WorldView view, List<Tunnel> tunnelList) {
+        seq++;
+        ShipView[] nextShips = view.getShips().toArray(new ShipView[0]);
+        List<PortView> nextPorts = view.getPorts();
+        List<TunnelView> nextTunnels = new ArrayList<>(tunnelList.size());
+        for (int i = 0; i < tunnelList.size(); i++) {
+            TunnelAdmission admission = tunnelList.get(i).getAdmission();
+            nextTunnels.add(new TunnelView(i, admission.getLanes(), admission.getLanesInUse(),
+                    admission.getQueueLength()));
+        }
 
-        while (!Thread.currentThread().isInterrupted()) {
-            try {
-                System.out.println(portName + " is sleeping");
-                Thread.sleep(SLEEP_DURATION_MS);
-                generateAndProcessShips();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                System.out.println(portName + " is interrupted");
-                return;
+        List<ShipView> changedShips = new ArrayList<>();
+        Arrays.fill(seen, 0, ships.length, false);
+        for (ShipView ship : nextShips) {
+            int place = find(ship.getId());
+            if (place < 0) {
+                changedShips.add(ship);
+            } else {
+                seen[place] = true;
+                if (!sameShip(ship, ships[place])) {
+                    changedShips.add(ship);
+                }
+            }
+        }
+        long[] removed = new long[ships.length];
+        int removedCount = 0;
+        for (int place = 0; place < ships.length; place++) {
+            if (!seen[place]) {
+                removed[removedCount++] = ships[place].getId();
+            }
+        }
+        List<PortView> changedPorts = new ArrayList<>();
+        for (int p = 0; p < nextPorts.size(); p++) {
+            if (p >= ports.size() || !samePort(nextPorts.get(p), ports.get(p))) {
+                changedPorts.add(nextPorts.get(p));
+            }
+        }
+        List<TunnelView> changedTunnels = new ArrayList<>();
+        for (int t = 0; t < nextTunnels.size(); t++) {
+            TunnelView tunnel = nextTunnels.get(t);
+            if (t >= tunnels.size() || tunnel.getLanesInUse() != tunnels.get(t).getLanesInUse()
+                    || tunnel.getQueueLength() != tunnels.get(t).getQueueLength()) {
+                changedTunnels.add(tunnel);
             }
         }
-    }
 
-    private void generateAndProcessShips() {
-        String portID = port.getID() + "";
-        System.out.println("Port: " + portID + " is generating a new ship...");
-        new PortGenShip(port, random, tunnel).run();
-        System.out.println("Port: " + portID + " is checking ships in storage...");
-        new PortCheckShipStorage(port, tunnel, random).run();
+        keyframe = new TelemetryFrame(TelemetryFrame.KEYFRAME, seq, view.getTime(), view.isConsistent(),
+                nextTunnels, nextPorts, Arrays.asList(nextShips), new long[0]);
+        delta = new TelemetryFrame(TelemetryFrame.DELTA, seq, view.getTime(), view.isConsistent(), changedTunnels,
+                changedPorts, changedShips, Arrays.copyOf(removed, removedCount));
+        ships = nextShips;
+        ports = nextPorts;
+        tunnels = nextTunnels;
+        index(nextShips);
     }
-}
 
-/**
- * PortCheckShipStorage
- */
-class PortCheckShipStorage implements Runnable {
-    private Port port;
-    private Random random;
-    private final Tunnel tunnel;
+    private void index(ShipView[] frame) {
+        // Keep the table at most half full so probe runs stay short
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, frame.length) * 2 - 1) << 1);
+        if (indexIds.length != capacity) {
+            indexIds = new long[capacity];
+            indexPlaces = new int[capacity];
+            shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        }
+        if (seen.length < frame.length) {
+            seen = new boolean[capacity];
+        }
+        Arrays.fill(indexPlaces, -1);
+        int mask = capacity - 1;
+        for (int place = 0; place < frame.length; place++) {
+            long id = frame[place].getId();
+            int slot = (int) ((id * PHI) >>> shift);
+            while (indexPlaces[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            indexIds[slot] = id;
+            indexPlaces[slot] = place;
+        }
+    }
 
-    public PortCheckShipStorage(Port port, Tunnel tunnel, Random random) {
-        this.port = port;
-        this.tunnel = tunnel;
-        this.random = random;
+    private int find(long id) {
+        int mask = indexPlaces.length - 1;
+        for (int slot = (int) ((id * PHI) >>> shift); indexPlaces[slot] >= 0; slot = (slot + 1) & mask) {
+            if (indexIds[slot] == id) {
+                return indexPlaces[slot];
+            }
+        }
+        return -1;
     }
 
-    @Override
-    public void run() {
-        List<Ship[]> ships = port.getShipStorage().get();
+    private static boolean sameShip(ShipView a, ShipView b) {
+        return a.getX() == b.getX() && a.getY() == b.getY() && a.getCargo() == b.getCargo()
+                && a.getProductOrdinal() == b.getProductOrdinal() && a.getCapacityOrdinal() == b.getCapacityOrdinal()
+                && a.isUnderway() == b.isUnderway();
+    }
 
-        for (Ship[] shipArr : ships) {
-            for (Ship ship : shipArr) {
-                if (ship != null) {
-                    System.out.println("Port: " + port.getID() + " found ship to unload");
-                    new PortUnloadShip(this.port, ship, random, this.tunnel).run();
-                }
+    private static boolean samePort(PortView a, PortView b) {
+        for (int product = 0; product < CargoLedger.PRODUCT_COUNT; product++) {
+            if (a.getCargo(product) != b.getCargo(product)) {
+                return false;
+            }
+        }
+        for (ShipCapacity capacity : CAPACITIES) {
+            if (a.getOccupancy(capacity) != b.getOccupancy(capacity)) {
+                return false;
             }
         }
+        return true;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
 
-        System.out.println("Port: " + port.getID() + " cleans the storage...");
-        this.port.setShipStorage(new ShipStorage(
-                ShipStorageCapacity.SMALL, ShipStorageCapacity.MIDDLE, ShipStorageCapacity.BIG));
+    public TelemetryFrame getKeyframe() {
+        return keyframe;
+    }
+
+    public TelemetryFrame getDelta() {
+        return delta;
     }
 }
 
 /**
- * PortUnloadShip
+ * TelemetrySession
+ * One observer connected to the TelemetryServer. Frames wait in a queue of shared buffers until the
+ * socket takes them; only the server thread touches a session.
  */
-class PortUnloadShip implements Runnable {
-    private Port port;
-    private Ship ship;
-    private Random random;
-    private final Tunnel tunnel;
-
-    public PortUnloadShip(Port port, Ship ship, Random random, Tunnel tunnel) {
-        this.port = port;
-        this.ship = ship;
-        this.random = random;
-        this.tunnel = tunnel;
+class TelemetrySession {
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private long pendingBytes;
+    // Bytes of the deltas queued since the last keyframe: the only part of the backlog a keyframe replaces
+    private long deltaBytes;
+    private byte format;
+    private boolean needsKeyframe = true;
+
+    TelemetrySession(SocketChannel channel, SelectionKey key) {
+        this.channel = channel;
+        this.key = key;
     }
 
-    @Override
-    public void run() {
-        System.out.println("Port " + port.getID() + " start unload the ship");
-        Product shipProduct = new ShipProductGetter().get(ship);
-        Product portProduct = this.port.getProduct();
-
-        if (portProduct.getClass().getName().equals(shipProduct.getClass().getName())) {
-            if (portProduct instanceof Gold) {
-                Gold portProd = (Gold) portProduct;
-                Gold shipProd = (Gold) shipProduct;
+    /**
+     * Reads what the client sent; its first 'B' or 'J' picks the format. False once the client hung up.
+     */
+    boolean read(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int read = channel.read(buffer);
+        if (read < 0) {
+            return false;
+        }
+        for (int i = 0; i < read && format == 0; i++) {
+            byte b = buffer.get(i);
+            if (b == TelemetryFrame.BINARY || b == TelemetryFrame.JSON) {
+                format = b;
+            }
+        }
+        return true;
+    }
 
-                portProd.set(portProd.get() + portProd.get());
-                shipProd.set(0);
-            } else if (portProduct instanceof Wood) {
-                Wood portProd = (Wood) portProduct;
-                Wood shipProd = (Wood) shipProduct;
+    boolean isActive() {
+        return format != 0;
+    }
 
-                portProd.set(portProd.get() + portProd.get());
-                shipProd.set(0);
-            } else if (portProduct instanceof Meat) {
-                Meat portProd = (Meat) portProduct;
-                Meat shipProd = (Meat) shipProduct;
+    /**
+     * Queues this interval's frame and writes what the socket takes now. A client more than
+     * maxPendingBytes of deltas behind loses its backlog, all but a frame already half written, and gets
+     * the keyframe instead, which brings it up to date in one frame. A keyframe still being written does
+     * not count as backlog, so one larger than maxPendingBytes cannot trigger another drop.
+     */
+    void send(TelemetryFrame keyframe, TelemetryFrame delta, long maxPendingBytes) throws IOException {
+        boolean key = needsKeyframe;
+        // Once the last keyframe is written, pendingBytes is only deltas and may be the smaller count
+        if (Math.min(pendingBytes, deltaBytes) > maxPendingBytes) {
+            ByteBuffer head = pending.peekFirst();
+            int dropped = pending.size();
+            pending.clear();
+            pendingBytes = 0;
+            if (head.position() > 0) {
+                pending.add(head);
+                pendingBytes = head.remaining();
+                dropped--;
+            }
+            Metrics.TELEMETRY_DROPPED.add(dropped);
+            key = true;
+        }
+        ByteBuffer frame = (key ? keyframe : delta).encode(format).duplicate();
+        pending.add(frame);
+        pendingBytes += frame.remaining();
+        deltaBytes = key ? 0 : deltaBytes + frame.remaining();
+        needsKeyframe = false;
+        flush();
+    }
 
-                portProd.set(portProd.get() + portProd.get());
-                shipProd.set(0);
+    void flush() throws IOException {
+        ByteBuffer head;
+        while ((head = pending.peekFirst()) != null) {
+            int written = channel.write(head);
+            pendingBytes -= written;
+            Metrics.TELEMETRY_BYTES.add(written);
+            if (head.hasRemaining()) {
+                break;
             }
+            pending.pollFirst();
         }
+        key.interestOps(pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
 
-        System.out.println("Port: " + port.getID() + " sending the ship to new port");
-        new Thread(new SendShip(port, ship, this.random, this.tunnel)).start();
+    long getPendingBytes() {
+        return pendingBytes;
+    }
 
+    void close() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already gone
+        }
     }
 }
 
 /**
- * PortGenShip
+ * TelemetryServer
+ * Streams the live world to local observers from one thread. A Selector multiplexes the listening
+ * socket and every client; once per period the thread takes a WorldView, diffs it against the previous
+ * one, and queues the same encoded delta on every client, writing as much as each socket takes without
+ * blocking. A new client is sent a keyframe first. Nothing is captured while no client is listening,
+ * and a client that stops reading costs at most maxPendingBytes of deltas, plus the keyframe that catches
+ * it up, so a slow observer never holds up the others or the simulation.
  */
-class PortGenShip implements Runnable {
-    private final Port port;
-    private Random random;
-    private final Tunnel tunnel;
-    private static final int SHIP_COST_THRESHOLD = 100;
-    private static final long SLEEP_DURATION_MS = 5000;
+class TelemetryServer {
+    static final long DEFAULT_PERIOD_MS = 1000;
+    static final String DEFAULT_HOST = "127.0.0.1";
+    static final long DEFAULT_MAX_PENDING_BYTES = 8L << 20;
+    private static final int READ_BUFFER_SIZE = 64;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final long periodMs;
+    private final long maxPendingBytes;
+    private final PortDataBase portDataBase;
+    private final List<Tunnel> tunnels;
+    private final LongSupplier clock;
+    private final TelemetryEncoder encoder = new TelemetryEncoder();
+    private final List<TelemetrySession> sessions = new ArrayList<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Thread thread;
+    private volatile Location regionCenter;
+    private volatile int regionRadius;
+    private volatile int clients;
+    private volatile boolean running = true;
+
+    public TelemetryServer(InetSocketAddress address, long periodMs, long maxPendingBytes, PortDataBase portDataBase,
+            List<Tunnel> tunnels, LongSupplier clock) throws IOException {
+        this.periodMs = periodMs;
+        this.maxPendingBytes = maxPendingBytes;
+        this.portDataBase = portDataBase;
+        this.tunnels = tunnels;
+        this.clock = clock;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        try {
+            server.bind(address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        this.thread = new Thread(this::serve, "telemetry");
+        thread.setDaemon(true);
+    }
 
-    public PortGenShip(Port port, Random random, Tunnel tunnel) {
-        this.port = port;
-        this.random = random;
-        this.tunnel = tunnel;
+    /**
+     * Starts the server named by telemetry=<port> (0 for any free port), or returns null without it.
+     */
+    public static TelemetryServer start(WorldConfig config, PortDataBase portDataBase, List<Tunnel> tunnels,
+            LongSupplier clock) throws IOException {
+        if (!config.has("telemetry")) {
+            return null;
+        }
+        TelemetryServer server = new TelemetryServer(
+                new InetSocketAddress(config.getString("telemetry.host", DEFAULT_HOST), config.getInt("telemetry", 0)),
+                config.getLong("telemetry.period", DEFAULT_PERIOD_MS),
+                config.getLong("telemetry.buffer", DEFAULT_MAX_PENDING_BYTES), portDataBase, tunnels, clock);
+        if (config.has("telemetry.radius")) {
+            server.setRegion(new Location(config.getInt("telemetry.x", 0), config.getInt("telemetry.y", 0)),
+                    config.getInt("telemetry.radius", 0));
+        }
+        Metrics.REGISTRY.gauge("telemetry.clients", server::getClients);
+        server.start();
+        return server;
     }
 
-    @Override
-    public void run() {
-        Product product = this.port.getProduct();
+    /**
+     * Streams only the ships within radius of center, looked up in the ship index once per period.
+     * Every port is still streamed. A ship that enters or leaves the region is added or removed.
+     */
+    public void setRegion(Location center, int radius) {
+        this.regionRadius = radius;
+        this.regionCenter = center;
+    }
 
-        if (product.get() instanceof Integer) {
-            Integer value = (Integer) product.get();
-            System.out.println("Port: " + port.getID() + " is checking if it has enough product to build a new ship");
-            if (value > SHIP_COST_THRESHOLD) {
-                createAndSendShip();
-            } else {
-                System.out.println("port: " + this.port.getID() + " does not have enough money");
+    public void start() {
+        thread.start();
+    }
 
+    private void serve() {
+        long nextFrameAt = System.currentTimeMillis();
+        try {
+            while (running) {
+                long wait = nextFrameAt - System.currentTimeMillis();
+                if (wait > 0) {
+                    selector.select(wait);
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                long now = System.currentTimeMillis();
+                if (running && now >= nextFrameAt) {
+                    publish();
+                    nextFrameAt += periodMs;
+                    // Intervals missed while a capture ran long are skipped, not sent back to back
+                    if (nextFrameAt <= now) {
+                        nextFrameAt = now + periodMs;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Telemetry stopped: " + e.getMessage());
+        } finally {
+            for (TelemetrySession session : sessions) {
+                session.close();
+            }
+            sessions.clear();
+            clients = 0;
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                // Closing anyway
             }
         }
-
-        sleepThread();
     }
 
-    private void createAndSendShip() {
-        System.out.println("port: " + this.port.getID() + " has enough product to build a ship");
-        Ship newShip = this.port.getFabricShip().create(this.port.getLocation());
-
-        System.out.println("New ship created: " + newShip.getID());
-        Runnable sendShipTask = new SendShip(this.port, newShip, random, tunnel);
-        new Thread(sendShipTask).start();
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+        TelemetrySession session = (TelemetrySession) key.attachment();
+        try {
+            if (key.isReadable() && !session.read(readBuffer)) {
+                drop(session);
+                return;
+            }
+            if (key.isValid() && key.isWritable()) {
+                session.flush();
+            }
+        } catch (IOException e) {
+            drop(session);
+        }
     }
 
-    private void sleepThread() {
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
         try {
-            Thread.sleep(SLEEP_DURATION_MS);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            TelemetrySession session = new TelemetrySession(channel, key);
+            key.attach(session);
+            sessions.add(session);
+            clients = sessions.size();
+        } catch (IOException e) {
+            channel.close();
         }
     }
-}
 
-/**
- * SendShip
- */
-class SendShip implements Runnable {
-    private Port port;
-    private Ship ship;
-    private Random random;
-    private final Tunnel tunnel;
+    private void publish() {
+        boolean listening = false;
+        for (TelemetrySession session : sessions) {
+            listening |= session.isActive();
+        }
+        if (!listening) {
+            return;
+        }
+        Location center = regionCenter;
+        encoder.advance(center == null
+                ? WorldView.capture(portDataBase, clock)
+                : WorldView.captureNear(portDataBase, clock, center, regionRadius), tunnels);
+        Metrics.TELEMETRY_FRAMES.increment();
+        Iterator<TelemetrySession> it = sessions.iterator();
+        while (it.hasNext()) {
+            TelemetrySession session = it.next();
+            if (!session.isActive()) {
+                continue;
+            }
+            try {
+                session.send(encoder.getKeyframe(), encoder.getDelta(), maxPendingBytes);
+            } catch (IOException e) {
+                session.close();
+                it.remove();
+            }
+        }
+        clients = sessions.size();
+    }
 
-    public SendShip(Port port, Ship ship, Random random, Tunnel tunnel) {
-        this.port = port;
-        this.ship = ship;
-        this.random = random;
-        this.tunnel = tunnel;
+    private void drop(TelemetrySession session) {
+        session.close();
+        sessions.remove(session);
+        clients = sessions.size();
     }
 
-    @Override
-    public void run() {
-        Port randomPort = selectRandomPort();
-        ShipCapacity shipCapacity = new ShipCapacityGetter().get(ship);
-        System.out.println("Sending ship to port: " + randomPort.getID());
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
 
-        AppendShip appendShip = new AppendShip(shipCapacity, ship, randomPort, random, tunnel);
-        // Consider using an ExecutorService or similar mechanism here
-        new Thread(appendShip).start();
+    public int getClients() {
+        return clients;
     }
 
-    private Port selectRandomPort() {
-        List<Port> ports = this.port.getPortDataBase().getPorts();
-        return ports.get(this.random.nextInt(ports.size()));
+    /**
+     * Stops serving and waits for the server thread to close every connection.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(periodMs + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
 
 /**
- * AppendShip
+ * TelemetryClient
+ * Follows a TelemetryServer over loopback with a blocking channel, applying each frame to a mirror of
+ * the world, so a test or the watch mode can check what the server sends against the world it came from.
+ * A delta must follow the previous frame's sequence number; a gap means frames were lost.
  */
-class AppendShip implements Runnable {
-    private ShipCapacity shipCapacity;
-    private Ship newShip;
-    private Port port;
-    private Random random;
-    private boolean added = false;
-    private final Tunnel tunnel;
+class TelemetryClient implements Closeable {
+    static final int MAX_FRAME_BYTES = 1 << 28;
+
+    private final SocketChannel channel;
+    private final byte format;
+    private final DataInputStream binary;
+    private final BufferedReader json;
+    private final Map<Long, ShipView> ships = new HashMap<>();
+    private final Map<Integer, PortView> ports = new TreeMap<>();
+    private final Map<Integer, TunnelView> tunnels = new TreeMap<>();
+    private long seq = -1;
+    private long bytes;
+
+    private TelemetryClient(SocketChannel channel, byte format) {
+        this.channel = channel;
+        this.format = format;
+        InputStream in = Channels.newInputStream(channel);
+        this.binary = format == TelemetryFrame.BINARY ? new DataInputStream(new BufferedInputStream(in)) : null;
+        this.json = format == TelemetryFrame.JSON
+                ? new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII))
+                : null;
+    }
 
-    public boolean getAdded() {
-        return this.added;
+    public static TelemetryClient connect(String host, int port, byte format) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            channel.write(ByteBuffer.wrap(new byte[] { format }));
+            return new TelemetryClient(channel, format);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
     }
 
-    public AppendShip(ShipCapacity shipCapacity, Ship newShip, Port port, Random random, Tunnel tunnel) {
-        this.shipCapacity = shipCapacity;
-        this.newShip = newShip;
-        this.port = port;
-        this.random = random;
-        this.tunnel = tunnel;
+    /**
+     * Blocks for the next frame and applies it to the mirror.
+     */
+    public TelemetryFrame readFrame() throws IOException {
+        TelemetryFrame frame;
+        if (format == TelemetryFrame.JSON) {
+            String line = json.readLine();
+            if (line == null) {
+                throw new EOFException("Telemetry server closed the connection");
+            }
+            bytes += line.length() + 1;
+            frame = TelemetryFrame.decode(line);
+        } else {
+            int length = binary.readInt();
+            if (length <= 0 || length > MAX_FRAME_BYTES) {
+                throw new IOException("Bad telemetry frame length " + length);
+            }
+            byte[] payload = new byte[length];
+            binary.readFully(payload);
+            bytes += 4 + length;
+            frame = TelemetryFrame.decode(ByteBuffer.wrap(payload));
+        }
+        apply(frame);
+        return frame;
     }
 
-    @Override
-    public void run() {
-        System.out.println("Port: " + this.port.getID() + " check if has place for the new ship");
-        switch (shipCapacity) {
-            case SMALL:
-            case MIDDLE:
-            case BIG:
-                System.out.println("Ship been added to new port storage");
-                Ship[] shipStorageArray = getShipStorageArray(shipCapacity);
-                added = appendToArr(shipStorageArray, newShip);
-                startShipRoadThread();
-                break;
-            default:
-                handleDefaultCase();
-                break;
+    private void apply(TelemetryFrame frame) throws IOException {
+        if (frame.isKeyframe()) {
+            ships.clear();
+            ports.clear();
+            tunnels.clear();
+        } else if (frame.getSeq() != seq + 1) {
+            throw new IOException("Telemetry delta " + frame.getSeq() + " does not follow frame " + seq);
+        }
+        seq = frame.getSeq();
+        for (TunnelView tunnel : frame.getTunnels()) {
+            tunnels.put(tunnel.getIndex(), tunnel);
+        }
+        for (PortView port : frame.getPorts()) {
+            ports.put(port.getId(), port);
+        }
+        for (ShipView ship : frame.getShips()) {
+            ships.put(ship.getId(), ship);
+        }
+        for (long id : frame.getRemoved()) {
+            ships.remove(id);
         }
     }
 
-    private void startShipRoadThread() {
-        System.out.println("prepare road for ship to port: " + port.getID());
-        Runnable shipRoadRunnable = new ShipRoad(this.tunnel, this.newShip, this.port, this.random);
-        // Use an ExecutorService or similar mechanism here
-        new Thread(shipRoadRunnable).start();
+    public String describe(TelemetryFrame frame) {
+        return (frame.isKeyframe() ? "Keyframe " : "Delta ") + frame.getSeq() + " at " + frame.getTime() + " ms"
+                + (frame.isConsistent() ? "" : " (inconsistent)") + ": " + frame.getShips().size() + " ships, "
+                + frame.getPorts().size() + " ports, " + frame.getTunnels().size() + " tunnels, "
+                + frame.getRemoved().length + " removed; mirror: " + ships.size() + " ships, " + ports.size()
+                + " ports, " + tunnels.size() + " tunnels, " + bytes + " bytes received";
     }
 
-    private void handleDefaultCase() {
-        System.out.println("Port: " + port.getID() + " do not has palce for ship");
-        System.out.println("sending ship to new place...");
-        new SendShip(port, newShip, random, tunnel).run();
-        // Logic for the default case
+    public Map<Long, ShipView> getShips() {
+        return Collections.unmodifiableMap(ships);
     }
 
-    private Ship[] getShipStorageArray(ShipCapacity capacity) {
-        switch (capacity) {
-            case SMALL:
-                return port.getShipStorage().getSmall();
-            case MIDDLE:
-                return port.getShipStorage().getMiddle();
-            case BIG:
-                return port.getShipStorage().getBig();
-            default:
-                throw new IllegalArgumentException("Invalid ship capacity");
-        }
+    public Map<Integer, PortView> getPorts() {
+        return Collections.unmodifiableMap(ports);
     }
 
-    private boolean appendToArr(Ship[] arr, Ship newShip) {
-        SortArr.sortArr(arr);
+    public Map<Integer, TunnelView> getTunnels() {
+        return Collections.unmodifiableMap(tunnels);
+    }
 
-        for (int i = 0; i < arr.length; i++) {
-            if (arr[i] == null) {
-                arr[i] = newShip;
-                return true;
-            }
-        }
-        return false;
+    public long getBytes() {
+        return bytes;
     }
-}
 
-class SortArr {
-    public static void sortArr(Ship[] arr) {
-        Arrays.sort(arr, Comparator.nullsFirst(Comparator.comparingInt(Ship::getID)));
+    @Override
+    public void close() throws IOException {
+        channel.close();
     }
 }
@@ -0,0 +1,43 @@
+package com.example;
+
+import java.util.Random;
+
+/**
+ * BenchmarkWorld
+ * Builds the same objects GenWorld does, without starting any threads.
+ */
+final class BenchmarkWorld {
+    static final long SEED = 42L;
+
+    private BenchmarkWorld() {
+    }
+
+    static FabricShipStorage fabricShipStorage() {
+        return new FabricShipStorage(ShipStorageCapacity.SMALL, ShipStorageCapacity.MIDDLE, ShipStorageCapacity.BIG);
+    }
+
+    static PortDataBase portDataBase(int ports) {
+        Random random = new Random(SEED);
+        PortDataBase portDataBase = new FabricPortDataBase().create();
+        FabricPort fabricPort = new FabricPort(random, portDataBase, new MultiFabricProduct(), fabricShipStorage());
+        for (int i = 0; i < ports; i++) {
+            portDataBase.addPort(fabricPort.create(150));
+        }
+        return portDataBase;
+    }
+}
+
+/**
+ * DiscardingTaskLauncher
+ * Drops every task, so a benchmark measures only the code that would hand it off.
+ */
+final class DiscardingTaskLauncher implements TaskLauncher {
+    @Override
+    public void launch(Runnable task) {
+    }
+
+    @Override
+    public String getName() {
+        return "discard";
+    }
+}
@@ -0,0 +1,55 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CargoBenchmark
+ * Many ships unloading into one port at once: ledger transfers into a shared port.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class CargoBenchmark {
+    private static final int GOLD = FabricProduct.GOLD_FABRIC.ordinal();
+
+    @State(Scope.Benchmark)
+    public static class SharedPort {
+        CargoLedger port;
+
+        @Setup
+        public void setUp() {
+            port = new CargoLedger();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class OwnShip {
+        Gold cargo;
+
+        @Setup
+        public void setUp() {
+            cargo = new Gold(0);
+        }
+    }
+
+    @Benchmark
+    public long unloadIntoSharedPort(SharedPort shared, OwnShip ship) {
+        ship.cargo.getLedger().set(GOLD, ShipCapacity.SMALL.get());
+        return CargoLedger.transfer(ship.cargo.getLedger(), shared.port, GOLD);
+    }
+}
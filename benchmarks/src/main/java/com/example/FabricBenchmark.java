@@ -0,0 +1,65 @@
+package com.example;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FabricBenchmark
+ * Cost of building a ship and the product list every port and ship starts from, and of recommissioning
+ * a retired ship from the FleetManager pool instead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FabricBenchmark {
+    private FabricShip fabricShip;
+    private MultiFabricProduct multiFabricProduct;
+    private Location location;
+    private FleetManager fleetManager;
+
+    @Setup
+    public void setUp() {
+        fabricShip = new FabricShip("Port: 1");
+        multiFabricProduct = new MultiFabricProduct();
+        location = new Location(10, 20);
+        fleetManager = new FleetManager(new SpatialIndex<>(10), 0, 1, FleetManager.DEFAULT_POOL_CAPACITY);
+    }
+
+    @Benchmark
+    public Object fabricShipCreate() {
+        return fabricShip.create(location);
+    }
+
+    @Benchmark
+    public Object fabricShipRecycled() {
+        fleetManager.tryCommission();
+        Ship ship = fabricShip.create(location, fleetManager);
+        ship.completeVoyage();
+        fleetManager.retireIfDue(ship);
+        return ship;
+    }
+
+    @Benchmark
+    public List<?> multiFabricProductCreate() {
+        return multiFabricProduct.create();
+    }
+
+    @Benchmark
+    public List<?> multiFabricProductCreateWithValue() {
+        return multiFabricProduct.create(150);
+    }
+}
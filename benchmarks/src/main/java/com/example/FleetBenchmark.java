@@ -0,0 +1,70 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FleetBenchmark
+ * Scanning every ship's position and cargo: Ship object graphs against the FleetStore arrays.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Benchmark)
+public class FleetBenchmark {
+    @Param({ "1000000" })
+    private int ships;
+
+    private List<Ship> objectFleet;
+    private FleetStore fleetStore;
+
+    @Setup
+    public void setUp() {
+        FabricShip fabricShip = new FabricShip("Port: 1");
+        objectFleet = new ArrayList<>(ships);
+        fleetStore = new FleetStore(ships);
+        Location location = new Location(0, 0);
+        for (int i = 0; i < ships; i++) {
+            objectFleet.add(fabricShip.create(new Location(i % 100, i / 100 % 100)));
+            location.setX(i % 100);
+            location.setY(i / 100 % 100);
+            fabricShip.createInto(fleetStore, location, 1);
+        }
+    }
+
+    @Benchmark
+    public long scanShipObjects() {
+        long sum = 0;
+        ShipProductGetter shipProductGetter = new ShipProductGetter();
+        for (Ship ship : objectFleet) {
+            sum += ship.getLocation().getX() + ship.getLocation().getY();
+            sum += (Integer) shipProductGetter.get(ship).get();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long scanFleetStore() {
+        long sum = 0;
+        for (int i = 0, size = fleetStore.size(); i < size; i++) {
+            sum += fleetStore.getX(i) + fleetStore.getY(i);
+            sum += fleetStore.getCargo(i);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,60 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * GetterBenchmark
+ * Typed element lookups done by FabricShip, SendShip and PortUnloadShip for every ship, and the
+ * product match PortUnloadShip does before a transfer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GetterBenchmark {
+    private Ship ship;
+    private Port port;
+    private ShipCapacityGetter shipCapacityGetter;
+    private ShipProductGetter shipProductGetter;
+
+    @Setup
+    public void setUp() {
+        ship = new FabricShip("Port: 1").create(new Location(0, 0));
+        shipCapacityGetter = new ShipCapacityGetter();
+        shipProductGetter = new ShipProductGetter();
+        port = new Port(null, 1, new Location(0, 0), null, new Gold(0), BenchmarkWorld.fabricShipStorage().create());
+    }
+
+    @Benchmark
+    public Object shipCapacityGetter() {
+        return shipCapacityGetter.get(ship);
+    }
+
+    @Benchmark
+    public Object shipProductGetter() {
+        return shipProductGetter.get(ship);
+    }
+
+    @Benchmark
+    public int capacityOrdinal() {
+        return ship.getCapacityOrdinal();
+    }
+
+    @Benchmark
+    public boolean productMatchesPort() {
+        return ship.getProductOrdinal() == port.getProductOrdinal();
+    }
+}
@@ -0,0 +1,60 @@
+package com.example;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RandomBenchmark
+ * One Random shared by every task, as GenWorld used to do, against a RandomStream per task.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class RandomBenchmark {
+    private static final int BOUND = 100;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        Random random;
+
+        @Setup
+        public void setUp() {
+            random = new Random(BenchmarkWorld.SEED);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PerTask {
+        Random random;
+
+        @Setup
+        public void setUp() {
+            random = new RandomStreams(BenchmarkWorld.SEED).forPort((int) Thread.currentThread().getId());
+        }
+    }
+
+    @Benchmark
+    public int sharedRandom(Shared shared) {
+        return shared.random.nextInt(BOUND);
+    }
+
+    @Benchmark
+    public int streamPerTask(PerTask perTask) {
+        return perTask.random.nextInt(BOUND);
+    }
+}
@@ -0,0 +1,55 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ScenarioBenchmark
+ * Loading a world of generated ports from a scenario file, up to the point it is ready to run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScenarioBenchmark {
+    @Param({ "1000", "100000" })
+    public int ports;
+
+    private WorldConfig config;
+    private Path path;
+
+    @Setup
+    public void setUp() throws IOException {
+        config = new WorldConfig(null);
+        path = Files.createTempFile("world", ".scenario");
+        Files.write(path, ("tunnel x=0 y=0\n"
+                + "ports count=" + ports + " width=10000 height=10000 seed=" + BenchmarkWorld.SEED + "\n").getBytes());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public PortDataBase load() throws IOException {
+        return new ScenarioLoader(config, new RandomStreams(BenchmarkWorld.SEED)).load(path);
+    }
+}
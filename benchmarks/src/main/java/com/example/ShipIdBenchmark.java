@@ -0,0 +1,86 @@
+package com.example;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ShipIdBenchmark
+ * One shared counter against the striped ShipIdAllocator, and ship lookups by ID in a ShipRegistry
+ * against a ConcurrentHashMap of boxed IDs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class ShipIdBenchmark {
+    private static final int SHIPS = 100_000;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final AtomicLong counter = new AtomicLong();
+        final ShipIdAllocator allocator = new ShipIdAllocator(ShipIdAllocator.DEFAULT_STRIPES);
+        final ShipRegistry registry = new ShipRegistry();
+        final ConcurrentHashMap<Long, Ship> map = new ConcurrentHashMap<>();
+        long[] ids;
+
+        @Setup
+        public void setUp() {
+            FabricShip fabricShip = new FabricShip("Port: 1", new Random(BenchmarkWorld.SEED));
+            ids = new long[SHIPS];
+            for (int i = 0; i < SHIPS; i++) {
+                Ship ship = fabricShip.create(new Location(0, 0));
+                ids[i] = ship.getID();
+                registry.put(ship);
+                map.put(ship.getID(), ship);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PerTask {
+        int portId;
+        Random random;
+
+        @Setup
+        public void setUp() {
+            portId = (int) Thread.currentThread().getId();
+            random = new Random(BenchmarkWorld.SEED + portId);
+        }
+    }
+
+    @Benchmark
+    public long sharedCounter(Shared shared) {
+        return shared.counter.incrementAndGet();
+    }
+
+    @Benchmark
+    public long stripedAllocator(Shared shared, PerTask perTask) {
+        return shared.allocator.allocate(perTask.portId);
+    }
+
+    @Benchmark
+    public Ship registryLookup(Shared shared, PerTask perTask) {
+        return shared.registry.get(shared.ids[perTask.random.nextInt(SHIPS)]);
+    }
+
+    @Benchmark
+    public Ship boxedMapLookup(Shared shared, PerTask perTask) {
+        return shared.map.get(shared.ids[perTask.random.nextInt(SHIPS)]);
+    }
+}
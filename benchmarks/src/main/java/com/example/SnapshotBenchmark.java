@@ -0,0 +1,76 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SnapshotBenchmark
+ * Writing a world to a WorldSnapshot and restoring it, with every port's berths half full.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SnapshotBenchmark {
+    private static final int SHIPS_PER_PORT = 8;
+
+    @Param({ "4", "1000" })
+    public int ports;
+
+    private PortDataBase portDataBase;
+    private WorldConfig config;
+    private Path path;
+
+    @Setup
+    public void setUp() throws IOException {
+        portDataBase = BenchmarkWorld.portDataBase(ports);
+        Tunnel tunnel = new FabricTunel(new Random(BenchmarkWorld.SEED)).create(new Location(0, 0));
+        TunnelNetwork network = new TunnelNetwork(Collections.singletonList(tunnel), TunnelSelection.NEAREST, 1);
+        portDataBase.setRoutePlanner(new RoutePlanner(portDataBase.getPorts(), network));
+        FleetManager fleet = portDataBase.getFleetManager();
+        for (Port port : portDataBase.getPorts()) {
+            for (int i = 0; i < SHIPS_PER_PORT; i++) {
+                Ship ship = port.getFabricShip().create(port.getLocation(), fleet);
+                port.getShipStorage().dock(ship.getShipCapacity(), ship);
+            }
+        }
+        config = new WorldConfig(null);
+        path = Files.createTempFile("world", ".snap");
+        WorldSnapshot.write(path, portDataBase, BenchmarkWorld.SEED, 0);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public Path write() throws IOException {
+        WorldSnapshot.write(path, portDataBase, BenchmarkWorld.SEED, 0);
+        return path;
+    }
+
+    @Benchmark
+    public WorldSnapshot restore() throws IOException {
+        return WorldSnapshot.read(path, config);
+    }
+}
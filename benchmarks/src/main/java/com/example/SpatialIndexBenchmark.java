@@ -0,0 +1,62 @@
+package com.example;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SpatialIndexBenchmark
+ * Nearest-port destination selection and radius queries as the number of ports grows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SpatialIndexBenchmark {
+    private static final int WORLD_SIZE = 1000;
+
+    @Param({ "1000", "30000" })
+    private int ports;
+
+    private PortDataBase portDataBase;
+    private Port from;
+    private Random random;
+    private DestinationSelector nearestSelector;
+
+    @Setup
+    public void setUp() {
+        random = new Random(BenchmarkWorld.SEED);
+        portDataBase = new FabricPortDataBase().create();
+        FabricPort fabricPort = new FabricPort(random, portDataBase, new MultiFabricProduct(),
+                BenchmarkWorld.fabricShipStorage());
+        for (int i = 0; i < ports; i++) {
+            portDataBase.addPort(fabricPort.create(new Location(random.nextInt(WORLD_SIZE), random.nextInt(WORLD_SIZE))));
+        }
+        from = portDataBase.getPorts().get(0);
+        nearestSelector = new NearestDestinationSelector(3);
+    }
+
+    @Benchmark
+    public Port nearestDestination() {
+        return nearestSelector.select(from, random);
+    }
+
+    @Benchmark
+    public List<Port> portsWithinRadius() {
+        return portDataBase.getPortIndex().withinRadius(from.getLocation(), 25);
+    }
+}
@@ -0,0 +1,81 @@
+package com.example;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * StorageBenchmark
+ * Docking ships into a berth class and a port's periodic storage sweep.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StorageBenchmark {
+    private BerthAllocator berths;
+    private Ship[] ships;
+    private Port port;
+    private PortCheckShipStorage portCheckShipStorage;
+
+    @Setup
+    public void setUp() {
+        berths = new BerthAllocator(ShipStorageCapacity.BIG.get());
+        FabricShip fabricShip = new FabricShip("Port: 1");
+        ships = new Ship[berths.getCapacity()];
+        for (int i = 0; i < ships.length; i++) {
+            ships[i] = fabricShip.create(new Location(0, 0));
+        }
+
+        Random random = new Random(BenchmarkWorld.SEED);
+        port = BenchmarkWorld.portDataBase(4).getPorts().get(0);
+        portCheckShipStorage = new PortCheckShipStorage(port, new Tunnel(new Location(0, 0)), random,
+                new DiscardingTaskLauncher());
+    }
+
+    /**
+     * Fills an empty berth class one ship at a time, docks each ship on arrival, then undocks every
+     * ship again.
+     */
+    @Benchmark
+    public int dockUntilFullAndRelease() {
+        int last = -1;
+        for (Ship ship : ships) {
+            last = berths.claim(ship);
+            berths.occupy(ship);
+        }
+        for (int slot = 0; slot < ships.length; slot++) {
+            berths.release(slot);
+        }
+        return last;
+    }
+
+    /**
+     * Docks one arrived ship per berth class and sweeps the storage; the follow-up SendShip tasks are
+     * discarded.
+     */
+    @Benchmark
+    public Port portCheckShipStorage() {
+        ShipStorage storage = port.getShipStorage();
+        storage.dock(ShipCapacity.SMALL, ships[0]);
+        storage.dock(ShipCapacity.MIDDLE, ships[1]);
+        storage.dock(ShipCapacity.BIG, ships[2]);
+        storage.occupy(ShipCapacity.SMALL, ships[0]);
+        storage.occupy(ShipCapacity.MIDDLE, ships[1]);
+        storage.occupy(ShipCapacity.BIG, ships[2]);
+        portCheckShipStorage.run();
+        return port;
+    }
+}
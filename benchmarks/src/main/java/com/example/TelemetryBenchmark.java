@@ -0,0 +1,77 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TelemetryBenchmark
+ * One telemetry interval: capturing the world, diffing it against the previous frame and encoding the
+ * binary delta, with one ship in a hundred moved since then, against encoding the full keyframe.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TelemetryBenchmark {
+    private static final int PORTS = 1000;
+    private static final int MOVED_PER_FRAME = 100;
+
+    @Param({ "10000", "100000" })
+    public int ships;
+
+    private PortDataBase portDataBase;
+    private List<Tunnel> tunnels;
+    private final List<Ship> fleet = new ArrayList<>();
+    private final TelemetryEncoder encoder = new TelemetryEncoder();
+    private Random random;
+
+    @Setup
+    public void setUp() {
+        portDataBase = BenchmarkWorld.portDataBase(PORTS);
+        tunnels = Collections.singletonList(new FabricTunel(new Random(BenchmarkWorld.SEED)).create(new Location(0, 0)));
+        List<Port> ports = portDataBase.getPorts();
+        for (int i = 0; i < ships; i++) {
+            Port port = ports.get(i % PORTS);
+            fleet.add(port.getFabricShip().create(port.getLocation(), portDataBase.getFleetManager()));
+        }
+        random = new Random(BenchmarkWorld.SEED);
+        encoder.advance(WorldView.capture(portDataBase, System::currentTimeMillis), tunnels);
+    }
+
+    private void frame() {
+        for (int i = 0; i < ships / MOVED_PER_FRAME; i++) {
+            Location location = fleet.get(random.nextInt(ships)).getLocation();
+            location.setX(location.getX() + 1);
+        }
+        encoder.advance(WorldView.capture(portDataBase, System::currentTimeMillis), tunnels);
+    }
+
+    @Benchmark
+    public int delta() {
+        frame();
+        return encoder.getDelta().encode(TelemetryFrame.BINARY).remaining();
+    }
+
+    @Benchmark
+    public int keyframe() {
+        frame();
+        return encoder.getKeyframe().encode(TelemetryFrame.BINARY).remaining();
+    }
+}
@@ -0,0 +1,65 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * TunnelBenchmark
+ * Tunnel lane acquire/release for each admission policy, alone and with more ships than lanes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TunnelBenchmark {
+    private static final long WORK_IN_TUNNEL = 64;
+
+    @Param({"fifo", "priority", "fair"})
+    public String policy;
+
+    private Tunnel tunnel;
+    private Ship ship;
+
+    @Setup
+    public void setUp() {
+        tunnel = new Tunnel(new Location(0, 0),
+                new TunnelAdmission(Tunnel.MAX_CONNECTIONS, TunnelPolicy.fromName(policy)));
+        ship = new FabricShip("Port: 1").create(new Location(0, 0));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void acquireReleaseUncontended() throws InterruptedException {
+        passTunnel();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void acquireReleaseContended() throws InterruptedException {
+        passTunnel();
+    }
+
+    private void passTunnel() throws InterruptedException {
+        tunnel.getAdmission().acquire(ship);
+        try {
+            Blackhole.consumeCPU(WORK_IN_TUNNEL);
+        } finally {
+            tunnel.getAdmission().release();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * WorldViewBenchmark
+ * A dashboard polling WorldView.capture() while three threads move cargo between ports, against the
+ * same writers with no reader, to show what the reader costs them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class WorldViewBenchmark {
+    private static final int SHIPS_PER_PORT = 8;
+
+    @Param({ "4", "1000" })
+    public int ports;
+
+    private PortDataBase portDataBase;
+    private List<Port> portList;
+
+    @Setup
+    public void setUp() {
+        portDataBase = BenchmarkWorld.portDataBase(ports);
+        portList = portDataBase.getPorts();
+        FleetManager fleet = portDataBase.getFleetManager();
+        for (Port port : portList) {
+            for (int i = 0; i < SHIPS_PER_PORT; i++) {
+                Ship ship = port.getFabricShip().create(port.getLocation(), fleet);
+                port.getShipStorage().dock(ship.getShipCapacity(), ship);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        Random random;
+
+        @Setup
+        public void setUp() {
+            random = new Random(BenchmarkWorld.SEED + Thread.currentThread().getId());
+        }
+    }
+
+    private long transfer(Writer writer) {
+        Port from = portList.get(writer.random.nextInt(portList.size()));
+        Port to = portList.get(writer.random.nextInt(portList.size()));
+        return CargoLedger.transfer(from.getCargo(), to.getCargo(),
+                writer.random.nextInt(CargoLedger.PRODUCT_COUNT));
+    }
+
+    @Benchmark
+    @Group("withReader")
+    @GroupThreads(1)
+    public WorldView capture() {
+        return WorldView.capture(portDataBase, System::currentTimeMillis);
+    }
+
+    @Benchmark
+    @Group("withReader")
+    @GroupThreads(3)
+    public long writeWithReader(Writer writer) {
+        return transfer(writer);
+    }
+
+    @Benchmark
+    @Group("writersOnly")
+    @GroupThreads(3)
+    public long writeAlone(Writer writer) {
+        return transfer(writer);
+    }
+}
@@ -0,0 +1,353 @@
+package com.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Runs a TelemetryServer on an ephemeral loopback port against a small generated world and follows it
+ * with TelemetryClients, checking the mirror each client builds against WorldView.capture.
+ */
+@Timeout(60)
+class TelemetryServerTest {
+    private static final String HOST = "127.0.0.1";
+    private static final long PERIOD_MS = 50;
+
+    private final List<AutoCloseable> resources = new ArrayList<>();
+    private PortDataBase portDataBase;
+    private List<Ship> ships;
+    private volatile boolean moving;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        moving = false;
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
+
+    @Test
+    void binaryClientGetsKeyframeThenDeltaForMovedShip() throws Exception {
+        keyframeThenDelta(TelemetryFrame.BINARY);
+    }
+
+    @Test
+    void jsonClientGetsKeyframeThenDeltaForMovedShip() throws Exception {
+        keyframeThenDelta(TelemetryFrame.JSON);
+    }
+
+    @Test
+    void binaryClientRejectsSequenceGap() throws Exception {
+        sequenceGap(TelemetryFrame.BINARY);
+    }
+
+    @Test
+    void jsonClientRejectsSequenceGap() throws Exception {
+        sequenceGap(TelemetryFrame.JSON);
+    }
+
+    /**
+     * A client that stops reading falls behind by more than the buffer, loses its backlog, and is caught up
+     * by one keyframe. The keyframe alone is larger than the buffer, so it must not cause further drops.
+     */
+    @Test
+    void slowClientCatchesUpAfterBackpressure() throws Exception {
+        buildWorld(20000);
+        long maxPendingBytes = 64 << 10;
+        TelemetryServer server = startServer(maxPendingBytes);
+        TelemetryClient client = connect(server, TelemetryFrame.BINARY);
+        long droppedBefore = Metrics.TELEMETRY_DROPPED.getCount();
+
+        // Every ship moves every interval while the client reads nothing
+        moving = true;
+        Thread mover = new Thread(() -> {
+            while (moving) {
+                for (Ship ship : ships) {
+                    ship.getLocation().setX(ship.getLocation().getX() + 1);
+                }
+                sleep(PERIOD_MS / 2);
+            }
+        });
+        mover.start();
+        long deadline = System.currentTimeMillis() + 20000;
+        while (Metrics.TELEMETRY_DROPPED.getCount() == droppedBefore && System.currentTimeMillis() < deadline) {
+            sleep(PERIOD_MS);
+        }
+        moving = false;
+        mover.join();
+        assertTrue(Metrics.TELEMETRY_DROPPED.getCount() > droppedBefore, "backlog was never dropped");
+
+        // The world is still now; the first frame after this instant reflects it
+        long stoppedAt = System.currentTimeMillis();
+        TelemetryFrame frame = readUntilAfter(client, stoppedAt);
+        assertMirrorMatches(client);
+
+        // Caught up: from here on the client gets deltas, and nothing more is dropped
+        long droppedAfter = Metrics.TELEMETRY_DROPPED.getCount();
+        for (int i = 0; i < 5; i++) {
+            TelemetryFrame next = client.readFrame();
+            assertFalse(next.isKeyframe(), "keyframe " + next.getSeq() + " after catching up");
+            assertEquals(frame.getSeq() + 1, next.getSeq());
+            frame = next;
+        }
+        assertEquals(droppedAfter, Metrics.TELEMETRY_DROPPED.getCount());
+    }
+
+    /**
+     * A keyframe larger than the buffer, stuck behind a client that reads nothing, is not backlog: only the
+     * deltas queued after it are, and only once they pass the buffer is the client dropped again.
+     */
+    @Test
+    void keyframeLargerThanBufferDoesNotTriggerDrops() throws Exception {
+        long maxPendingBytes = 64 << 10;
+        TelemetrySession session = stalledSession();
+        TelemetryFrame keyframe = frame(TelemetryFrame.KEYFRAME, 0, 20000);
+        assertTrue(keyframe.encode(TelemetryFrame.BINARY).remaining() > maxPendingBytes);
+
+        session.send(keyframe, frame(TelemetryFrame.DELTA, 0, 0), maxPendingBytes);
+        long dropped = Metrics.TELEMETRY_DROPPED.getCount();
+        for (int seq = 1; seq <= 10; seq++) {
+            session.send(keyframe, frame(TelemetryFrame.DELTA, seq, 1), maxPendingBytes);
+        }
+        assertEquals(dropped, Metrics.TELEMETRY_DROPPED.getCount(), "the keyframe alone caused a drop");
+
+        // Deltas beyond the buffer are a real backlog: dropped once, then the new keyframe is left alone
+        session.send(keyframe, frame(TelemetryFrame.DELTA, 11, 5000), maxPendingBytes);
+        session.send(keyframe, frame(TelemetryFrame.DELTA, 12, 1), maxPendingBytes);
+        long afterBacklog = Metrics.TELEMETRY_DROPPED.getCount();
+        assertTrue(afterBacklog > dropped, "a backlog of deltas was never dropped");
+        for (int seq = 13; seq <= 20; seq++) {
+            session.send(keyframe, frame(TelemetryFrame.DELTA, seq, 1), maxPendingBytes);
+        }
+        assertEquals(afterBacklog, Metrics.TELEMETRY_DROPPED.getCount(), "the catch-up keyframe caused a drop");
+    }
+
+    /**
+     * A server limited to a region streams only the ships within its radius, found through the ship index,
+     * and adds a ship that sails in.
+     */
+    @Test
+    void regionStreamsOnlyShipsNearCenter() throws Exception {
+        buildWorld(200);
+        Location center = portDataBase.getPorts().get(0).getLocation();
+        int radius = 30;
+        TelemetryServer server = startServer(TelemetryServer.DEFAULT_MAX_PENDING_BYTES);
+        server.setRegion(center, radius);
+        TelemetryClient client = connect(server, TelemetryFrame.BINARY);
+
+        TelemetryFrame first = client.readFrame();
+        assertTrue(first.isKeyframe(), "first frame is not a keyframe");
+        List<Ship> near = new ArrayList<>();
+        Ship outside = null;
+        for (Ship ship : ships) {
+            if (SpatialIndex.distanceSquared(center, ship.getLocation()) <= (long) radius * radius) {
+                near.add(ship);
+            } else if (outside == null) {
+                outside = ship;
+            }
+        }
+        assertEquals(near.size(), client.getShips().size());
+        for (Ship ship : near) {
+            assertNotNull(findShip(first, ship.getID()), "ship " + ship.getID() + " near the center not streamed");
+        }
+        assertNotNull(outside, "every ship is near the center");
+
+        // One step outside the region, then sailing towards its center as the engines sail ships
+        outside.getLocation().setX(center.getX() + radius + 1);
+        outside.getLocation().setY(center.getY());
+        portDataBase.getShipIndex().update(outside);
+        Course course = outside.setCourse(center, System::currentTimeMillis);
+        portDataBase.getShipIndex().update(outside, course);
+        long enteredAt = course.getDepartedAt() + ShipMovement.STEP_DURATION_MS;
+
+        readUntilAfter(client, enteredAt);
+        ShipView entered = client.getShips().get(outside.getID());
+        assertNotNull(entered, "a ship that sailed into the region was not added");
+        assertEquals(center.getX() + radius, entered.getX());
+        assertEquals(near.size() + 1, client.getShips().size());
+    }
+
+    private void keyframeThenDelta(byte format) throws Exception {
+        buildWorld(200);
+        TelemetryServer server = startServer(TelemetryServer.DEFAULT_MAX_PENDING_BYTES);
+        TelemetryClient client = connect(server, format);
+
+        TelemetryFrame first = client.readFrame();
+        assertTrue(first.isKeyframe(), "first frame is not a keyframe");
+        assertEquals(ships.size(), first.getShips().size());
+        assertEquals(portDataBase.getPorts().size(), first.getPorts().size());
+        assertMirrorMatches(client);
+
+        Ship moved = ships.get(ships.size() / 2);
+        int x = moved.getLocation().getX() + 7;
+        moved.getLocation().setX(x);
+        long movedAt = System.currentTimeMillis();
+
+        TelemetryFrame delta = readUntilAfter(client, movedAt);
+        assertFalse(delta.isKeyframe(), "a moved ship should arrive in a delta");
+        ShipView view = findShip(delta, moved.getID());
+        assertNotNull(view, "delta does not carry the moved ship");
+        assertEquals(x, view.getX());
+        assertEquals(x, client.getShips().get(moved.getID()).getX());
+        assertMirrorMatches(client);
+    }
+
+    private void sequenceGap(byte format) throws Exception {
+        ServerSocketChannel fake = ServerSocketChannel.open();
+        resources.add(fake);
+        fake.bind(new InetSocketAddress(HOST, 0));
+        TelemetryClient client = TelemetryClient.connect(HOST, fake.socket().getLocalPort(), format);
+        resources.add(client);
+        SocketChannel connection = fake.accept();
+        resources.add(connection);
+
+        write(connection, frame(TelemetryFrame.KEYFRAME, 0), format);
+        write(connection, frame(TelemetryFrame.DELTA, 1), format);
+        write(connection, frame(TelemetryFrame.DELTA, 3), format);
+        assertTrue(client.readFrame().isKeyframe());
+        assertEquals(1, client.readFrame().getSeq());
+        IOException gap = assertThrows(IOException.class, client::readFrame);
+        assertTrue(gap.getMessage().contains("does not follow"), gap.getMessage());
+    }
+
+    /**
+     * A binary session whose client never reads, with socket buffers far smaller than a keyframe.
+     */
+    private TelemetrySession stalledSession() throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        resources.add(listener);
+        listener.bind(new InetSocketAddress(HOST, 0));
+        SocketChannel peer = SocketChannel.open();
+        resources.add(peer);
+        peer.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+        peer.connect(new InetSocketAddress(HOST, listener.socket().getLocalPort()));
+        SocketChannel channel = listener.accept();
+        resources.add(channel);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+        channel.configureBlocking(false);
+        Selector selector = Selector.open();
+        resources.add(selector);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        TelemetrySession session = new TelemetrySession(channel, key);
+        peer.write(ByteBuffer.wrap(new byte[] { TelemetryFrame.BINARY }));
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        while (!session.isActive()) {
+            session.read(buffer);
+        }
+        return session;
+    }
+
+    private void buildWorld(int shipCount) {
+        Random random = new Random(1);
+        portDataBase = new FabricPortDataBase().create();
+        FabricPort fabricPort = new FabricPort(random, portDataBase, new MultiFabricProduct(),
+                new FabricShipStorage(ShipStorageCapacity.SMALL, ShipStorageCapacity.MIDDLE, ShipStorageCapacity.BIG));
+        for (int i = 0; i < 50; i++) {
+            portDataBase.addPort(fabricPort.create(150));
+        }
+        ships = new ArrayList<>(shipCount);
+        List<Port> ports = portDataBase.getPorts();
+        for (int i = 0; i < shipCount; i++) {
+            Port port = ports.get(i % ports.size());
+            ships.add(port.getFabricShip().create(port.getLocation(), portDataBase.getFleetManager()));
+        }
+    }
+
+    private TelemetryServer startServer(long maxPendingBytes) throws IOException {
+        Tunnel tunnel = new FabricTunel(new Random(2)).create(new Location(0, 0));
+        TelemetryServer server = new TelemetryServer(new InetSocketAddress(HOST, 0), PERIOD_MS, maxPendingBytes,
+                portDataBase, Collections.singletonList(tunnel), System::currentTimeMillis);
+        resources.add(server::close);
+        server.start();
+        return server;
+    }
+
+    private TelemetryClient connect(TelemetryServer server, byte format) throws IOException {
+        TelemetryClient client = TelemetryClient.connect(HOST, server.getPort(), format);
+        resources.add(client);
+        return client;
+    }
+
+    private static TelemetryFrame readUntilAfter(TelemetryClient client, long time) throws IOException {
+        TelemetryFrame frame;
+        do {
+            frame = client.readFrame();
+        } while (frame.getTime() <= time);
+        return frame;
+    }
+
+    private void assertMirrorMatches(TelemetryClient client) {
+        WorldView view = WorldView.capture(portDataBase, System::currentTimeMillis);
+        assertEquals(view.getShips().size(), client.getShips().size());
+        for (ShipView ship : view.getShips()) {
+            ShipView mirrored = client.getShips().get(ship.getId());
+            assertNotNull(mirrored, "ship " + ship.getId() + " missing from the mirror");
+            assertEquals(ship.getX(), mirrored.getX(), "x of ship " + ship.getId());
+            assertEquals(ship.getY(), mirrored.getY(), "y of ship " + ship.getId());
+            assertEquals(ship.getCargo(), mirrored.getCargo(), "cargo of ship " + ship.getId());
+        }
+        for (PortView port : view.getPorts()) {
+            PortView mirrored = client.getPorts().get(port.getId());
+            assertNotNull(mirrored, "port " + port.getId() + " missing from the mirror");
+            for (int product = 0; product < CargoLedger.PRODUCT_COUNT; product++) {
+                assertEquals(port.getCargo(product), mirrored.getCargo(product), "cargo of port " + port.getId());
+            }
+        }
+    }
+
+    private static ShipView findShip(TelemetryFrame frame, long id) {
+        for (ShipView ship : frame.getShips()) {
+            if (ship.getId() == id) {
+                return ship;
+            }
+        }
+        return null;
+    }
+
+    private static TelemetryFrame frame(byte kind, long seq) {
+        return frame(kind, seq, 0);
+    }
+
+    private static TelemetryFrame frame(byte kind, long seq, int shipCount) {
+        List<ShipView> ships = new ArrayList<>(shipCount);
+        for (int i = 0; i < shipCount; i++) {
+            ships.add(new ShipView(i + 1, i, i, 0, 0, 100, true));
+        }
+        return new TelemetryFrame(kind, seq, seq, true, Collections.emptyList(), Collections.emptyList(), ships,
+                new long[0]);
+    }
+
+    private static void write(SocketChannel channel, TelemetryFrame frame, byte format) throws IOException {
+        ByteBuffer buffer = frame.encode(format).duplicate();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}